@@ -0,0 +1,131 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Describes how long {@link SensePeripheral#connect()} waits between connecting,
+ * bonding, and discovering services. Most phones do not need to wait at all.
+ * <p />
+ * Some phones (like the S6) will cause the top board to crash if they try to bond
+ * too fast after connecting. For those phones, a delay is kept before bonding, and
+ * service discovery waits for the bond state to be reported as stable.
+ */
+public final class ConnectPacing {
+    /**
+     * The delay that used to follow every step of the connection.
+     */
+    @VisibleForTesting static final long LEGACY_STEP_DELAY_MS = 1000;
+
+    /**
+     * The total delay that used to be added to every connection.
+     */
+    public static final long LEGACY_TOTAL_DELAY_MS = LEGACY_STEP_DELAY_MS * 3;
+
+    /**
+     * How often the bond state is checked while waiting for it to become stable.
+     */
+    @VisibleForTesting static final long BOND_POLL_INTERVAL_MS = 100;
+
+    /**
+     * How many consecutive checks have to report the peripheral as bonded.
+     */
+    @VisibleForTesting static final int STABLE_BOND_POLL_COUNT = 3;
+
+    /**
+     * How long to wait for the bond state to become stable before moving on anyway.
+     */
+    @VisibleForTesting static final long MAXIMUM_BOND_WAIT_MS = 3000;
+
+    /**
+     * The models known to crash the top board when bonding too fast.
+     */
+    private static final String[] CAREFUL_MODELS = {
+            "SM-G920", // S6
+            "SM-G925", // S6 edge
+            "SM-G928", // S6 edge+
+    };
+
+    /**
+     * No delays between steps.
+     */
+    public static final ConnectPacing IMMEDIATE = new ConnectPacing("Immediate", 0, false, 0, 0);
+
+    /**
+     * Delays bonding, then waits for the bond state to become stable.
+     */
+    public static final ConnectPacing CAREFUL = new ConnectPacing("Careful", LEGACY_STEP_DELAY_MS, true, 0, 0);
+
+    /**
+     * The fixed delays after every step used before pacing was selected per model.
+     */
+    public static final ConnectPacing LEGACY = new ConnectPacing("Legacy",
+                                                                 LEGACY_STEP_DELAY_MS,
+                                                                 false,
+                                                                 LEGACY_STEP_DELAY_MS,
+                                                                 LEGACY_STEP_DELAY_MS);
+
+    private final String name;
+    private final long postConnectDelayMs;
+    private final boolean waitForStableBond;
+    private final long postBondDelayMs;
+    private final long postDiscoveryDelayMs;
+
+
+    /**
+     * Returns the pacing to use for a given phone model.
+     *
+     * @param model The model of the phone, as reported by {@link android.os.Build#MODEL}.
+     */
+    public static @NonNull ConnectPacing forModel(@Nullable String model) {
+        if (model != null) {
+            for (final String carefulModel : CAREFUL_MODELS) {
+                if (model.contains(carefulModel)) {
+                    return CAREFUL;
+                }
+            }
+        }
+        return IMMEDIATE;
+    }
+
+    private ConnectPacing(@NonNull String name,
+                          long postConnectDelayMs,
+                          boolean waitForStableBond,
+                          long postBondDelayMs,
+                          long postDiscoveryDelayMs) {
+        this.name = name;
+        this.postConnectDelayMs = postConnectDelayMs;
+        this.waitForStableBond = waitForStableBond;
+        this.postBondDelayMs = postBondDelayMs;
+        this.postDiscoveryDelayMs = postDiscoveryDelayMs;
+    }
+
+
+    public long getPostConnectDelayMs() {
+        return postConnectDelayMs;
+    }
+
+    public boolean isWaitForStableBond() {
+        return waitForStableBond;
+    }
+
+    public long getPostBondDelayMs() {
+        return postBondDelayMs;
+    }
+
+    public long getPostDiscoveryDelayMs() {
+        return postDiscoveryDelayMs;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectPacing{" +
+                "name='" + name + '\'' +
+                ", postConnectDelayMs=" + postConnectDelayMs +
+                ", waitForStableBond=" + waitForStableBond +
+                ", postBondDelayMs=" + postBondDelayMs +
+                ", postDiscoveryDelayMs=" + postDiscoveryDelayMs +
+                '}';
+    }
+}
@@ -0,0 +1,68 @@
+package is.hello.commonsense.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Saves how much of each firmware image Sense has confirmed, keyed by the device id
+ * of the Sense and the image's CRC-32, so that a {@link SenseFirmwareTransfer} interrupted by a lost connection
+ * or a process restart resumes where it left off.
+ */
+public final class FirmwareCheckpointStore implements SenseFirmwareTransfer.CheckpointStore {
+    @VisibleForTesting static final String PREFERENCES_NAME = "is.hello.commonsense.firmware_checkpoints";
+
+    private final SharedPreferences preferences;
+
+
+    //region Lifecycle
+
+    public FirmwareCheckpointStore(@NonNull Context context) {
+        this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+    }
+
+    @VisibleForTesting
+    FirmwareCheckpointStore(@NonNull SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    //endregion
+
+
+    //region Storage
+
+    private static String keyFor(@NonNull String deviceId, long imageCrc32) {
+        return deviceId + "." + Long.toHexString(imageCrc32);
+    }
+
+    @Override
+    public int load(@NonNull String deviceId, long imageCrc32) {
+        return preferences.getInt(keyFor(deviceId, imageCrc32), 0);
+    }
+
+    @Override
+    public void save(@NonNull String deviceId, long imageCrc32, int offset) {
+        preferences.edit()
+                   .putInt(keyFor(deviceId, imageCrc32), offset)
+                   .apply();
+    }
+
+    @Override
+    public void clear(@NonNull String deviceId, long imageCrc32) {
+        preferences.edit()
+                   .remove(keyFor(deviceId, imageCrc32))
+                   .apply();
+    }
+
+    /**
+     * Removes the checkpoints for every image on every Sense.
+     */
+    public void clearAll() {
+        preferences.edit()
+                   .clear()
+                   .apply();
+    }
+
+    //endregion
+}
@@ -0,0 +1,257 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.SimpleArrayMap;
+
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.commonsense.bluetooth.model.SenseLedAnimation;
+import is.hello.commonsense.bluetooth.model.SenseNetworkStatus;
+import rx.functions.Func1;
+
+import static is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand;
+import static is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand.CommandType;
+
+/**
+ * Declares how a command that Sense answers with a single response is performed: how
+ * long to wait for the response, whether Sense disconnects after responding, what
+ * is cached about Sense that the command changes, and how the response is mapped
+ * to a result. Sense answers each of these commands with a response of the same type.
+ * <p />
+ * Commands are immutable and registered by type when declared, so every call
+ * to a command shares the same descriptor and result mapper. Declared commands
+ * are performed by {@link SensePeripheral#perform(SenseCommand, MorpheusCommand.Builder)}.
+ */
+final class SenseCommand<T> {
+    private static final SimpleArrayMap<CommandType, SenseCommand<?>> REGISTRY = new SimpleArrayMap<>();
+
+
+    //region Result Mappers
+
+    static final Func1<MorpheusCommand, Void> TO_VOID = new Func1<MorpheusCommand, Void>() {
+        @Override
+        public Void call(MorpheusCommand ignored) {
+            return null;
+        }
+    };
+
+    static final Func1<MorpheusCommand, String> TO_DEVICE_ID = new Func1<MorpheusCommand, String>() {
+        @Override
+        public String call(MorpheusCommand response) {
+            return response.getDeviceId();
+        }
+    };
+
+    static final Func1<MorpheusCommand, SenseNetworkStatus> TO_NETWORK_STATUS =
+            new Func1<MorpheusCommand, SenseNetworkStatus>() {
+                @Override
+                public SenseNetworkStatus call(MorpheusCommand response) {
+                    return new SenseNetworkStatus(response.getWifiSSID(),
+                                                  response.getWifiConnectionState());
+                }
+            };
+
+    //endregion
+
+
+    //region Commands
+
+    static final SenseCommand<Void> SWITCH_TO_NORMAL_MODE =
+            register(responding(CommandType.MORPHEUS_COMMAND_SWITCH_TO_NORMAL_MODE, TO_VOID));
+    static final SenseCommand<Void> SWITCH_TO_PAIRING_MODE =
+            register(responding(CommandType.MORPHEUS_COMMAND_SWITCH_TO_PAIRING_MODE, TO_VOID)
+                             .disconnecting());
+    static final SenseCommand<SenseNetworkStatus> GET_WIFI_ENDPOINT =
+            register(responding(CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT, TO_NETWORK_STATUS));
+    static final SenseCommand<String> PAIR_PILL =
+            register(responding(CommandType.MORPHEUS_COMMAND_PAIR_PILL, TO_DEVICE_ID)
+                             .withTimeout("Pair Pill", SensePeripheral.PAIR_PILL_TIMEOUT_S));
+    static final SenseCommand<Void> PAIR_SENSE =
+            register(responding(CommandType.MORPHEUS_COMMAND_PAIR_SENSE, TO_VOID)
+                             .invalidating(SenseResponseCache.KEY_PILL_ID));
+    static final SenseCommand<Void> UNPAIR_PILL =
+            register(responding(CommandType.MORPHEUS_COMMAND_UNPAIR_PILL, TO_VOID)
+                             .invalidating(SenseResponseCache.KEY_PILL_ID));
+    static final SenseCommand<Void> FACTORY_RESET =
+            register(responding(CommandType.MORPHEUS_COMMAND_FACTORY_RESET, TO_VOID)
+                             .disconnecting()
+                             .invalidatingAll());
+    static final SenseCommand<Void> PUSH_DATA_AFTER_SET_TIMEZONE =
+            register(responding(CommandType.MORPHEUS_COMMAND_PUSH_DATA_AFTER_SET_TIMEZONE, TO_VOID)
+                             .withPriority(SenseCommandQueue.Priority.LOW));
+    static final SenseCommand<String> GET_DEVICE_ID =
+            register(responding(CommandType.MORPHEUS_COMMAND_GET_DEVICE_ID, TO_DEVICE_ID));
+    static final SenseCommand<String> SYNC_DEVICE_ID =
+            register(responding(CommandType.MORPHEUS_COMMAND_SYNC_DEVICE_ID, TO_DEVICE_ID));
+    static final SenseCommand<Void> ERASE_PAIRED_PHONE =
+            register(responding(CommandType.MORPHEUS_COMMAND_ERASE_PAIRED_PHONE, TO_VOID));
+    static final SenseCommand<Void> SET_COUNTRY_CODE =
+            register(responding(CommandType.MORPHEUS_COMMAND_SET_COUNTRY_CODE, TO_VOID));
+    static final SenseCommand<Void> SET_SERVER_IP =
+            register(responding(CommandType.MORPHEUS_COMMAND_SET_SERVER_IP, TO_VOID));
+    static final SenseCommand<Void> DFU_BEGIN =
+            register(responding(CommandType.MORPHEUS_COMMAND_MORPHEUS_DFU_BEGIN, TO_VOID)
+                             .disconnecting()
+                             .invalidatingAll());
+
+    static final SenseCommand<Void> LED_BUSY =
+            register(animation(CommandType.MORPHEUS_COMMAND_LED_BUSY));
+    static final SenseCommand<Void> LED_TRIPPY =
+            register(animation(CommandType.MORPHEUS_COMMAND_LED_TRIPPY));
+    static final SenseCommand<Void> LED_OPERATION_SUCCESS =
+            register(animation(CommandType.MORPHEUS_COMMAND_LED_OPERATION_SUCCESS));
+    static final SenseCommand<Void> LED_OPERATION_FAILED =
+            register(animation(CommandType.MORPHEUS_COMMAND_LED_OPERATION_FAILED)
+                             // SenseLedAnimation.STOP, the user is waiting on the LEDs to turn off.
+                             .withPriority(SenseCommandQueue.Priority.HIGH));
+
+    //endregion
+
+
+    final CommandType type;
+    final String timeoutName;
+    final long timeoutS;
+    final boolean disconnects;
+    final SenseCommandQueue.Priority priority;
+    final @Nullable String invalidatedKey;
+    final boolean invalidatesAll;
+    final Func1<MorpheusCommand, T> resultMapper;
+
+
+    //region Declaring
+
+    private static <T> SenseCommand<T> register(@NonNull SenseCommand<T> command) {
+        if (REGISTRY.containsKey(command.type)) {
+            throw new IllegalStateException("Command " + command.type + " declared twice");
+        }
+        REGISTRY.put(command.type, command);
+        return command;
+    }
+
+    /**
+     * Declares a command using the simple command timeout.
+     */
+    private static <T> SenseCommand<T> responding(@NonNull CommandType type,
+                                                  @NonNull Func1<MorpheusCommand, T> resultMapper) {
+        return new SenseCommand<>(type, "Simple Command", SensePeripheral.SIMPLE_COMMAND_TIMEOUT_S,
+                                  false, SenseCommandQueue.Priority.NORMAL, null, false, resultMapper);
+    }
+
+    private static SenseCommand<Void> animation(@NonNull CommandType type) {
+        return responding(type, TO_VOID).withTimeout("Animation", SensePeripheral.ANIMATION_TIMEOUT_S);
+    }
+
+    private SenseCommand(@NonNull CommandType type,
+                         @NonNull String timeoutName,
+                         long timeoutS,
+                         boolean disconnects,
+                         @NonNull SenseCommandQueue.Priority priority,
+                         @Nullable String invalidatedKey,
+                         boolean invalidatesAll,
+                         @NonNull Func1<MorpheusCommand, T> resultMapper) {
+        this.type = type;
+        this.timeoutName = timeoutName;
+        this.timeoutS = timeoutS;
+        this.disconnects = disconnects;
+        this.priority = priority;
+        this.invalidatedKey = invalidatedKey;
+        this.invalidatesAll = invalidatesAll;
+        this.resultMapper = resultMapper;
+    }
+
+    /**
+     * Returns a copy of the command that waits longer or shorter for a response.
+     */
+    SenseCommand<T> withTimeout(@NonNull String timeoutName, long timeoutS) {
+        return new SenseCommand<>(type, timeoutName, timeoutS, disconnects,
+                                  priority, invalidatedKey, invalidatesAll, resultMapper);
+    }
+
+    /**
+     * Returns a copy of the command after which Sense drops the connection,
+     * so losing the connection while waiting for a response is not an error.
+     */
+    SenseCommand<T> disconnecting() {
+        return new SenseCommand<>(type, timeoutName, timeoutS, true,
+                                  priority, invalidatedKey, invalidatesAll, resultMapper);
+    }
+
+    SenseCommand<T> withPriority(@NonNull SenseCommandQueue.Priority priority) {
+        return new SenseCommand<>(type, timeoutName, timeoutS, disconnects,
+                                  priority, invalidatedKey, invalidatesAll, resultMapper);
+    }
+
+    /**
+     * Returns a copy of the command that discards a cached response from Sense.
+     */
+    SenseCommand<T> invalidating(@NonNull String cacheKey) {
+        return new SenseCommand<>(type, timeoutName, timeoutS, disconnects,
+                                  priority, cacheKey, false, resultMapper);
+    }
+
+    /**
+     * Returns a copy of the command that discards every cached response from Sense.
+     */
+    SenseCommand<T> invalidatingAll() {
+        return new SenseCommand<>(type, timeoutName, timeoutS, disconnects,
+                                  priority, null, true, resultMapper);
+    }
+
+    //endregion
+
+
+    //region Lookup
+
+    /**
+     * Returns the command declared for a given type, or <code>null</code> if there is none.
+     */
+    static @Nullable SenseCommand<?> forType(@NonNull CommandType type) {
+        return REGISTRY.get(type);
+    }
+
+    /**
+     * Returns the command that runs a given LED animation.
+     */
+    static @NonNull SenseCommand<Void> forAnimation(@NonNull SenseLedAnimation animation) {
+        switch (animation) {
+            case BUSY:
+                return LED_BUSY;
+            case TRIPPY:
+                return LED_TRIPPY;
+            case FADE_OUT:
+                return LED_OPERATION_SUCCESS;
+            case STOP:
+                return LED_OPERATION_FAILED;
+            default:
+                throw new IllegalArgumentException("Unknown animation " + animation);
+        }
+    }
+
+    /**
+     * Returns the priority a command of a given type should be queued with.
+     */
+    static SenseCommandQueue.Priority getPriority(@NonNull CommandType type) {
+        final SenseCommand<?> command = forType(type);
+        return (command != null) ? command.priority : SenseCommandQueue.Priority.NORMAL;
+    }
+
+    //endregion
+
+
+    @NonNull OperationTimeout createTimeout(@NonNull GattPeripheral gattPeripheral) {
+        return gattPeripheral.createOperationTimeout(timeoutName, timeoutS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "SenseCommand{" +
+                "type=" + type +
+                ", timeoutS=" + timeoutS +
+                ", disconnects=" + disconnects +
+                ", priority=" + priority +
+                '}';
+    }
+}
@@ -0,0 +1,271 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Runs the commands of a single peripheral one at a time, in order of priority and then
+ * in the order they were subscribed to. The next command is started as soon as the
+ * command before it finishes, so the radio is never idle while commands are waiting.
+ * <p />
+ * Unsubscribing from a command that is still waiting removes it from the queue.
+ * Unsubscribing from a command that has already been started unsubscribes from
+ * the command itself, and the next command is started right away. Commands are
+ * expected to clean up after themselves when unsubscribed from.
+ */
+final class SenseCommandQueue {
+    /**
+     * The priorities a command can be queued with. Commands with a higher
+     * priority are started before any waiting commands with a lower priority.
+     */
+    enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private final LoggerFacade logger;
+    private final Scheduler scheduler;
+
+    private final LinkedList<Entry<?>> waiting = new LinkedList<>();
+    private @Nullable Entry<?> running;
+
+    private long lastWaitTimeMs = 0;
+
+
+    SenseCommandQueue(@NonNull LoggerFacade logger, @NonNull Scheduler scheduler) {
+        this.logger = logger;
+        this.scheduler = scheduler;
+    }
+
+
+    //region Queuing
+
+    /**
+     * Wraps a command so that it is added to the queue when subscribed to,
+     * and only subscribed to itself once it reaches the front of the queue.
+     *
+     * @param name      The name of the command, used for logging.
+     * @param priority  The priority of the command.
+     * @param command   The command to run.
+     */
+    <T> Observable<T> enqueue(@NonNull final String name,
+                              @NonNull final Priority priority,
+                              @NonNull final Observable<T> command) {
+        return Observable.create(new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(Subscriber<? super T> subscriber) {
+                final Entry<T> entry = new Entry<>(name, priority, command,
+                                                   subscriber, scheduler.now());
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        remove(entry);
+                        cancelRunning(entry);
+                    }
+                }));
+
+                synchronized (waiting) {
+                    int index = 0;
+                    for (final Entry<?> other : waiting) {
+                        if (other.priority.compareTo(priority) > 0) {
+                            break;
+                        }
+                        index++;
+                    }
+                    waiting.add(index, entry);
+                }
+
+                startNext();
+            }
+        });
+    }
+
+    /**
+     * Removes every command that is waiting to be started,
+     * passing a given error to each of their subscribers.
+     */
+    void cancelWaiting(@NonNull Throwable error) {
+        final List<Entry<?>> cancelled;
+        synchronized (waiting) {
+            cancelled = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+
+        for (final Entry<?> entry : cancelled) {
+            logger.info(GattPeripheral.LOG_TAG, "Cancelling queued command " + entry.name);
+            entry.subscriber.onError(error);
+        }
+    }
+
+    private void remove(@NonNull Entry<?> entry) {
+        synchronized (waiting) {
+            final Iterator<Entry<?>> iterator = waiting.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == entry) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void cancelRunning(@NonNull Entry<?> entry) {
+        synchronized (waiting) {
+            if (running != entry || entry.terminated) {
+                return;
+            }
+        }
+
+        logger.info(GattPeripheral.LOG_TAG, "Cancelling running command " + entry.name);
+        entry.cancel();
+        finished(entry);
+    }
+
+    private void startNext() {
+        final Entry<?> next;
+        final int stillWaiting;
+        synchronized (waiting) {
+            if (running != null || waiting.isEmpty()) {
+                return;
+            }
+
+            next = waiting.removeFirst();
+            stillWaiting = waiting.size();
+            this.running = next;
+
+            this.lastWaitTimeMs = scheduler.now() - next.queuedAt;
+        }
+
+        logger.info(GattPeripheral.LOG_TAG,
+                    "Starting " + next.name + " after " + lastWaitTimeMs +
+                            " ms in queue (" + stillWaiting + " waiting)");
+        next.start();
+    }
+
+    private void finished(@NonNull Entry<?> entry) {
+        synchronized (waiting) {
+            if (running == entry) {
+                this.running = null;
+            }
+        }
+
+        startNext();
+    }
+
+    //endregion
+
+
+    //region Attributes
+
+    /**
+     * Returns the number of commands waiting to be started.
+     */
+    int getQueueDepth() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * Returns whether or not a command is currently running.
+     */
+    boolean isRunning() {
+        synchronized (waiting) {
+            return (running != null);
+        }
+    }
+
+    /**
+     * Returns how long the most recently started command waited in the queue.
+     */
+    long getLastWaitTimeMs() {
+        synchronized (waiting) {
+            return lastWaitTimeMs;
+        }
+    }
+
+    //endregion
+
+
+    private final class Entry<T> {
+        final String name;
+        final Priority priority;
+        final Observable<T> command;
+        final Subscriber<? super T> subscriber;
+        final long queuedAt;
+        @Nullable Subscription commandSubscription;
+        volatile boolean terminated = false;
+
+        Entry(@NonNull String name,
+              @NonNull Priority priority,
+              @NonNull Observable<T> command,
+              @NonNull Subscriber<? super T> subscriber,
+              long queuedAt) {
+            this.name = name;
+            this.priority = priority;
+            this.command = command;
+            this.subscriber = subscriber;
+            this.queuedAt = queuedAt;
+        }
+
+        void start() {
+            // Not tied to the entry's subscriber, so that the queue can tell a
+            // cancelled command apart from one that finished on its own.
+            final Subscriber<T> commandSubscriber = new Subscriber<T>() {
+                @Override
+                public void onCompleted() {
+                    Entry.this.terminated = true;
+                    try {
+                        if (!subscriber.isUnsubscribed()) {
+                            subscriber.onCompleted();
+                        }
+                    } finally {
+                        finished(Entry.this);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    Entry.this.terminated = true;
+                    try {
+                        if (!subscriber.isUnsubscribed()) {
+                            subscriber.onError(e);
+                        }
+                    } finally {
+                        finished(Entry.this);
+                    }
+                }
+
+                @Override
+                public void onNext(T value) {
+                    if (!subscriber.isUnsubscribed()) {
+                        subscriber.onNext(value);
+                    }
+                }
+            };
+            this.commandSubscription = commandSubscriber;
+            command.subscribe(commandSubscriber);
+        }
+
+        void cancel() {
+            if (commandSubscription != null) {
+                commandSubscription.unsubscribe();
+            }
+        }
+    }
+}
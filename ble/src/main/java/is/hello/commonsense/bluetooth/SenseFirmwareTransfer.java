@@ -0,0 +1,398 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.commonsense.bluetooth.errors.SenseFirmwareTransferError;
+import is.hello.commonsense.bluetooth.model.FirmwareImage;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * Streams a firmware image to Sense in windows of chunks. Every chunk in a window is
+ * written back to back without waiting on the chunk before it, and Sense is asked which
+ * chunks it received intact only once per window. Each chunk carries its own CRC-32, so
+ * Sense can reject a corrupt chunk, and the transfer resumes from the first rejected chunk.
+ * <p />
+ * Progress is saved to a {@link CheckpointStore} after every window, so a transfer that
+ * is interrupted by a lost connection resumes where it left off instead of restarting.
+ * <p />
+ * The command protocol has no messages for carrying an image, only for asking Sense to
+ * receive one. A transfer is started with {@link SensePeripheral#beginFirmwareUpdate()},
+ * after which Sense restarts into its bootloader, and the image is sent through a
+ * {@link Transport} for the bootloader's DFU service.
+ */
+public final class SenseFirmwareTransfer {
+    /**
+     * The number of image bytes in each chunk by default.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    /**
+     * The number of chunks written before asking Sense to confirm them by default.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
+    /**
+     * The number of windows in a row that may fail to make any progress before
+     * the transfer is abandoned with a {@link SenseFirmwareTransferError}.
+     */
+    public static final int MAXIMUM_ATTEMPTS = 3;
+
+    private final String deviceId;
+    private final FirmwareImage image;
+    private final Transport transport;
+    private final CheckpointStore checkpointStore;
+    private final Scheduler clock;
+    private final LoggerFacade logger;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+
+    //region Lifecycle
+
+    /**
+     * @param deviceId          The device id of the Sense being updated.
+     * @param image             The image to send.
+     * @param transport         The connection to the Sense being updated.
+     * @param checkpointStore   Where progress is saved between attempts.
+     * @param clock             Used to measure throughput.
+     * @param logger            Used to log progress.
+     */
+    public SenseFirmwareTransfer(@NonNull String deviceId,
+                                 @NonNull FirmwareImage image,
+                                 @NonNull Transport transport,
+                                 @NonNull CheckpointStore checkpointStore,
+                                 @NonNull Scheduler clock,
+                                 @NonNull LoggerFacade logger) {
+        this.deviceId = deviceId;
+        this.image = image;
+        this.transport = transport;
+        this.checkpointStore = checkpointStore;
+        this.clock = clock;
+        this.logger = logger;
+    }
+
+    //endregion
+
+
+    //region Attributes
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize < 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets how many chunks are written before Sense is asked to confirm them.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize < 1");
+        }
+        this.windowSize = windowSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    //endregion
+
+
+    //region Transferring
+
+    /**
+     * Sends the image, resuming from the last checkpoint if there is one. Emits progress
+     * after every window, and a final progress update once Sense has accepted the image.
+     * The checkpoint is kept if the transfer fails, and cleared once it succeeds.
+     */
+    @CheckResult
+    public Observable<Progress> transfer() {
+        return Observable.defer(new Func0<Observable<Progress>>() {
+            @Override
+            public Observable<Progress> call() {
+                final int checkpoint = Math.min(checkpointStore.load(deviceId, image.getCrc32()), image.getLength());
+                logger.info(GattPeripheral.LOG_TAG, "Transferring " + image + " from checkpoint " + checkpoint);
+
+                return transport.begin(image.getLength(), image.getCrc32(), checkpoint)
+                                .flatMap(new Func1<Integer, Observable<Progress>>() {
+                                    @Override
+                                    public Observable<Progress> call(Integer resumeOffset) {
+                                        final int startOffset = Math.max(0, Math.min(resumeOffset, checkpoint));
+                                        final Session session = new Session(startOffset, clock.now(),
+                                                                            windowSize, chunkSize);
+                                        return sendWindows(session).concatWith(finish(session));
+                                    }
+                                });
+            }
+        });
+    }
+
+    /**
+     * Sends one window at a time until Sense has confirmed the whole image,
+     * emitting progress after each window.
+     */
+    private Observable<Progress> sendWindows(@NonNull final Session session) {
+        if (session.offset >= image.getLength()) {
+            return Observable.empty();
+        }
+
+        return Observable.defer(new Func0<Observable<Progress>>() {
+            @Override
+            public Observable<Progress> call() {
+                return sendNextWindow(session);
+            }
+        }).repeat().takeUntil(new Func1<Progress, Boolean>() {
+            @Override
+            public Boolean call(Progress progress) {
+                return (progress.confirmedBytes >= image.getLength());
+            }
+        });
+    }
+
+    private Observable<Progress> sendNextWindow(@NonNull final Session session) {
+        final int offset = session.offset;
+        final int windowEnd = Math.min(image.getLength(), offset + (chunkSize * windowSize));
+        return sendWindow(session, offset, windowEnd).flatMap(new Func1<Integer, Observable<Progress>>() {
+            @Override
+            public Observable<Progress> call(Integer confirmedOffset) {
+                if (confirmedOffset > offset) {
+                    session.attemptsWithoutProgress = 0;
+                    checkpointStore.save(deviceId, image.getCrc32(), confirmedOffset);
+                } else if (++session.attemptsWithoutProgress >= MAXIMUM_ATTEMPTS) {
+                    return Observable.error(new SenseFirmwareTransferError(offset,
+                                                                           session.attemptsWithoutProgress));
+                }
+
+                if (confirmedOffset < windowEnd) {
+                    logger.warn(GattPeripheral.LOG_TAG,
+                                "Sense rejected chunks after " + confirmedOffset + ", resending", null);
+                }
+
+                session.offset = Math.max(offset, confirmedOffset);
+                return Observable.just(session.progress(session.offset, false));
+            }
+        });
+    }
+
+    /**
+     * Tells Sense the image has been sent once subscribed to,
+     * emitting final progress if Sense accepts it.
+     */
+    private Observable<Progress> finish(@NonNull final Session session) {
+        return Observable.defer(new Func0<Observable<Progress>>() {
+            @Override
+            public Observable<Progress> call() {
+                return transport.finish(image.getCrc32())
+                                .toList()
+                                .map(new Func1<List<Void>, Progress>() {
+                                    @Override
+                                    public Progress call(List<Void> ignored) {
+                                        checkpointStore.clear(deviceId, image.getCrc32());
+                                        logger.info(GattPeripheral.LOG_TAG, "Transferred " + image);
+                                        return session.progress(image.getLength(), true);
+                                    }
+                                });
+            }
+        });
+    }
+
+    /**
+     * Writes every chunk in <code>[start, end)</code> without waiting on confirmation
+     * of each, then emits the offset Sense has received intact chunks up to.
+     */
+    private Observable<Integer> sendWindow(@NonNull Session session, int start, int end) {
+        final List<Observable<Void>> writes = new ArrayList<>();
+        int chunkIndex = 0;
+        for (int offset = start; offset < end; offset += chunkSize) {
+            final byte[] chunk = session.chunks[chunkIndex++];
+            final int length = image.read(offset, chunk);
+            writes.add(transport.writeChunk(offset, chunk, length, FirmwareImage.crc32(chunk, length)));
+        }
+
+        return Observable.merge(writes, windowSize)
+                         .toList()
+                         .flatMap(new Func1<List<Void>, Observable<Integer>>() {
+                             @Override
+                             public Observable<Integer> call(List<Void> ignored) {
+                                 return transport.confirm();
+                             }
+                         });
+    }
+
+    //endregion
+
+
+    /**
+     * Tracks a single attempt at transferring an image.
+     */
+    private final class Session {
+        final int startOffset;
+        final long startedAt;
+
+        /**
+         * The buffers chunks are read into, one for each chunk in a window.
+         * Reused for every window, as a window is always confirmed before
+         * the next one is read.
+         */
+        final byte[][] chunks;
+
+        int offset;
+        int attemptsWithoutProgress = 0;
+
+        Session(int startOffset, long startedAt, int windowSize, int chunkSize) {
+            this.startOffset = startOffset;
+            this.startedAt = startedAt;
+            this.chunks = new byte[windowSize][chunkSize];
+            this.offset = startOffset;
+        }
+
+        Progress progress(int offset, boolean finished) {
+            final long elapsedMs = clock.now() - startedAt;
+            final long bytesSent = offset - startOffset;
+            final double bytesPerSecond = (elapsedMs > 0) ?
+                    bytesSent * (TimeUnit.SECONDS.toMillis(1) / (double) elapsedMs) : 0.0;
+            final long remainingMs;
+            if (finished) {
+                remainingMs = 0;
+            } else if (bytesPerSecond > 0.0) {
+                remainingMs = (long) ((image.getLength() - offset) / bytesPerSecond *
+                        TimeUnit.SECONDS.toMillis(1));
+            } else {
+                remainingMs = -1;
+            }
+            return new Progress(offset, image.getLength(), startOffset,
+                                bytesPerSecond, remainingMs, finished);
+        }
+    }
+
+    /**
+     * Describes how far along a transfer is.
+     */
+    public static final class Progress {
+        /**
+         * The number of bytes Sense has confirmed receiving intact.
+         */
+        public final int confirmedBytes;
+
+        public final int totalBytes;
+
+        /**
+         * The offset the transfer resumed from, <code>0</code> if it started from the beginning.
+         */
+        public final int resumedFrom;
+
+        /**
+         * The throughput of the current attempt, not counting resumed bytes.
+         */
+        public final double bytesPerSecond;
+
+        /**
+         * The estimated time until the transfer finishes, or
+         * <code>-1</code> if there is not enough data to estimate it yet.
+         */
+        public final long remainingMs;
+
+        public final boolean finished;
+
+        Progress(int confirmedBytes,
+                 int totalBytes,
+                 int resumedFrom,
+                 double bytesPerSecond,
+                 long remainingMs,
+                 boolean finished) {
+            this.confirmedBytes = confirmedBytes;
+            this.totalBytes = totalBytes;
+            this.resumedFrom = resumedFrom;
+            this.bytesPerSecond = bytesPerSecond;
+            this.remainingMs = remainingMs;
+            this.finished = finished;
+        }
+
+        /**
+         * Returns how far along the transfer is, from <code>0.0</code> to <code>1.0</code>.
+         */
+        public double getFraction() {
+            return (totalBytes > 0) ? confirmedBytes / (double) totalBytes : 1.0;
+        }
+
+        @Override
+        public String toString() {
+            return "Progress{" +
+                    "confirmedBytes=" + confirmedBytes +
+                    ", totalBytes=" + totalBytes +
+                    ", resumedFrom=" + resumedFrom +
+                    ", bytesPerSecond=" + bytesPerSecond +
+                    ", remainingMs=" + remainingMs +
+                    ", finished=" + finished +
+                    '}';
+        }
+    }
+
+    /**
+     * The connection to the bootloader of the Sense receiving an image.
+     */
+    public interface Transport {
+        /**
+         * Prepares Sense to receive an image.
+         *
+         * @param resumeOffset  The offset the phone would like to resume from.
+         * @return  The offset Sense agrees to resume from. May be less than
+         *          <code>resumeOffset</code> if Sense discarded part of the image.
+         */
+        Observable<Integer> begin(int imageLength, long imageCrc32, int resumeOffset);
+
+        /**
+         * Writes a single chunk of the image. Completes once the chunk has been written,
+         * without waiting for Sense to verify it.
+         * <p />
+         * The chunk array is reused for later windows once the write completes,
+         * so it must not be retained.
+         *
+         * @param chunk     The array holding the chunk.
+         * @param length    The length of the chunk, at the start of the array.
+         */
+        Observable<Void> writeChunk(int offset, @NonNull byte[] chunk, int length, long chunkCrc32);
+
+        /**
+         * Returns the offset Sense has received contiguous, intact chunks up to.
+         * Sense discards every chunk after the first chunk that fails its CRC.
+         */
+        Observable<Integer> confirm();
+
+        /**
+         * Tells Sense the whole image has been sent. Should error
+         * if the image Sense received does not match the CRC.
+         */
+        Observable<Void> finish(long imageCrc32);
+    }
+
+    /**
+     * Remembers how much of an image has been confirmed by each Sense.
+     */
+    public interface CheckpointStore {
+        /**
+         * Returns the confirmed offset for an image on a given Sense,
+         * or <code>0</code> if there is none.
+         */
+        int load(@NonNull String deviceId, long imageCrc32);
+        void save(@NonNull String deviceId, long imageCrc32, int offset);
+        void clear(@NonNull String deviceId, long imageCrc32);
+    }
+}
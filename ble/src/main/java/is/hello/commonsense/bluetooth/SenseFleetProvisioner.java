@@ -0,0 +1,401 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.commonsense.bluetooth.errors.SenseSetWifiValidationError;
+import is.hello.commonsense.bluetooth.model.SenseConnectToWiFiUpdate;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.wifi_endpoint;
+import is.hello.commonsense.util.ConnectProgress;
+import is.hello.commonsense.util.Functions;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.functions.Func2;
+
+/**
+ * Provisions several Senses at once. Each Sense is connected to, told to join a WiFi
+ * network, linked to an account, paired with a pill, told to push its data, and then
+ * disconnected from to free up its connection for the next Sense.
+ * <p />
+ * The number of Senses connected to at any one time is bounded, as phones only allow
+ * a handful of simultaneous GATT connections. A Sense that fails to provision is
+ * retried on its own, and a Sense that still fails is reported without affecting
+ * any of the other Senses being provisioned.
+ */
+public final class SenseFleetProvisioner {
+    private static final String LOG_TAG = SenseFleetProvisioner.class.getSimpleName();
+
+    /**
+     * The number of Senses connected to at once by default. Most phones allow
+     * somewhere between four and seven simultaneous GATT connections.
+     */
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_CONNECTIONS = 4;
+
+    /**
+     * The largest number of Senses that may be connected to at once.
+     */
+    public static final int MAXIMUM_CONCURRENT_CONNECTIONS = 7;
+
+    /**
+     * The number of times each Sense is attempted by default before it is reported as failed.
+     */
+    public static final int DEFAULT_MAXIMUM_ATTEMPTS = 3;
+
+    private final Scheduler scheduler;
+    private final LoggerFacade logger;
+
+    private final String ssid;
+    private final wifi_endpoint.sec_type securityType;
+    private final @Nullable String password;
+    private final String accountToken;
+
+    private int maximumConcurrentConnections = DEFAULT_MAXIMUM_CONCURRENT_CONNECTIONS;
+    private int maximumAttempts = DEFAULT_MAXIMUM_ATTEMPTS;
+
+    private final Object metricsLock = new Object();
+    private long startedAt = -1;
+    private int inFlightCount = 0;
+    private int succeededCount = 0;
+    private int failedCount = 0;
+    private int retryCount = 0;
+
+
+    //region Lifecycle
+
+    /**
+     * @param stack         The stack the peripherals to provision were discovered with.
+     * @param ssid          The network each Sense should join.
+     * @param securityType  The security type of the network.
+     * @param password      The password of the network, if it is not open.
+     * @param accountToken  The token of the account each Sense and pill should be linked to.
+     */
+    public SenseFleetProvisioner(@NonNull BluetoothStack stack,
+                                 @NonNull String ssid,
+                                 @NonNull wifi_endpoint.sec_type securityType,
+                                 @Nullable String password,
+                                 @NonNull String accountToken) {
+        this.scheduler = stack.getScheduler();
+        this.logger = stack.getLogger();
+        this.ssid = ssid;
+        this.securityType = securityType;
+        this.password = password;
+        this.accountToken = accountToken;
+    }
+
+    //endregion
+
+
+    //region Attributes
+
+    /**
+     * Sets how many Senses may be connected to at once. Should not exceed the
+     * number of simultaneous GATT connections supported by the phone.
+     */
+    public void setMaximumConcurrentConnections(int maximumConcurrentConnections) {
+        if (maximumConcurrentConnections < 1 ||
+                maximumConcurrentConnections > MAXIMUM_CONCURRENT_CONNECTIONS) {
+            throw new IllegalArgumentException("maximumConcurrentConnections out of range");
+        }
+        this.maximumConcurrentConnections = maximumConcurrentConnections;
+    }
+
+    public int getMaximumConcurrentConnections() {
+        return maximumConcurrentConnections;
+    }
+
+    /**
+     * Sets how many times each Sense is attempted before it is reported as failed.
+     */
+    public void setMaximumAttempts(int maximumAttempts) {
+        if (maximumAttempts < 1) {
+            throw new IllegalArgumentException("maximumAttempts < 1");
+        }
+        this.maximumAttempts = maximumAttempts;
+    }
+
+    public int getMaximumAttempts() {
+        return maximumAttempts;
+    }
+
+    //endregion
+
+
+    //region Provisioning
+
+    /**
+     * Provisions a list of Senses. Emits a result for each Sense as it finishes,
+     * in the order they finish, and completes once every Sense has finished.
+     * Never errors, failed Senses are reported through {@link Result#getError()}.
+     */
+    @CheckResult
+    public Observable<Result> provision(@NonNull List<SensePeripheral> peripherals) {
+        final Observable<Observable<Result>> provisions =
+                Observable.from(peripherals)
+                          .map(new Func1<SensePeripheral, Observable<Result>>() {
+                              @Override
+                              public Observable<Result> call(SensePeripheral peripheral) {
+                                  return provisionOne(peripheral);
+                              }
+                          });
+        return Observable.merge(provisions, maximumConcurrentConnections);
+    }
+
+    private Observable<Result> provisionOne(@NonNull final SensePeripheral peripheral) {
+        final int[] attempts = {0};
+        final long[] provisionStartedAt = {0};
+
+        final Observable<String> attempt = Observable.defer(new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                if (attempts[0]++ > 0) {
+                    synchronized (metricsLock) {
+                        retryCount++;
+                    }
+                    logger.info(LOG_TAG, "Retrying " + peripheral + ", attempt " + attempts[0]);
+                }
+                return runSteps(peripheral);
+            }
+        });
+        final int maximumAttempts = this.maximumAttempts;
+        return attempt.retry(new Func2<Integer, Throwable, Boolean>() {
+            @Override
+            public Boolean call(Integer attempt, Throwable error) {
+                return (attempt < maximumAttempts && isRetryable(error));
+            }
+        }).map(new Func1<String, Result>() {
+            @Override
+            public Result call(String pillId) {
+                final long durationMs = scheduler.now() - provisionStartedAt[0];
+                logger.info(LOG_TAG, "Provisioned " + peripheral + " in " + durationMs + " ms");
+                synchronized (metricsLock) {
+                    succeededCount++;
+                }
+                return new Result(peripheral, pillId, null, attempts[0], durationMs);
+            }
+        }).onErrorReturn(new Func1<Throwable, Result>() {
+            @Override
+            public Result call(Throwable error) {
+                final long durationMs = scheduler.now() - provisionStartedAt[0];
+                logger.error(LOG_TAG, "Could not provision " + peripheral, error);
+                synchronized (metricsLock) {
+                    failedCount++;
+                }
+                return new Result(peripheral, null, error, attempts[0], durationMs);
+            }
+        }).doOnSubscribe(new Action0() {
+            @Override
+            public void call() {
+                final long now = scheduler.now();
+                provisionStartedAt[0] = now;
+                synchronized (metricsLock) {
+                    if (startedAt == -1) {
+                        SenseFleetProvisioner.this.startedAt = now;
+                    }
+                    inFlightCount++;
+                }
+            }
+        }).finallyDo(new Action0() {
+            @Override
+            public void call() {
+                synchronized (metricsLock) {
+                    inFlightCount--;
+                }
+            }
+        });
+    }
+
+    private Observable<String> runSteps(@NonNull final SensePeripheral peripheral) {
+        final Observable<String> steps =
+                peripheral.connect().last()
+                          .flatMap(new Func1<ConnectProgress, Observable<SenseConnectToWiFiUpdate>>() {
+                              @Override
+                              public Observable<SenseConnectToWiFiUpdate> call(ConnectProgress ignored) {
+                                  return peripheral.connectToWiFiNetwork(ssid, securityType, password).last();
+                              }
+                          })
+                          .flatMap(new Func1<SenseConnectToWiFiUpdate, Observable<Void>>() {
+                              @Override
+                              public Observable<Void> call(SenseConnectToWiFiUpdate ignored) {
+                                  return peripheral.linkAccount(accountToken);
+                              }
+                          })
+                          .flatMap(new Func1<Void, Observable<String>>() {
+                              @Override
+                              public Observable<String> call(Void ignored) {
+                                  return peripheral.pairPill(accountToken);
+                              }
+                          })
+                          .flatMap(new Func1<String, Observable<String>>() {
+                              @Override
+                              public Observable<String> call(String pillId) {
+                                  return peripheral.pushData()
+                                                   .map(Functions.<Void, String>createMapperToValue(pillId));
+                              }
+                          });
+
+        // Frees up the connection for the next Sense, whether or not provisioning succeeded.
+        return steps.flatMap(new Func1<String, Observable<String>>() {
+            @Override
+            public Observable<String> call(String pillId) {
+                return peripheral.disconnect()
+                                 .map(Functions.<SensePeripheral, String>createMapperToValue(pillId));
+            }
+        }).onErrorResumeNext(new Func1<Throwable, Observable<String>>() {
+            @Override
+            public Observable<String> call(Throwable error) {
+                final Observable<String> failure = Observable.error(error);
+                if (!peripheral.isConnected()) {
+                    return failure;
+                }
+
+                return peripheral.disconnect()
+                                 .flatMap(new Func1<SensePeripheral, Observable<String>>() {
+                                     @Override
+                                     public Observable<String> call(SensePeripheral ignored) {
+                                         return failure;
+                                     }
+                                 })
+                                 .onErrorResumeNext(failure);
+            }
+        });
+    }
+
+    private static boolean isRetryable(@NonNull Throwable error) {
+        return !(error instanceof SenseSetWifiValidationError);
+    }
+
+    //endregion
+
+
+    //region Metrics
+
+    /**
+     * Returns the number of Senses currently being provisioned.
+     */
+    public int getInFlightCount() {
+        synchronized (metricsLock) {
+            return inFlightCount;
+        }
+    }
+
+    /**
+     * Returns the number of Senses successfully provisioned.
+     */
+    public int getSucceededCount() {
+        synchronized (metricsLock) {
+            return succeededCount;
+        }
+    }
+
+    /**
+     * Returns the number of Senses that could not be provisioned after every attempt.
+     */
+    public int getFailedCount() {
+        synchronized (metricsLock) {
+            return failedCount;
+        }
+    }
+
+    /**
+     * Returns the number of times any Sense has been retried.
+     */
+    public int getRetryCount() {
+        synchronized (metricsLock) {
+            return retryCount;
+        }
+    }
+
+    /**
+     * Returns the number of Senses successfully provisioned per hour since
+     * the first Sense started provisioning, or <code>0</code> if none have.
+     */
+    public double getSucceededPerHour() {
+        synchronized (metricsLock) {
+            if (startedAt == -1) {
+                return 0.0;
+            }
+
+            final long elapsedMs = scheduler.now() - startedAt;
+            if (elapsedMs <= 0) {
+                return 0.0;
+            }
+            return succeededCount * (TimeUnit.HOURS.toMillis(1) / (double) elapsedMs);
+        }
+    }
+
+    //endregion
+
+
+    /**
+     * The outcome of provisioning a single Sense.
+     */
+    public static final class Result {
+        private final SensePeripheral peripheral;
+        private final @Nullable String pillId;
+        private final @Nullable Throwable error;
+        private final int attempts;
+        private final long durationMs;
+
+        Result(@NonNull SensePeripheral peripheral,
+               @Nullable String pillId,
+               @Nullable Throwable error,
+               int attempts,
+               long durationMs) {
+            this.peripheral = peripheral;
+            this.pillId = pillId;
+            this.error = error;
+            this.attempts = attempts;
+            this.durationMs = durationMs;
+        }
+
+        public SensePeripheral getPeripheral() {
+            return peripheral;
+        }
+
+        public boolean isSuccess() {
+            return (error == null);
+        }
+
+        /**
+         * Returns the device id of the pill paired with the Sense, if provisioning succeeded.
+         */
+        public @Nullable String getPillId() {
+            return pillId;
+        }
+
+        public @Nullable Throwable getError() {
+            return error;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Returns how long the Sense took to provision, including every retry.
+         */
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "peripheral=" + peripheral +
+                    ", pillId='" + pillId + '\'' +
+                    ", error=" + error +
+                    ", attempts=" + attempts +
+                    ", durationMs=" + durationMs +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package is.hello.commonsense.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.commonsense.bluetooth.model.SenseHardwareVersion;
+
+/**
+ * Remembers what was learned about each Sense across connections and process restarts,
+ * keyed by device id. Restoring a peripheral from the store allows the first command
+ * sent after reconnecting to use the right command version, lets {@link SensePeripheral#connect()}
+ * skip bonding with a Sense that is still bonded, and resumes adaptive write pacing
+ * where the last connection left off.
+ * <p />
+ * Metadata is only restored into a peripheral with the same address it was saved from.
+ */
+public final class SenseMetadataStore {
+    @VisibleForTesting static final String PREFERENCES_NAME = "is.hello.commonsense.sense_metadata";
+
+    private static final String KEY_ADDRESS = ".address";
+    private static final String KEY_COMMAND_VERSION = ".command_version";
+    private static final String KEY_HARDWARE_VERSION = ".hardware_version";
+    private static final String KEY_FIRMWARE_VERSION = ".firmware_version";
+    private static final String KEY_BOND_STATUS = ".bond_status";
+    private static final String KEY_WRITE_WINDOW_SIZE = ".write_window_size";
+    private static final String KEY_WRITE_GAP_MS = ".write_gap_ms";
+    private static final String KEY_SAVED_AT = ".saved_at";
+
+    private static final String[] KEYS = {
+            KEY_ADDRESS,
+            KEY_COMMAND_VERSION,
+            KEY_HARDWARE_VERSION,
+            KEY_FIRMWARE_VERSION,
+            KEY_BOND_STATUS,
+            KEY_WRITE_WINDOW_SIZE,
+            KEY_WRITE_GAP_MS,
+            KEY_SAVED_AT,
+    };
+
+    private static final int NO_FIRMWARE_VERSION = -1;
+
+    private final SharedPreferences preferences;
+
+
+    //region Lifecycle
+
+    public SenseMetadataStore(@NonNull Context context) {
+        this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+    }
+
+    @VisibleForTesting
+    SenseMetadataStore(@NonNull SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    //endregion
+
+
+    //region Storage
+
+    /**
+     * Returns the metadata saved for a given device id, or <code>null</code> if there is none.
+     */
+    public @Nullable Metadata get(@NonNull String deviceId) {
+        final String address = preferences.getString(deviceId + KEY_ADDRESS, null);
+        if (address == null) {
+            return null;
+        }
+
+        SenseHardwareVersion hardwareVersion;
+        try {
+            hardwareVersion = SenseHardwareVersion.valueOf(
+                    preferences.getString(deviceId + KEY_HARDWARE_VERSION,
+                                          SenseHardwareVersion.UNKNOWN.toString()));
+        } catch (IllegalArgumentException e) {
+            hardwareVersion = SenseHardwareVersion.UNKNOWN;
+        }
+
+        final int firmwareVersion = preferences.getInt(deviceId + KEY_FIRMWARE_VERSION,
+                                                       NO_FIRMWARE_VERSION);
+        return new Metadata(deviceId,
+                            address,
+                            preferences.getInt(deviceId + KEY_COMMAND_VERSION,
+                                               SensePeripheral.COMMAND_VERSION_PVT),
+                            hardwareVersion,
+                            firmwareVersion != NO_FIRMWARE_VERSION ? firmwareVersion : null,
+                            preferences.getInt(deviceId + KEY_BOND_STATUS,
+                                               GattPeripheral.BOND_NONE),
+                            preferences.getInt(deviceId + KEY_WRITE_WINDOW_SIZE,
+                                               SensePeripheral.DEFAULT_WRITE_WINDOW_SIZE),
+                            preferences.getLong(deviceId + KEY_WRITE_GAP_MS, 0),
+                            preferences.getLong(deviceId + KEY_SAVED_AT, 0));
+    }
+
+    /**
+     * Saves what has been learned about a peripheral. Should be called
+     * after a successful connection, and again after commands have been
+     * sent so that the latest command version and pacing are captured.
+     *
+     * @return Whether or not the peripheral could be saved.
+     */
+    public boolean save(@NonNull SensePeripheral peripheral) {
+        final String deviceId = peripheral.getDeviceId();
+        if (deviceId == null) {
+            return false;
+        }
+
+        final String address = peripheral.getAddress();
+        final Integer firmwareVersion = peripheral.getCachedFirmwareVersion();
+        final WritePacer pacer = WritePacer.forAddress(address);
+        preferences.edit()
+                   .putString(deviceId + KEY_ADDRESS, address)
+                   .putInt(deviceId + KEY_COMMAND_VERSION, peripheral.getCommandVersion())
+                   .putString(deviceId + KEY_HARDWARE_VERSION,
+                              peripheral.getAdvertisedHardwareVersion().toString())
+                   .putInt(deviceId + KEY_FIRMWARE_VERSION,
+                           firmwareVersion != null ? firmwareVersion : NO_FIRMWARE_VERSION)
+                   .putInt(deviceId + KEY_BOND_STATUS, peripheral.getBondStatus())
+                   .putInt(deviceId + KEY_WRITE_WINDOW_SIZE, pacer.getWindowSize())
+                   .putLong(deviceId + KEY_WRITE_GAP_MS, pacer.getGapMs())
+                   .putLong(deviceId + KEY_SAVED_AT, System.currentTimeMillis())
+                   .apply();
+        return true;
+    }
+
+    /**
+     * Applies the metadata saved for a peripheral to it. Should be called
+     * before {@link SensePeripheral#connect()} to have any effect on bonding.
+     *
+     * @return Whether or not any metadata was applied.
+     */
+    public boolean restore(@NonNull SensePeripheral peripheral) {
+        final String deviceId = peripheral.getDeviceId();
+        if (deviceId == null) {
+            return false;
+        }
+
+        final Metadata metadata = get(deviceId);
+        if (metadata == null || !metadata.address.equals(peripheral.getAddress())) {
+            return false;
+        }
+
+        peripheral.restoreMetadata(metadata.commandVersion,
+                                   metadata.bondStatus == GattPeripheral.BOND_BONDED);
+        WritePacer.forAddress(metadata.address)
+                  .restore(metadata.writeWindowSize, metadata.writeGapMs);
+        return true;
+    }
+
+    /**
+     * Removes the metadata saved for a given device id. Should be called
+     * when a Sense is factory reset or unpaired from the phone.
+     */
+    public void forget(@NonNull String deviceId) {
+        final SharedPreferences.Editor editor = preferences.edit();
+        for (final String key : KEYS) {
+            editor.remove(deviceId + key);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Removes the metadata saved for every device.
+     */
+    public void forgetAll() {
+        preferences.edit()
+                   .clear()
+                   .apply();
+    }
+
+    //endregion
+
+
+    /**
+     * What was known about a Sense when it was last saved.
+     */
+    public static final class Metadata {
+        public final String deviceId;
+        public final String address;
+        public final int commandVersion;
+        public final SenseHardwareVersion hardwareVersion;
+        public final @Nullable Integer firmwareVersion;
+        public final int bondStatus;
+        public final int writeWindowSize;
+        public final long writeGapMs;
+        public final long savedAt;
+
+        Metadata(@NonNull String deviceId,
+                 @NonNull String address,
+                 int commandVersion,
+                 @NonNull SenseHardwareVersion hardwareVersion,
+                 @Nullable Integer firmwareVersion,
+                 int bondStatus,
+                 int writeWindowSize,
+                 long writeGapMs,
+                 long savedAt) {
+            this.deviceId = deviceId;
+            this.address = address;
+            this.commandVersion = commandVersion;
+            this.hardwareVersion = hardwareVersion;
+            this.firmwareVersion = firmwareVersion;
+            this.bondStatus = bondStatus;
+            this.writeWindowSize = writeWindowSize;
+            this.writeGapMs = writeGapMs;
+            this.savedAt = savedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Metadata{" +
+                    "deviceId='" + deviceId + '\'' +
+                    ", address='" + address + '\'' +
+                    ", commandVersion=" + commandVersion +
+                    ", hardwareVersion=" + hardwareVersion +
+                    ", firmwareVersion=" + firmwareVersion +
+                    ", bondStatus=" + bondStatus +
+                    ", writeWindowSize=" + writeWindowSize +
+                    ", writeGapMs=" + writeGapMs +
+                    ", savedAt=" + savedAt +
+                    '}';
+        }
+    }
+}
@@ -5,14 +5,16 @@ import android.support.annotation.CheckResult;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.SimpleArrayMap;
 import android.text.TextUtils;
 
 import com.google.protobuf.ByteString;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -29,27 +31,37 @@ import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
 import is.hello.buruberi.util.Operation;
 import is.hello.commonsense.bluetooth.errors.BuruberiReportingProvider;
-import is.hello.commonsense.bluetooth.errors.SenseBusyError;
+import is.hello.commonsense.bluetooth.errors.SenseCommandCancelledError;
 import is.hello.commonsense.bluetooth.errors.SenseConnectWifiError;
 import is.hello.commonsense.bluetooth.errors.SenseNotFoundError;
 import is.hello.commonsense.bluetooth.errors.SensePeripheralError;
+import is.hello.commonsense.bluetooth.errors.SenseProvisionError;
 import is.hello.commonsense.bluetooth.errors.SenseSetWifiValidationError;
 import is.hello.commonsense.bluetooth.errors.SenseUnexpectedResponseError;
+import is.hello.commonsense.bluetooth.model.OutgoingPacketCursor;
+import is.hello.commonsense.bluetooth.model.PillTelemetry;
 import is.hello.commonsense.bluetooth.model.ProtobufPacketListener;
+import is.hello.commonsense.bluetooth.model.RoundTripEstimator;
 import is.hello.commonsense.bluetooth.model.SenseConnectToWiFiUpdate;
 import is.hello.commonsense.bluetooth.model.SenseHardwareVersion;
 import is.hello.commonsense.bluetooth.model.SenseLedAnimation;
 import is.hello.commonsense.bluetooth.model.SenseNetworkStatus;
+import is.hello.commonsense.bluetooth.model.SenseProvisionUpdate;
+import is.hello.commonsense.bluetooth.model.WifiAccessPointIndex;
 import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos;
 import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.wifi_endpoint;
 import is.hello.commonsense.util.ConnectProgress;
 import is.hello.commonsense.util.Functions;
 import rx.Observable;
 import rx.Observer;
+import rx.Scheduler;
 import rx.Subscriber;
 import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.subscriptions.Subscriptions;
 
 import static is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand;
 import static is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand.CommandType;
@@ -80,6 +92,29 @@ public class SensePeripheral {
      */
     public static final int COMMAND_VERSION_WEP_FIX = 1;
 
+    /**
+     * The command version used by the firmware that is able to reassemble
+     * command packets longer than {@link GattCharacteristic#PACKET_LENGTH}.
+     * <p />
+     * Provisional, no released firmware reports this version yet.
+     */
+    public static final int COMMAND_VERSION_LARGE_PACKETS = 2;
+
+    /**
+     * The command version used by the firmware that understands extended
+     * packet headers, and so can receive commands of any length.
+     * <p />
+     * Provisional, no released firmware reports this version yet.
+     *
+     * @see ProtobufPacketListener.HeaderFormat#EXTENDED
+     */
+    public static final int COMMAND_VERSION_EXTENDED_HEADER = 3;
+
+    /**
+     * Placeholder for the command version of a connection Sense has not responded on yet.
+     */
+    private static final int COMMAND_VERSION_UNKNOWN = -1;
+
     /**
      * Country codes supported by Sense during Wi-Fi scans. Literal enum
      * value corresponds to expected string value in Sense firmware.
@@ -100,11 +135,49 @@ public class SensePeripheral {
 
     private static final long STACK_OPERATION_TIMEOUT_S = 30;
     private static final long REMOVE_BOND_TIMEOUT_S = 15;
-    private static final long SIMPLE_COMMAND_TIMEOUT_S = 45;
-    private static final long ANIMATION_TIMEOUT_S = 45;
-    private static final long PAIR_PILL_TIMEOUT_S = 90; // Per Pang
+    static final long SIMPLE_COMMAND_TIMEOUT_S = 45;
+    static final long ANIMATION_TIMEOUT_S = 45;
+    static final long PAIR_PILL_TIMEOUT_S = 90; // Per Pang
     private static final long SET_WIFI_TIMEOUT_S = 90;
     private static final long WIFI_SCAN_TIMEOUT_S = 30;
+    private static final long PROVISION_TIMEOUT_S = 180;
+
+    private static final long WIFI_NETWORK_CACHE_TTL_S = 30;
+    private static final long PILL_ID_CACHE_TTL_S = 5 * 60;
+    private static final long VERSION_CACHE_TTL_S = 10 * 60;
+    private static final long PREFETCHED_WIFI_SCAN_TTL_S = 60;
+
+    /**
+     * The most distinct access points {@link #streamWifiNetworks(CountryCode)}
+     * holds onto for a subscriber that has not requested them yet.
+     */
+    static final int WIFI_STREAM_BUFFER_CAPACITY = 64;
+
+    /**
+     * The default ATT MTU used by every BLE connection before a larger one is negotiated.
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * The number of bytes of each ATT packet used by the opcode and attribute handle.
+     */
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    /**
+     * The maximum length of an attribute value, regardless of the negotiated MTU.
+     */
+    private static final int MAXIMUM_PACKET_LENGTH = 512;
+
+    /**
+     * The number of command packets kept in flight by default. Matches
+     * the behavior of stacks that only allow one pending write.
+     */
+    public static final int DEFAULT_WRITE_WINDOW_SIZE = 1;
+
+    /**
+     * The largest number of command packets that may be kept in flight.
+     */
+    public static final int MAXIMUM_WRITE_WINDOW_SIZE = 8;
 
     private final GattPeripheral gattPeripheral;
     private final LoggerFacade logger;
@@ -112,9 +185,32 @@ public class SensePeripheral {
     @VisibleForTesting GattCharacteristic commandCharacteristic;
     @VisibleForTesting GattCharacteristic responseCharacteristic;
 
-    private final ProtobufPacketListener packetListener;
+    @VisibleForTesting final ProtobufPacketListener packetListener;
+    private final SenseCommandQueue commandQueue;
+    private final SimpleArrayMap<String, Observable<?>> inFlightReads = new SimpleArrayMap<>();
+    private final SenseResponseCache responseCache;
+    private final WifiAccessPointIndex wifiAccessPointIndex;
+    private final SensePushChannel pushChannel;
+
+    @VisibleForTesting int commandVersion = COMMAND_VERSION_PVT;
+    @VisibleForTesting int connectionCommandVersion = COMMAND_VERSION_UNKNOWN;
+    private int negotiatedMtu = DEFAULT_MTU;
+    private int writeWindowSize = DEFAULT_WRITE_WINDOW_SIZE;
+    private boolean adaptiveWritePacing = false;
 
-    private int commandVersion = COMMAND_VERSION_PVT;
+    /**
+     * Whether or not the packet cursor of the packet listener is being written from.
+     * Only one large command may use it at a time, as its packet buffers are reused.
+     */
+    private boolean sharedCursorInUse = false;
+    private boolean persistentResponseSubscription = false;
+    private boolean responseSubscribed = false;
+    @VisibleForTesting int responseSubscriptionHolds = 0;
+    private ConnectPacing connectPacing = ConnectPacing.forModel(Build.MODEL);
+    private long lastConnectTimeSavedMs = 0;
+    private boolean previouslyBonded = false;
+    private boolean prefetchWifiScan = false;
+    private @Nullable CountryCode prefetchCountryCode;
 
 
     //region Lifecycle
@@ -184,7 +280,13 @@ public class SensePeripheral {
         this.logger = gattPeripheral.getStack().getLogger();
         this.gattPeripheral = gattPeripheral;
 
+        this.pushChannel = new SensePushChannel(logger);
         this.packetListener = new ProtobufPacketListener();
+        packetListener.setUnsolicitedListener(pushChannel);
+        this.commandQueue = new SenseCommandQueue(logger, gattPeripheral.getStack().getScheduler());
+        this.responseCache = new SenseResponseCache(gattPeripheral.getStack().getScheduler());
+        this.wifiAccessPointIndex = new WifiAccessPointIndex(gattPeripheral.getStack().getScheduler(),
+                                                             WifiAccessPointIndex.DEFAULT_MAXIMUM_AGE_MS);
     }
 
     //endregion
@@ -296,14 +398,32 @@ public class SensePeripheral {
         };
 
 
+        final ConnectPacing pacing = this.connectPacing;
+        final long[] pacingMs = {0};
+
+        Observable<ConnectProgress> bond;
+        if (previouslyBonded && getBondStatus() == GattPeripheral.BOND_BONDED) {
+            logger.info(LOG_TAG, "Bonded during a previous connection, skipping bond step");
+            bond = Observable.just(ConnectProgress.DISCOVERING_SERVICES);
+        } else {
+            bond = gattPeripheral.createBond().map(Functions.createMapperToValue(ConnectProgress.DISCOVERING_SERVICES));
+            if (pacing.isWaitForStableBond()) {
+                bond = bond.flatMap(new Func1<ConnectProgress, Observable<ConnectProgress>>() {
+                    @Override
+                    public Observable<ConnectProgress> call(ConnectProgress progress) {
+                        return awaitStableBond(pacingMs).map(Functions.createMapperToValue(progress));
+                    }
+                });
+            }
+        }
+
         final Observable<ConnectProgress> sequence = Observable.concat(
                 Observable.just(ConnectProgress.CONNECTING),
-                gattPeripheral.connect(connectFlags, timeout).map(Functions.createMapperToValue(ConnectProgress.BONDING))
-                        .delay(1, TimeUnit.SECONDS), // Some phones (like the S6) will cause the top board to crash if we try to bond to fast.
-                gattPeripheral.createBond().map(Functions.createMapperToValue(ConnectProgress.DISCOVERING_SERVICES))
-                        .delay(1, TimeUnit.SECONDS),
-                gattPeripheral.discoverService(SenseIdentifiers.SERVICE, timeout).map(onDiscoveredServices)
-                        .delay(1, TimeUnit.SECONDS)
+                paced(gattPeripheral.connect(connectFlags, timeout).map(Functions.createMapperToValue(ConnectProgress.BONDING)),
+                      pacing.getPostConnectDelayMs(), pacingMs),
+                paced(bond, pacing.getPostBondDelayMs(), pacingMs),
+                paced(gattPeripheral.discoverService(SenseIdentifiers.SERVICE, timeout).map(onDiscoveredServices),
+                      pacing.getPostDiscoveryDelayMs(), pacingMs)
         );
 
         return sequence.subscribeOn(gattPeripheral.getStack().getScheduler())
@@ -311,6 +431,17 @@ public class SensePeripheral {
                     @Override
                     public void call(ConnectProgress s) {
                         logger.info(LOG_TAG, "is " + s);
+
+                        if (s == ConnectProgress.CONNECTED) {
+                            final long savedMs = ConnectPacing.LEGACY_TOTAL_DELAY_MS - pacingMs[0];
+                            SensePeripheral.this.lastConnectTimeSavedMs = savedMs;
+                            logger.info(LOG_TAG, "Spent " + pacingMs[0] + " ms pacing connection with " +
+                                    pacing + ", saving " + savedMs + " ms");
+
+                            if (prefetchWifiScan) {
+                                prefetchWifiScan(prefetchCountryCode);
+                            }
+                        }
                     }
                 })
                 .doOnError(new Action1<Throwable>() {
@@ -339,6 +470,70 @@ public class SensePeripheral {
 
     }
 
+    private <T> Observable<T> paced(@NonNull Observable<T> step,
+                                    final long delayMs,
+                                    @NonNull final long[] pacingMs) {
+        if (delayMs == 0) {
+            return step;
+        }
+
+        return step.delay(delayMs, TimeUnit.MILLISECONDS, gattPeripheral.getStack().getScheduler())
+                   .doOnNext(new Action1<T>() {
+                       @Override
+                       public void call(T ignored) {
+                           pacingMs[0] += delayMs;
+                       }
+                   });
+    }
+
+    /**
+     * Waits until the bond state of the peripheral has been reported as bonded
+     * several times in a row. Gives up and continues after a fixed amount of time.
+     */
+    private Observable<Integer> awaitStableBond(@NonNull final long[] pacingMs) {
+        final Scheduler scheduler = gattPeripheral.getStack().getScheduler();
+        return Observable.defer(new Func0<Observable<Integer>>() {
+            @Override
+            public Observable<Integer> call() {
+                final long startedAt = scheduler.now();
+                final Observable<Integer> stable =
+                        Observable.interval(ConnectPacing.BOND_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS, scheduler)
+                                  .scan(0, new Func2<Integer, Long, Integer>() {
+                                      @Override
+                                      public Integer call(Integer bondedPolls, Long ignored) {
+                                          if (getBondStatus() == GattPeripheral.BOND_BONDED) {
+                                              return bondedPolls + 1;
+                                          } else {
+                                              return 0;
+                                          }
+                                      }
+                                  })
+                                  .filter(new Func1<Integer, Boolean>() {
+                                      @Override
+                                      public Boolean call(Integer bondedPolls) {
+                                          return (bondedPolls >= ConnectPacing.STABLE_BOND_POLL_COUNT);
+                                      }
+                                  })
+                                  .first();
+                final Observable<Integer> gaveUp = Observable.defer(new Func0<Observable<Integer>>() {
+                    @Override
+                    public Observable<Integer> call() {
+                        logger.warn(LOG_TAG, "Bond state did not become stable, continuing anyway.", null);
+                        return Observable.just(getBondStatus());
+                    }
+                });
+                return stable.timeout(ConnectPacing.MAXIMUM_BOND_WAIT_MS, TimeUnit.MILLISECONDS,
+                                      gaveUp, scheduler)
+                             .doOnNext(new Action1<Integer>() {
+                                 @Override
+                                 public void call(Integer ignored) {
+                                     pacingMs[0] += scheduler.now() - startedAt;
+                                 }
+                             });
+            }
+        });
+    }
+
     @CheckResult
     public Observable<SensePeripheral> disconnect() {
         return gattPeripheral.disconnect()
@@ -349,6 +544,12 @@ public class SensePeripheral {
                                      SensePeripheral.this.gattService = null;
                                      SensePeripheral.this.commandCharacteristic = null;
                                      SensePeripheral.this.responseCharacteristic = null;
+                                     SensePeripheral.this.negotiatedMtu = DEFAULT_MTU;
+                                     SensePeripheral.this.connectionCommandVersion = COMMAND_VERSION_UNKNOWN;
+                                     SensePeripheral.this.responseSubscribed = false;
+
+                                     commandQueue.cancelWaiting(new LostConnectionException());
+                                     responseCache.invalidateAll();
                                  }
                              });
     }
@@ -388,6 +589,238 @@ public class SensePeripheral {
         return gattPeripheral.getBondStatus();
     }
 
+    /**
+     * Informs the peripheral of the ATT MTU negotiated for the current connection.
+     * <p />
+     * Commands are divided into packets that fill the negotiated MTU once Sense has
+     * reported a command version of at least {@link #COMMAND_VERSION_LARGE_PACKETS}
+     * over the current connection.
+     * Older firmware continues to receive {@link GattCharacteristic#PACKET_LENGTH}
+     * byte packets. The MTU is reset to {@link #DEFAULT_MTU} on disconnect.
+     *
+     * @param mtu The MTU reported by the stack after a successful MTU exchange.
+     */
+    public void setNegotiatedMtu(int mtu) {
+        if (mtu < DEFAULT_MTU) {
+            throw new IllegalArgumentException("mtu < " + DEFAULT_MTU);
+        }
+        this.negotiatedMtu = mtu;
+    }
+
+    public int getNegotiatedMtu() {
+        return negotiatedMtu;
+    }
+
+    /**
+     * Sets how many command packets may be written before the stack has
+     * confirmed the packets written before them.
+     *
+     * @param writeWindowSize A value between <code>1</code> and {@link #MAXIMUM_WRITE_WINDOW_SIZE}.
+     */
+    public void setWriteWindowSize(int writeWindowSize) {
+        if (writeWindowSize < 1 || writeWindowSize > MAXIMUM_WRITE_WINDOW_SIZE) {
+            throw new IllegalArgumentException("writeWindowSize not in [1, " + MAXIMUM_WRITE_WINDOW_SIZE + "]");
+        }
+        this.writeWindowSize = writeWindowSize;
+    }
+
+    public int getWriteWindowSize() {
+        return writeWindowSize;
+    }
+
+    /**
+     * Sets whether command packets should be paced by the {@link WritePacer} for
+     * this peripheral's address, instead of the fixed write window size.
+     * <p />
+     * Adaptive pacing learns how many packets the phone's stack can keep in flight,
+     * and how long to wait between packets, from how quickly writes are confirmed.
+     */
+    public void setAdaptiveWritePacing(boolean adaptiveWritePacing) {
+        this.adaptiveWritePacing = adaptiveWritePacing;
+    }
+
+    public boolean isAdaptiveWritePacing() {
+        return adaptiveWritePacing;
+    }
+
+    /**
+     * Sets whether notifications from the command response characteristic should be
+     * left enabled between commands. When enabled, notifications are enabled by the
+     * first command after connecting, and remain enabled until the peripheral
+     * disconnects, saving two descriptor writes for every subsequent command.
+     * <p />
+     * Messages Sense sends while no command is in flight are delivered
+     * through {@link #observeUnsolicited(CommandType)}.
+     */
+    public void setPersistentResponseSubscription(boolean persistentResponseSubscription) {
+        this.persistentResponseSubscription = persistentResponseSubscription;
+    }
+
+    public boolean isPersistentResponseSubscription() {
+        return persistentResponseSubscription;
+    }
+
+    /**
+     * Sets the pacing used by subsequent calls to {@link #connect()}.
+     * Defaults to the pacing for the model of the current phone.
+     */
+    public void setConnectPacing(@NonNull ConnectPacing connectPacing) {
+        this.connectPacing = connectPacing;
+    }
+
+    public ConnectPacing getConnectPacing() {
+        return connectPacing;
+    }
+
+    /**
+     * Returns how much faster the most recent successful connection was compared
+     * to {@link ConnectPacing#LEGACY}, counting only time spent pacing.
+     */
+    public long getLastConnectTimeSavedMs() {
+        return lastConnectTimeSavedMs;
+    }
+
+    /**
+     * Applies state remembered from a previous connection to this peripheral.
+     *
+     * @param commandVersion    The command version last reported by Sense.
+     * @param previouslyBonded  Whether the last connection completed bonding. If so, and the
+     *                          peripheral is still bonded, {@link #connect()} skips bonding.
+     * @see SenseMetadataStore#restore(SensePeripheral)
+     */
+    void restoreMetadata(int commandVersion, boolean previouslyBonded) {
+        this.commandVersion = commandVersion;
+        this.previouslyBonded = previouslyBonded;
+    }
+
+    /**
+     * Returns the command version last reported by Sense.
+     */
+    public int getCommandVersion() {
+        return commandVersion;
+    }
+
+    /**
+     * Sets whether a WiFi scan should be started as soon as {@link #connect()} finishes.
+     * <p />
+     * A scan performed while the prefetched scan is still running joins it. A scan performed
+     * within a minute of the prefetched scan finishing returns its results at once. Prefetched
+     * results are only returned once, and are discarded on disconnect.
+     *
+     * @param prefetchWifiScan  Whether or not to prefetch a WiFi scan.
+     * @param countryCode       The country code to scan with. Only scans with the same
+     *                          country code can use the prefetched results.
+     */
+    public void setPrefetchWifiScan(boolean prefetchWifiScan, @Nullable CountryCode countryCode) {
+        this.prefetchWifiScan = prefetchWifiScan;
+        this.prefetchCountryCode = countryCode;
+    }
+
+    public boolean isPrefetchWifiScan() {
+        return prefetchWifiScan;
+    }
+
+    /**
+     * Returns the number of commands waiting for the command in flight to finish.
+     */
+    public int getCommandQueueDepth() {
+        return commandQueue.getQueueDepth();
+    }
+
+    /**
+     * Returns how long the most recently started command waited for the commands before it.
+     */
+    public long getLastCommandWaitTimeMs() {
+        return commandQueue.getLastWaitTimeMs();
+    }
+
+    /**
+     * Cancels every command that is waiting for the command in flight to finish.
+     * The command in flight is unaffected. Cancelled commands will fail with a
+     * {@link SenseCommandCancelledError}.
+     */
+    public void cancelQueuedCommands() {
+        commandQueue.cancelWaiting(new SenseCommandCancelledError());
+    }
+
+    /**
+     * Returns the device id of the pill most recently paired through this peripheral,
+     * or <code>null</code> if no pill has been paired recently.
+     */
+    public @Nullable String getCachedPillId() {
+        return responseCache.get(SenseResponseCache.KEY_PILL_ID);
+    }
+
+    /**
+     * Returns the firmware version most recently reported by Sense,
+     * or <code>null</code> if it has not reported one recently.
+     */
+    public @Nullable Integer getCachedFirmwareVersion() {
+        return responseCache.get(SenseResponseCache.KEY_FIRMWARE_VERSION);
+    }
+
+    /**
+     * Returns the top board version most recently reported by Sense,
+     * or <code>null</code> if it has not reported one recently.
+     */
+    public @Nullable String getCachedTopVersion() {
+        return responseCache.get(SenseResponseCache.KEY_TOP_VERSION);
+    }
+
+    /**
+     * Returns the access points seen by every WiFi scan performed through this peripheral.
+     * Combined with a short scan, the strongest networks from the index provide a more
+     * complete list than a single scan.
+     */
+    public WifiAccessPointIndex getWifiAccessPointIndex() {
+        return wifiAccessPointIndex;
+    }
+
+    /**
+     * Discards every response cached from previous commands.
+     */
+    public void invalidateCachedResponses() {
+        responseCache.invalidateAll();
+    }
+
+    /**
+     * Sets how many packets a response may arrive out of order by before it is
+     * considered lost. Useful on congested radios where a lost response costs
+     * a full command timeout and retry.
+     *
+     * @see ProtobufPacketListener#setReorderWindow(int)
+     */
+    public void setPacketReorderWindow(int reorderWindow) {
+        packetListener.setReorderWindow(reorderWindow);
+    }
+
+    /**
+     * Returns the length of the packets that commands will currently be divided into.
+     */
+    @VisibleForTesting
+    int getOutgoingPacketLength() {
+        if (connectionCommandVersion < COMMAND_VERSION_LARGE_PACKETS) {
+            return GattCharacteristic.PACKET_LENGTH;
+        }
+        return Math.min(negotiatedMtu - ATT_HEADER_LENGTH, MAXIMUM_PACKET_LENGTH);
+    }
+
+    /**
+     * Returns the header format that commands will currently be written with.
+     * <p />
+     * Sense reports its command version in every response, so the format
+     * is settled per connection by the first command that completes. The
+     * version remembered from previous connections is never used, as Sense
+     * may have had its firmware changed since.
+     */
+    @VisibleForTesting
+    ProtobufPacketListener.HeaderFormat getOutgoingHeaderFormat() {
+        if (connectionCommandVersion < COMMAND_VERSION_EXTENDED_HEADER) {
+            return ProtobufPacketListener.HeaderFormat.LEGACY;
+        }
+        return ProtobufPacketListener.HeaderFormat.EXTENDED;
+    }
+
     public @Nullable String getDeviceId() {
         final AdvertisingData advertisingData = gattPeripheral.getAdvertisingData();
         final Collection<byte[]> serviceDataRecords =
@@ -481,34 +914,68 @@ public class SensePeripheral {
                 TimeUnit.SECONDS);
     }
 
-    private @NonNull OperationTimeout createPairPillTimeout() {
-        return gattPeripheral.createOperationTimeout("Pair Pill",
-                PAIR_PILL_TIMEOUT_S,
-                TimeUnit.SECONDS);
-    }
-
-    private @NonNull OperationTimeout createAnimationTimeout() {
-        return gattPeripheral.createOperationTimeout("Animation",
-                                                     ANIMATION_TIMEOUT_S,
-                                                     TimeUnit.SECONDS);
-    }
+    /**
+     * Shares a single run of an idempotent read command between every caller that
+     * asks for it while it is in flight. Callers that subscribe while the command is
+     * in flight receive the same result as the caller that started it, instead of
+     * queuing a duplicate round trip.
+     *
+     * @param key   The command type and arguments of the read.
+     * @param read  The read command to run if there is not already one in flight.
+     */
+    @VisibleForTesting
+    <T> Observable<T> coalesceRead(@NonNull final String key, @NonNull final Observable<T> read) {
+        return Observable.defer(new Func0<Observable<T>>() {
+            @Override
+            public Observable<T> call() {
+                synchronized (inFlightReads) {
+                    @SuppressWarnings("unchecked")
+                    final Observable<T> inFlight = (Observable<T>) inFlightReads.get(key);
+                    if (inFlight != null) {
+                        logger.info(GattPeripheral.LOG_TAG, "Joining in flight " + key);
+                        return inFlight;
+                    }
 
-    private boolean isBusy() {
-        return packetListener.hasResponseListener();
+                    final Observable<?>[] shared = new Observable<?>[1];
+                    final Observable<T> coalesced = read.finallyDo(new Action0() {
+                        @Override
+                        public void call() {
+                            synchronized (inFlightReads) {
+                                if (inFlightReads.get(key) == shared[0]) {
+                                    inFlightReads.remove(key);
+                                }
+                            }
+                        }
+                    }).replay().refCount();
+                    shared[0] = coalesced;
+                    inFlightReads.put(key, coalesced);
+                    return coalesced;
+                }
+            }
+        });
     }
 
     @VisibleForTesting
     Observable<UUID> subscribeResponse(@NonNull OperationTimeout timeout) {
-        if (responseCharacteristic == null) {
+        if (responseCharacteristic == null || responseSubscribed) {
             return Observable.just(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
         }
         return responseCharacteristic.enableNotification(SenseIdentifiers.DESCRIPTOR_CHARACTERISTIC_COMMAND_RESPONSE_CONFIG,
-                                                         timeout);
+                                                         timeout)
+                                     .doOnNext(new Action1<UUID>() {
+                                         @Override
+                                         public void call(UUID ignored) {
+                                             SensePeripheral.this.responseSubscribed =
+                                                     (persistentResponseSubscription ||
+                                                             responseSubscriptionHolds > 0);
+                                         }
+                                     });
     }
 
     @VisibleForTesting
     Observable<UUID> unsubscribeResponse(@NonNull OperationTimeout timeout) {
-        if (isConnected()) {
+        if (isConnected() && !persistentResponseSubscription && responseSubscriptionHolds == 0) {
+            this.responseSubscribed = false;
             return responseCharacteristic.disableNotification(SenseIdentifiers.DESCRIPTOR_CHARACTERISTIC_COMMAND_RESPONSE_CONFIG,
                                                               timeout);
         } else {
@@ -516,20 +983,23 @@ public class SensePeripheral {
         }
     }
 
+    /**
+     * Returns the priority a command should be queued with.
+     */
+    @VisibleForTesting
+    static SenseCommandQueue.Priority getCommandPriority(@NonNull CommandType commandType) {
+        return SenseCommand.getPriority(commandType);
+    }
+
     @CheckResult
     private <T> Observable<T> performCommand(@NonNull final MorpheusCommand command,
                                              @NonNull final OperationTimeout timeout,
                                              @NonNull final ResponseHandler<T> responseHandler) {
-        return gattPeripheral.getStack().newConfiguredObservable(new Observable.OnSubscribe<T>() {
+        final Observable<T> perform = gattPeripheral.getStack().newConfiguredObservable(new Observable.OnSubscribe<T>() {
             @Override
-            public void call(Subscriber<? super T> subscriber) {
+            public void call(final Subscriber<? super T> subscriber) {
                 responseHandler.configure(subscriber, timeout);
 
-                if (isBusy()) {
-                    responseHandler.onError(new SenseBusyError());
-                    return;
-                }
-
                 timeout.setTimeoutAction(new Action0() {
                     @Override
                     public void call() {
@@ -556,43 +1026,59 @@ public class SensePeripheral {
                         responseHandler.onError(error);
                     }
                 };
+                final ProtobufPacketListener.ResponseListener responseListener = new ProtobufPacketListener.ResponseListener() {
+                    @Override
+                    public void onDataReady(MorpheusCommand response) {
+                        logger.info(GattPeripheral.LOG_TAG, "Got response to command " + command + ": " + response);
+                        SensePeripheral.this.commandVersion = response.getVersion();
+                        SensePeripheral.this.connectionCommandVersion = response.getVersion();
+                        cacheVersions(response);
+                        responseHandler.onResponse(response);
+                    }
+
+                    @Override
+                    public void onError(final Throwable error) {
+                        timeout.unschedule();
+
+                        if (error instanceof LostConnectionException || !isConnected()) {
+                            onError.call(error);
+                        } else {
+                            packetListener.setResponseListener(null);
+
+                            final Observable<UUID> unsubscribe =
+                                    unsubscribeResponse(createStackTimeout("Unsubscribe"));
+                            logger.error(GattPeripheral.LOG_TAG,
+                                         "Could not complete command " + command,
+                                         error);
+                            unsubscribe.subscribe(new Action1<UUID>() {
+                                @Override
+                                public void call(UUID ignored) {
+                                    onError.call(error);
+                                }
+                            }, onError);
+                        }
+                    }
+                };
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        cancelCommand(command, timeout, responseListener);
+                    }
+                }));
+
                 final Observable<UUID> subscribe = subscribeResponse(createStackTimeout("Subscribe"));
                 if (subscribe == null){
                     responseHandler.onError(new LostConnectionException());
                     return;
                 }
-                subscribe.subscribe(new Action1<UUID>() {
+                subscriber.add(subscribe.subscribe(new Action1<UUID>() {
                     @Override
                     public void call(UUID subscribedCharacteristic) {
-                        packetListener.setResponseListener(new ProtobufPacketListener.ResponseListener() {
-                            @Override
-                            public void onDataReady(MorpheusCommand response) {
-                                logger.info(GattPeripheral.LOG_TAG, "Got response to command " + command + ": " + response);
-                                SensePeripheral.this.commandVersion = response.getVersion();
-                                responseHandler.onResponse(response);
-                            }
-
-                            @Override
-                            public void onError(final Throwable error) {
-                                timeout.unschedule();
+                        if (subscriber.isUnsubscribed()) {
+                            return;
+                        }
 
-                                if (error instanceof LostConnectionException || !isConnected()) {
-                                    onError.call(error);
-                                } else {
-                                    final Observable<UUID> unsubscribe =
-                                            unsubscribeResponse(createStackTimeout("Unsubscribe"));
-                                    logger.error(GattPeripheral.LOG_TAG,
-                                                 "Could not complete command " + command,
-                                                 error);
-                                    unsubscribe.subscribe(new Action1<UUID>() {
-                                        @Override
-                                        public void call(UUID ignored) {
-                                            onError.call(error);
-                                        }
-                                    }, onError);
-                                }
-                            }
-                        });
+                        packetListener.setResponseListener(responseListener);
 
                         logger.info(GattPeripheral.LOG_TAG, "Writing command " + command);
 
@@ -600,34 +1086,117 @@ public class SensePeripheral {
                         final Observable<Void> write =
                                 writeLargeCommand(
                                         commandData);
-                        write.subscribe(new Action1<Void>() {
+                        subscriber.add(write.subscribe(new Action1<Void>() {
                             @Override
                             public void call(Void ignored) {
                                 logger.info(GattPeripheral.LOG_TAG, "Wrote command " + command);
-                                timeout.schedule();
+                                if (!subscriber.isUnsubscribed()) {
+                                    timeout.schedule();
+                                }
                             }
-                        }, onError);
+                        }, onError));
                     }
-                }, onError);
+                }, onError));
+            }
+        });
+        return commandQueue.enqueue(command.getType().toString(),
+                                    getCommandPriority(command.getType()),
+                                    perform);
+    }
+
+    /**
+     * Cleans up after a command that was unsubscribed from before Sense responded to it,
+     * so that the next queued command does not start with the cancelled command's
+     * response listener and timeout still in place.
+     * <p />
+     * Does nothing if the command already finished.
+     */
+    private void cancelCommand(@NonNull MorpheusCommand command,
+                               @NonNull OperationTimeout timeout,
+                               @NonNull ProtobufPacketListener.ResponseListener responseListener) {
+        if (!packetListener.clearResponseListener(responseListener)) {
+            return;
+        }
+
+        logger.info(GattPeripheral.LOG_TAG, "Cancelled command " + command);
+        timeout.unschedule();
+
+        if (!isConnected()) {
+            return;
+        }
+
+        unsubscribeResponse(createStackTimeout("Unsubscribe")).subscribe(new Subscriber<UUID>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                logger.warn(GattPeripheral.LOG_TAG, "Could not unsubscribe after cancelling command, ignoring.", e);
+            }
+
+            @Override
+            public void onNext(UUID uuid) {
+            }
+        });
+    }
+
+    private void cacheVersions(@NonNull MorpheusCommand response) {
+        if (response.hasFirmwareVersion()) {
+            responseCache.put(SenseResponseCache.KEY_FIRMWARE_VERSION,
+                              response.getFirmwareVersion(),
+                              TimeUnit.SECONDS.toMillis(VERSION_CACHE_TTL_S));
+        }
+        if (response.hasTopVersion()) {
+            responseCache.put(SenseResponseCache.KEY_TOP_VERSION,
+                              response.getTopVersion(),
+                              TimeUnit.SECONDS.toMillis(VERSION_CACHE_TTL_S));
+        }
+    }
+
+    /**
+     * Discards a cached response both when a mutating command is subscribed
+     * to, and once it finishes, so that no read performed in between can
+     * leave a value describing the old state of Sense in the cache.
+     *
+     * @param key   The key to invalidate, or <code>null</code> to invalidate every response.
+     */
+    private <T> Observable<T> invalidatingCache(@Nullable final String key,
+                                                @NonNull final Observable<T> command) {
+        final Action0 invalidate = new Action0() {
+            @Override
+            public void call() {
+                if (key == null) {
+                    responseCache.invalidateAll();
+                } else {
+                    responseCache.invalidate(key);
+                }
+            }
+        };
+        return Observable.defer(new Func0<Observable<T>>() {
+            @Override
+            public Observable<T> call() {
+                invalidate.call();
+                return command.finallyDo(invalidate);
             }
         });
     }
 
+    @VisibleForTesting
     @CheckResult
-    private Observable<MorpheusCommand> performSimpleCommand(@NonNull final MorpheusCommand command,
-                                                             @NonNull final OperationTimeout commandTimeout) {
+    Observable<MorpheusCommand> performSimpleCommand(@NonNull final MorpheusCommand command,
+                                                     @NonNull final OperationTimeout commandTimeout) {
         return performCommand(command, commandTimeout, new ResponseHandler<MorpheusCommand>() {
             @Override
             void onResponse(@NonNull final MorpheusCommand response) {
                 timeout.unschedule();
+                packetListener.setResponseListener(null);
 
                 final Observable<UUID> unsubscribe =
                         unsubscribeResponse(createStackTimeout("Unsubscribe"));
                 unsubscribe.subscribe(new Action1<UUID>() {
                     @Override
                     public void call(UUID ignored) {
-                        packetListener.setResponseListener(null);
-
                         if (response.getType() == command.getType()) {
                             subscriber.onNext(response);
                             subscriber.onCompleted();
@@ -700,93 +1269,318 @@ public class SensePeripheral {
         });
     }
 
+    /**
+     * Performs a command declared in {@link SenseCommand}. The command's type, version and
+     * app version are filled in, it is sent with its declared timeout and disconnect semantics,
+     * and its response is mapped with its declared result mapper.
+     *
+     * @param command   The declared command to perform.
+     * @param arguments The arguments of the command, or <code>null</code> if it has none.
+     */
+    @VisibleForTesting
+    @CheckResult
+    <T> Observable<T> perform(@NonNull SenseCommand<T> command,
+                              @Nullable MorpheusCommand.Builder arguments) {
+        logger.info(GattPeripheral.LOG_TAG, "perform(" + command.type + ")");
+
+        final MorpheusCommand.Builder builder = (arguments != null) ? arguments : MorpheusCommand.newBuilder();
+        final MorpheusCommand morpheusCommand = builder.setType(command.type)
+                                                       .setVersion(commandVersion)
+                                                       .setAppVersion(APP_VERSION)
+                                                       .build();
+        final OperationTimeout timeout = command.createTimeout(gattPeripheral);
+        final Observable<MorpheusCommand> response;
+        if (command.disconnects) {
+            response = performDisconnectingCommand(morpheusCommand, timeout);
+        } else {
+            response = performSimpleCommand(morpheusCommand, timeout);
+        }
+
+        final Observable<T> result = response.map(command.resultMapper);
+        if (command.invalidatesAll || command.invalidatedKey != null) {
+            return invalidatingCache(command.invalidatedKey, result);
+        } else {
+            return result;
+        }
+    }
+
     //endregion
 
     //region Operations
 
+    /**
+     * Writes the packets of a command, keeping a window of packets in flight
+     * and writing the next packet as each one is confirmed.
+     * <p />
+     * Every packet is written with its own timeout, so the transfer only fails
+     * when a packet stops making progress. Confirmations are matched to the packet
+     * they belong to, and may arrive in any order. The window never extends further
+     * than the window size past the oldest unconfirmed packet, so the packet buffers
+     * of the cursor are never reused while a packet written from them is in flight.
+     * <p />
+     * When given a {@link WritePacer}, the window size and the gap between packets
+     * are taken from the pacer as the transfer goes, and the pacer is informed
+     * of how long each packet took to be confirmed.
+     */
+    private class PacketWriter {
+        private final OutgoingPacketCursor packets;
+        private final boolean sharedCursor;
+        private final int windowSize;
+        private final @Nullable WritePacer pacer;
+        private final Subscriber<? super Void> subscriber;
+        private final Scheduler scheduler;
+
+        private int packetsWritten = 0;
+
+        /**
+         * The index of the oldest packet that has not been confirmed yet.
+         */
+        private int oldestUnconfirmed = 0;
+
+        /**
+         * Tracks packets confirmed ahead of the oldest unconfirmed packet. Bit
+         * <code>n</code> is set when packet <code>oldestUnconfirmed + n</code> is confirmed.
+         */
+        private long confirmedAhead = 0L;
+
+        /**
+         * The number of writes that have not completed or failed,
+         * including writes that outlive the writer being finished.
+         */
+        private int outstandingWrites = 0;
+
+        private long lastWriteTime = 0;
+        private boolean failed = false;
+        private boolean finished = false;
+
+        private @Nullable Scheduler.Worker gapWorker;
+        private boolean writeScheduled = false;
+
+        PacketWriter(@NonNull OutgoingPacketCursor packets,
+                     boolean sharedCursor,
+                     int windowSize,
+                     @Nullable WritePacer pacer,
+                     @NonNull Subscriber<? super Void> subscriber) {
+            this.packets = packets;
+            this.sharedCursor = sharedCursor;
+            this.windowSize = windowSize;
+            this.pacer = pacer;
+            this.subscriber = subscriber;
+            this.scheduler = gattPeripheral.getStack().getScheduler();
+
+            subscriber.add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    finish();
+                }
+            }));
+        }
+
+        private int getWindowSize() {
+            if (pacer != null) {
+                return pacer.getWindowSize();
+            } else {
+                return windowSize;
+            }
+        }
+
+        /**
+         * Writes packets until the window is full or the command has been entirely written.
+         * If the pacer calls for a gap before the next packet, it is scheduled instead.
+         */
+        void writePackets() {
+            while (!failed && !finished && packets.hasNext() &&
+                    (packetsWritten - oldestUnconfirmed) < getWindowSize() &&
+                    !subscriber.isUnsubscribed()) {
+                final long gapMs = (pacer != null) ? pacer.getGapMs() : 0;
+                if (gapMs > 0 && packetsWritten > 0) {
+                    final long waitMs = (lastWriteTime + gapMs) - scheduler.now();
+                    if (waitMs > 0) {
+                        scheduleWrite(waitMs);
+                        return;
+                    }
+                }
+
+                final long writeTime = scheduler.now();
+                final PacketWrite write = new PacketWrite(packetsWritten, writeTime);
+                this.lastWriteTime = writeTime;
+                this.packetsWritten++;
+                this.outstandingWrites++;
+                commandCharacteristic.write(GattPeripheral.WriteType.NO_RESPONSE,
+                                            packets.next(),
+                                            createStackTimeout("Write Large Command"))
+                                     .subscribe(write);
+            }
+        }
+
+        private void scheduleWrite(long delayMs) {
+            if (writeScheduled) {
+                return;
+            }
+
+            if (gapWorker == null) {
+                this.gapWorker = scheduler.createWorker();
+            }
+            this.writeScheduled = true;
+            gapWorker.schedule(new Action0() {
+                @Override
+                public void call() {
+                    PacketWriter.this.writeScheduled = false;
+                    writePackets();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void finish() {
+            this.finished = true;
+            if (gapWorker != null) {
+                gapWorker.unsubscribe();
+                this.gapWorker = null;
+            }
+            releaseCursorIfIdle();
+        }
+
+        /**
+         * Hands the shared packet cursor back once nothing
+         * can write from its buffers any more.
+         */
+        private void releaseCursorIfIdle() {
+            if (sharedCursor && finished && outstandingWrites == 0) {
+                SensePeripheral.this.sharedCursorInUse = false;
+            }
+        }
+
+        private void onPacketConfirmed(int packetIndex, long writeTime) {
+            if (failed || finished) {
+                return;
+            }
+
+            this.confirmedAhead |= 1L << (packetIndex - oldestUnconfirmed);
+            while ((confirmedAhead & 1L) != 0) {
+                this.confirmedAhead >>>= 1;
+                this.oldestUnconfirmed++;
+            }
+
+            if (pacer != null) {
+                pacer.onPacketWritten(scheduler.now() - writeTime);
+            }
+
+            if (!packets.hasNext() && oldestUnconfirmed == packetsWritten) {
+                logger.info(GattPeripheral.LOG_TAG, "Wrote large command");
+
+                finish();
+                subscriber.onNext(null);
+                subscriber.onCompleted();
+            } else {
+                writePackets();
+            }
+        }
+
+        private void onPacketFailed(Throwable e) {
+            if (!failed && !finished) {
+                this.failed = true;
+                if (pacer != null) {
+                    pacer.onPacketFailed();
+                    logger.warn(GattPeripheral.LOG_TAG, "Backing off write pacing to " + pacer, e);
+                }
+                finish();
+                subscriber.onError(e);
+            }
+        }
+
+        private void onWriteTerminated() {
+            this.outstandingWrites--;
+            releaseCursorIfIdle();
+        }
+
+        /**
+         * Observes the write of a single packet.
+         */
+        private class PacketWrite implements Observer<Void> {
+            private final int packetIndex;
+            private final long writeTime;
+
+            PacketWrite(int packetIndex, long writeTime) {
+                this.packetIndex = packetIndex;
+                this.writeTime = writeTime;
+            }
+
+            @Override
+            public void onCompleted() {
+                onWriteTerminated();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                onWriteTerminated();
+                onPacketFailed(e);
+            }
+
+            @Override
+            public void onNext(Void ignored) {
+                onPacketConfirmed(packetIndex, writeTime);
+            }
+        }
+    }
+
     @VisibleForTesting
     @CheckResult
     Observable<Void> writeLargeCommand(@NonNull final byte[] commandData) {
-        List<byte[]> blePackets = packetListener.createOutgoingPackets(commandData);
-        final LinkedList<byte[]> remainingPackets = new LinkedList<>(blePackets);
-
         return Observable.create(new Observable.OnSubscribe<Void>() {
             @Override
             public void call(final Subscriber<? super Void> subscriber) {
-                Observer<Void> writeObserver = new Observer<Void>() {
-                    @Override
-                    public void onCompleted() {
-                    }
-
-                    @Override
-                    public void onError(Throwable e) {
-                        subscriber.onError(e);
+                // Commands are run one at a time by the command queue, but the writes of
+                // a cancelled command can still be in flight when the next one starts.
+                final boolean sharedCursor = !sharedCursorInUse;
+                final OutgoingPacketCursor packets;
+                try {
+                    if (sharedCursor) {
+                        packets = packetListener.prepareOutgoingPackets(commandData,
+                                                                        getOutgoingPacketLength(),
+                                                                        getOutgoingHeaderFormat());
+                    } else {
+                        logger.warn(GattPeripheral.LOG_TAG,
+                                    "Previous large command still in flight, using a private packet cursor", null);
+                        packets = new OutgoingPacketCursor().reset(commandData,
+                                                                   getOutgoingPacketLength(),
+                                                                   getOutgoingHeaderFormat());
                     }
+                } catch (IllegalArgumentException e) {
+                    subscriber.onError(e);
+                    return;
+                }
+                if (sharedCursor) {
+                    SensePeripheral.this.sharedCursorInUse = true;
+                }
 
-                    @Override
-                    public void onNext(Void ignored) {
-                        remainingPackets.removeFirst();
-                        if (remainingPackets.isEmpty()) {
-                            logger.info(GattPeripheral.LOG_TAG, "Wrote large command");
-
-                            subscriber.onNext(null);
-                            subscriber.onCompleted();
-                        } else {
-                            logger.info(GattPeripheral.LOG_TAG,
-                                        "Writing next chunk of large command");
-                            commandCharacteristic.write(GattPeripheral.WriteType.NO_RESPONSE,
-                                                        remainingPackets.getFirst(),
-                                                        createStackTimeout("Write Partial Command"))
-                                                 .subscribe(this);
-                        }
-                    }
-                };
+                final WritePacer pacer;
+                if (adaptiveWritePacing) {
+                    pacer = WritePacer.forAddress(getAddress());
+                    packets.setWindowSize(pacer.getMaximumWindowSize());
+                    logger.info(GattPeripheral.LOG_TAG,
+                                "Writing large command (" + packets.getPacketCount() +
+                                        " chunks, " + pacer + ")");
+                } else {
+                    pacer = null;
+                    packets.setWindowSize(writeWindowSize);
+                    logger.info(GattPeripheral.LOG_TAG,
+                                "Writing large command (" + packets.getPacketCount() +
+                                        " chunks, " + writeWindowSize + " in flight)");
+                }
 
-                logger.info(GattPeripheral.LOG_TAG,
-                            "Writing first chunk of large command (" +
-                                    remainingPackets.size() + " chunks)");
-                commandCharacteristic.write(GattPeripheral.WriteType.NO_RESPONSE,
-                                            remainingPackets.getFirst(),
-                                            createStackTimeout("Write Partial Command"))
-                                     .subscribe(writeObserver);
+                new PacketWriter(packets, sharedCursor, writeWindowSize, pacer, subscriber).writePackets();
             }
         });
     }
 
     @CheckResult
     public Observable<Void> putIntoNormalMode() {
-        logger.info(GattPeripheral.LOG_TAG, "putIntoNormalMode()");
-
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
-        }
-
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(CommandType.MORPHEUS_COMMAND_SWITCH_TO_NORMAL_MODE)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .build();
-        return performSimpleCommand(morpheusCommand, createSimpleCommandTimeout())
-                .map(Functions.createMapperToVoid());
+        return perform(SenseCommand.SWITCH_TO_NORMAL_MODE, null);
     }
 
     @CheckResult
     public Observable<Void> putIntoPairingMode() {
-        logger.info(GattPeripheral.LOG_TAG, "putIntoPairingMode()");
-
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
-        }
-
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(CommandType.MORPHEUS_COMMAND_SWITCH_TO_PAIRING_MODE)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .build();
-        return performDisconnectingCommand(morpheusCommand, createSimpleCommandTimeout())
-                .map(Functions.createMapperToVoid());
+        return perform(SenseCommand.SWITCH_TO_PAIRING_MODE, null);
     }
 
     @CheckResult
@@ -795,10 +1589,6 @@ public class SensePeripheral {
                                                                      @Nullable String password) {
         logger.info(GattPeripheral.LOG_TAG, "connectToWiFiNetwork(" + ssid + ")");
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
-        }
-
         if (securityType != wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN &&
                 TextUtils.isEmpty(password)) {
             return Observable.error(new SenseSetWifiValidationError(SenseSetWifiValidationError.Reason.EMPTY_PASSWORD));
@@ -830,7 +1620,7 @@ public class SensePeripheral {
                 gattPeripheral.createOperationTimeout("Set Wifi",
                                                       SET_WIFI_TIMEOUT_S,
                                                       TimeUnit.SECONDS);
-        return performCommand(command, commandTimeout, new ResponseHandler<SenseConnectToWiFiUpdate>() {
+        final Observable<SenseConnectToWiFiUpdate> connect = performCommand(command, commandTimeout, new ResponseHandler<SenseConnectToWiFiUpdate>() {
             @Override
             void onResponse(@NonNull final MorpheusCommand response) {
                 final Action1<Throwable> onError = new Action1<Throwable>() {
@@ -849,20 +1639,20 @@ public class SensePeripheral {
 
                     if (status.state == wifi_connection_state.CONNECTED) {
                         timeout.unschedule();
+                        packetListener.setResponseListener(null);
 
                         final Observable<UUID> unsubscribe =
                                 unsubscribeResponse(createStackTimeout("Unsubscribe"));
                         unsubscribe.subscribe(new Action1<UUID>() {
                             @Override
                             public void call(UUID ignored) {
-                                packetListener.setResponseListener(null);
-
                                 subscriber.onNext(status);
                                 subscriber.onCompleted();
                             }
                         }, onError);
                     } else if (SenseConnectWifiError.isImmediateError(status)) {
                         timeout.unschedule();
+                        packetListener.setResponseListener(null);
 
                         final Observable<UUID> unsubscribe =
                                 unsubscribeResponse(createStackTimeout("Unsubscribe"));
@@ -878,21 +1668,18 @@ public class SensePeripheral {
                                                       onError(new SenseConnectWifiError(status, e));
                                                   }
                                               });
-
-                        packetListener.setResponseListener(null);
                     } else {
                         subscriber.onNext(status);
                     }
                 } else if (response.getType() == CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT) { //old fw
                     timeout.unschedule();
+                    packetListener.setResponseListener(null);
 
                     final Observable<UUID> unsubscribe =
                             unsubscribeResponse(createStackTimeout("Unsubscribe"));
                     unsubscribe.subscribe(new Action1<UUID>() {
                         @Override
                         public void call(UUID ignored) {
-                            packetListener.setResponseListener(null);
-
                             final SenseConnectToWiFiUpdate fakeStatus =
                                     new SenseConnectToWiFiUpdate(wifi_connection_state.CONNECTED,
                                                                  null, null);
@@ -902,6 +1689,7 @@ public class SensePeripheral {
                     }, onError);
                 } else if (response.getType() == CommandType.MORPHEUS_COMMAND_ERROR) {
                     timeout.unschedule();
+                    packetListener.setResponseListener(null);
 
                     final Observable<UUID> unsubscribe =
                             unsubscribeResponse(createStackTimeout("Unsubscribe"));
@@ -920,8 +1708,6 @@ public class SensePeripheral {
                             propagateResponseError(response, null);
                         }
                     });
-
-                    packetListener.setResponseListener(null);
                 } else {
                     timeout.unschedule();
                     packetListener.setResponseListener(null);
@@ -946,139 +1732,513 @@ public class SensePeripheral {
                 }
             }
         });
-
+        return invalidatingCache(SenseResponseCache.KEY_WIFI_NETWORK, connect);
     }
 
     @CheckResult
     public Observable<SenseNetworkStatus> getWifiNetwork() {
-        logger.info(GattPeripheral.LOG_TAG, "getWifiNetwork()");
+        return getWifiNetwork(false);
+    }
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
+    /**
+     * Reads the network Sense is connected to. Results are cached for a short
+     * period of time, and discarded when Sense is told to connect to a network.
+     *
+     * @param bypassCache   Whether or not to always read the network from Sense.
+     */
+    @CheckResult
+    public Observable<SenseNetworkStatus> getWifiNetwork(boolean bypassCache) {
+        logger.info(GattPeripheral.LOG_TAG, "getWifiNetwork(" + bypassCache + ")");
+
+        if (!bypassCache) {
+            final SenseNetworkStatus cached = responseCache.get(SenseResponseCache.KEY_WIFI_NETWORK);
+            if (cached != null) {
+                return Observable.just(cached);
+            }
         }
 
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .build();
+        final Observable<SenseNetworkStatus> read =
+                perform(SenseCommand.GET_WIFI_ENDPOINT, null)
+                        .doOnNext(new Action1<SenseNetworkStatus>() {
+                            @Override
+                            public void call(SenseNetworkStatus status) {
+                                responseCache.put(SenseResponseCache.KEY_WIFI_NETWORK, status,
+                                                  TimeUnit.SECONDS.toMillis(WIFI_NETWORK_CACHE_TTL_S));
+                            }
+                        });
+        return coalesceRead(SenseCommand.GET_WIFI_ENDPOINT.type.toString(), read);
+    }
 
-        return performSimpleCommand(morpheusCommand, createSimpleCommandTimeout())
-                .map(new Func1<MorpheusCommand, SenseNetworkStatus>() {
+    @CheckResult
+    public Observable<String> pairPill(final String accountToken) {
+        return perform(SenseCommand.PAIR_PILL, MorpheusCommand.newBuilder().setAccountId(accountToken))
+                .doOnNext(new Action1<String>() {
                     @Override
-                    public SenseNetworkStatus call(MorpheusCommand response) {
-                        return new SenseNetworkStatus(response.getWifiSSID(),
-                                                      response.getWifiConnectionState());
+                    public void call(String deviceId) {
+                        responseCache.put(SenseResponseCache.KEY_PILL_ID, deviceId,
+                                          TimeUnit.SECONDS.toMillis(PILL_ID_CACHE_TTL_S));
                     }
                 });
     }
 
     @CheckResult
-    public Observable<String> pairPill(final String accountToken) {
-        logger.info(GattPeripheral.LOG_TAG, "pairPill(" + accountToken + ")");
+    public Observable<Void> linkAccount(final String accountToken) {
+        return perform(SenseCommand.PAIR_SENSE, MorpheusCommand.newBuilder().setAccountId(accountToken));
+    }
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
-        }
+    @CheckResult
+    public Observable<Void> factoryReset() {
+        return perform(SenseCommand.FACTORY_RESET, null);
+    }
 
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(CommandType.MORPHEUS_COMMAND_PAIR_PILL)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .setAccountId(accountToken)
-                               .build();
-        return performSimpleCommand(morpheusCommand, createPairPillTimeout())
-                .map(new Func1<MorpheusCommand, String>() {
-                    @Override
-                    public String call(MorpheusCommand response) {
-                        return response.getDeviceId();
-                    }
-                });
+    /**
+     * Tells Sense to restart into its bootloader to receive a firmware update. Sense
+     * drops the connection once it has responded, and the image is then sent to the
+     * bootloader through a {@link SenseFirmwareTransfer.Transport} for its DFU service.
+     */
+    @CheckResult
+    public Observable<Void> beginFirmwareUpdate() {
+        logger.info(GattPeripheral.LOG_TAG, "beginFirmwareUpdate()");
+
+        return perform(SenseCommand.DFU_BEGIN, null);
     }
 
     @CheckResult
-    public Observable<Void> linkAccount(final String accountToken) {
-        logger.info(GattPeripheral.LOG_TAG, "linkAccount(" + accountToken + ")");
+    public Observable<Void> pushData() {
+        return perform(SenseCommand.PUSH_DATA_AFTER_SET_TIMEZONE, null);
+    }
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
-        }
+    /**
+     * Reads the device id from Sense itself, instead of from its advertising data.
+     */
+    @CheckResult
+    public Observable<String> readDeviceId() {
+        return perform(SenseCommand.GET_DEVICE_ID, null);
+    }
 
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(CommandType.MORPHEUS_COMMAND_PAIR_SENSE)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .setAccountId(accountToken)
-                               .build();
-        return performSimpleCommand(morpheusCommand, createSimpleCommandTimeout())
-                .map(Functions.createMapperToVoid());
+    @CheckResult
+    public Observable<String> syncDeviceId() {
+        return perform(SenseCommand.SYNC_DEVICE_ID, null);
     }
 
     @CheckResult
-    public Observable<Void> factoryReset() {
-        logger.info(GattPeripheral.LOG_TAG, "factoryReset()");
+    public Observable<Void> unpairPill(@NonNull String pillId) {
+        return perform(SenseCommand.UNPAIR_PILL, MorpheusCommand.newBuilder().setDeviceId(pillId));
+    }
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
-        }
+    @CheckResult
+    public Observable<Void> erasePairedPhone() {
+        return perform(SenseCommand.ERASE_PAIRED_PHONE, null);
+    }
 
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(CommandType.MORPHEUS_COMMAND_FACTORY_RESET)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .build();
-        return performDisconnectingCommand(morpheusCommand, createSimpleCommandTimeout())
-                .map(Functions.createMapperToVoid());
+    @CheckResult
+    public Observable<Void> setCountryCode(@NonNull CountryCode countryCode) {
+        return perform(SenseCommand.SET_COUNTRY_CODE,
+                       MorpheusCommand.newBuilder().setCountryCode(countryCode.toString()));
     }
 
+    /**
+     * @param serverIp  The IPv4 address of the server, packed into an int.
+     */
     @CheckResult
-    public Observable<Void> pushData() {
-        logger.info(GattPeripheral.LOG_TAG, "pushData()");
+    public Observable<Void> setServerIp(int serverIp) {
+        return perform(SenseCommand.SET_SERVER_IP, MorpheusCommand.newBuilder().setServerIp(serverIp));
+    }
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
-        }
+    /**
+     * Measures the round trip time of commands sent to Sense by timing <code>GET_TIME</code>
+     * commands until a {@link RoundTripEstimator} settles. Notifications are left enabled
+     * between samples, so only the first sample pays for enabling them, and that sample
+     * is discarded by the estimator's minimum round trip filtering.
+     * <p />
+     * Sense's response to <code>GET_TIME</code> is only used for timing,
+     * an error response is as good a sample as any other response.
+     */
+    @CheckResult
+    public Observable<RoundTripEstimator> measureRoundTrip() {
+        logger.info(GattPeripheral.LOG_TAG, "measureRoundTrip()");
 
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(CommandType.MORPHEUS_COMMAND_PUSH_DATA_AFTER_SET_TIMEZONE)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .build();
-        return performSimpleCommand(morpheusCommand, createSimpleCommandTimeout())
-                .map(Functions.createMapperToVoid());
+        return Observable.defer(new Func0<Observable<RoundTripEstimator>>() {
+            @Override
+            public Observable<RoundTripEstimator> call() {
+                final RoundTripEstimator estimator = new RoundTripEstimator();
+                final Action0 release = holdResponseSubscription();
+                return Observable.range(0, RoundTripEstimator.MAXIMUM_SAMPLES)
+                                 .concatMap(new Func1<Integer, Observable<Long>>() {
+                                     @Override
+                                     public Observable<Long> call(Integer ignored) {
+                                         return sampleRoundTrip();
+                                     }
+                                 })
+                                 .takeUntil(new Func1<Long, Boolean>() {
+                                     @Override
+                                     public Boolean call(Long rttMs) {
+                                         estimator.add(rttMs);
+                                         return estimator.isSettled();
+                                     }
+                                 })
+                                 .last()
+                                 .map(Functions.<Long, RoundTripEstimator>createMapperToValue(estimator))
+                                 .doOnNext(new Action1<RoundTripEstimator>() {
+                                     @Override
+                                     public void call(RoundTripEstimator estimator) {
+                                         logger.info(GattPeripheral.LOG_TAG, "Measured " + estimator);
+                                     }
+                                 })
+                                 .finallyDo(release)
+                                 .doOnUnsubscribe(release);
+            }
+        });
     }
 
+    /**
+     * Checks that Sense still responds to commands over the current connection by
+     * timing a single <code>GET_TIME</code> command. Unlike {@link #isConnected()},
+     * catches a stale connection that the stack still reports as connected.
+     * <p />
+     * Emits the round trip time in milliseconds.
+     */
     @CheckResult
-    public Observable<Void> runLedAnimation(@NonNull SenseLedAnimation animationType) {
-        logger.info(GattPeripheral.LOG_TAG, "runLedAnimation(" + animationType + ")");
+    public Observable<Long> ping() {
+        logger.info(GattPeripheral.LOG_TAG, "ping()");
+
+        return sampleRoundTrip();
+    }
+
+    private Observable<Long> sampleRoundTrip() {
+        final MorpheusCommand command = MorpheusCommand.newBuilder()
+                                                       .setType(CommandType.MORPHEUS_COMMAND_GET_TIME)
+                                                       .setVersion(commandVersion)
+                                                       .setAppVersion(APP_VERSION)
+                                                       .build();
+        final Scheduler clock = gattPeripheral.getStack().getScheduler();
+        return performCommand(command, createSimpleCommandTimeout(), new ResponseHandler<Long>() {
+            long startedAt;
+
+            @Override
+            void configure(@NonNull Subscriber<? super Long> subscriber,
+                           @NonNull OperationTimeout timeout) {
+                super.configure(subscriber, timeout);
+                this.startedAt = clock.now();
+            }
+
+            @Override
+            void onResponse(@NonNull MorpheusCommand response) {
+                final long rttMs = clock.now() - startedAt;
+                timeout.unschedule();
+                packetListener.setResponseListener(null);
+
+                if (response.getType() == CommandType.MORPHEUS_COMMAND_ERROR &&
+                        response.getError() == SenseCommandProtos.ErrorType.TIME_OUT) {
+                    propagateResponseError(response, null);
+                } else {
+                    subscriber.onNext(rttMs);
+                    subscriber.onCompleted();
+                }
+            }
+        });
+    }
+
+    /**
+     * Connects Sense to a WiFi network, links it to an account, pairs a pill, and tells Sense
+     * to push its data. Notifications from Sense are left enabled between each step, and the
+     * whole operation shares a single deadline instead of each command having its own.
+     * <p />
+     * Errors are wrapped in a {@link SenseProvisionError} describing the step that failed,
+     * which can be passed back in as <code>resumeFrom</code> to retry from that step.
+     *
+     * @param resumeFrom    The step to start from, or <code>null</code> to start from the beginning.
+     */
+    @CheckResult
+    public Observable<SenseProvisionUpdate> provision(@NonNull final String ssid,
+                                                      @NonNull final wifi_endpoint.sec_type securityType,
+                                                      @Nullable final String password,
+                                                      @NonNull final String accountToken,
+                                                      @Nullable final SenseProvisionUpdate.Step resumeFrom) {
+        logger.info(GattPeripheral.LOG_TAG, "provision(" + ssid + ", " + resumeFrom + ")");
+
+        return Observable.defer(new Func0<Observable<SenseProvisionUpdate>>() {
+            @Override
+            public Observable<SenseProvisionUpdate> call() {
+                final SenseProvisionUpdate.Step[] currentStep = {SenseProvisionUpdate.Step.CONNECT_WIFI};
+                final List<Observable<SenseProvisionUpdate>> steps = new ArrayList<>();
+                for (final SenseProvisionUpdate.Step step : SenseProvisionUpdate.Step.values()) {
+                    if (resumeFrom != null && step.compareTo(resumeFrom) < 0) {
+                        continue;
+                    }
+
+                    final Observable<SenseProvisionUpdate> perform = Observable.defer(new Func0<Observable<SenseProvisionUpdate>>() {
+                        @Override
+                        public Observable<SenseProvisionUpdate> call() {
+                            currentStep[0] = step;
+                            return performProvisionStep(step, ssid, securityType,
+                                                        password, accountToken);
+                        }
+                    });
+                    steps.add(Observable.just(new SenseProvisionUpdate(step, false, null))
+                                        .concatWith(perform));
+                }
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
+                final Observable<Long> deadline = Observable.timer(PROVISION_TIMEOUT_S, TimeUnit.SECONDS,
+                                                                   gattPeripheral.getStack().getScheduler())
+                                                            .cache();
+                final Observable<SenseProvisionUpdate> deadlineExceeded = Observable.defer(new Func0<Observable<SenseProvisionUpdate>>() {
+                    @Override
+                    public Observable<SenseProvisionUpdate> call() {
+                        final OperationTimeoutException timeout =
+                                new OperationTimeoutException(Operation.COMMAND_RESPONSE);
+                        return Observable.error(new SenseProvisionError(currentStep[0], timeout));
+                    }
+                });
+
+                final Action0 release = holdResponseSubscription();
+                return Observable.concat(Observable.from(steps))
+                                 .onErrorResumeNext(new Func1<Throwable, Observable<SenseProvisionUpdate>>() {
+                                     @Override
+                                     public Observable<SenseProvisionUpdate> call(Throwable error) {
+                                         return Observable.error(new SenseProvisionError(currentStep[0], error));
+                                     }
+                                 })
+                                 .timeout(new Func0<Observable<Long>>() {
+                                     @Override
+                                     public Observable<Long> call() {
+                                         return deadline;
+                                     }
+                                 }, new Func1<SenseProvisionUpdate, Observable<Long>>() {
+                                     @Override
+                                     public Observable<Long> call(SenseProvisionUpdate ignored) {
+                                         return deadline;
+                                     }
+                                 }, deadlineExceeded)
+                                 .finallyDo(release)
+                                 .doOnUnsubscribe(release);
+            }
+        });
+    }
+
+    private Observable<SenseProvisionUpdate> performProvisionStep(@NonNull final SenseProvisionUpdate.Step step,
+                                                                  @NonNull String ssid,
+                                                                  @NonNull wifi_endpoint.sec_type securityType,
+                                                                  @Nullable String password,
+                                                                  @NonNull String accountToken) {
+        final SenseProvisionUpdate finished = new SenseProvisionUpdate(step, true, null);
+        switch (step) {
+            case CONNECT_WIFI:
+                return connectToWiFiNetwork(ssid, securityType, password)
+                        .last()
+                        .map(Functions.<SenseConnectToWiFiUpdate, SenseProvisionUpdate>createMapperToValue(finished));
+
+            case LINK_ACCOUNT:
+                return linkAccount(accountToken)
+                        .map(Functions.<Void, SenseProvisionUpdate>createMapperToValue(finished));
+
+            case PAIR_PILL:
+                return pairPill(accountToken)
+                        .map(new Func1<String, SenseProvisionUpdate>() {
+                            @Override
+                            public SenseProvisionUpdate call(String pillId) {
+                                return new SenseProvisionUpdate(step, true, pillId);
+                            }
+                        });
+
+            case PUSH_DATA:
+                return pushData()
+                        .map(Functions.<Void, SenseProvisionUpdate>createMapperToValue(finished));
+
+            default:
+                throw new IllegalArgumentException("Unknown step " + step);
         }
+    }
 
-        final MorpheusCommand morpheusCommand =
-                MorpheusCommand.newBuilder()
-                               .setType(animationType.commandType)
-                               .setVersion(commandVersion)
-                               .setAppVersion(APP_VERSION)
-                               .build();
-        return performSimpleCommand(morpheusCommand, createAnimationTimeout())
-                .map(Functions.createMapperToVoid());
+    /**
+     * Keeps the command response subscription open for the duration of a composite
+     * operation, returning an action that releases the hold. The action may be invoked
+     * from both the termination and unsubscription of the operation, it only releases once.
+     */
+    private Action0 holdResponseSubscription() {
+        this.responseSubscriptionHolds++;
+
+        final boolean[] released = {false};
+        return new Action0() {
+            @Override
+            public void call() {
+                if (!released[0]) {
+                    released[0] = true;
+                    releaseResponseSubscription();
+                }
+            }
+        };
+    }
+
+    /**
+     * Stops holding the command response subscription open after a composite operation,
+     * disabling notifications once no other operation holds them and nothing else
+     * requires them to stay enabled.
+     */
+    private void releaseResponseSubscription() {
+        if (responseSubscriptionHolds == 0) {
+            logger.warn(GattPeripheral.LOG_TAG, "Unbalanced releaseResponseSubscription(), ignoring.", null);
+            return;
+        }
+
+        this.responseSubscriptionHolds--;
+        if (responseSubscriptionHolds > 0 || !responseSubscribed || persistentResponseSubscription || !isConnected()) {
+            return;
+        }
+
+        unsubscribeResponse(createStackTimeout("Unsubscribe")).subscribe(new Subscriber<UUID>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                logger.warn(GattPeripheral.LOG_TAG, "Could not unsubscribe after composite operation, ignoring.", e);
+            }
+
+            @Override
+            public void onNext(UUID uuid) {
+            }
+        });
+    }
+
+    @CheckResult
+    public Observable<Void> runLedAnimation(@NonNull SenseLedAnimation animationType) {
+        return perform(SenseCommand.forAnimation(animationType), null);
     }
 
     @CheckResult
     public Observable<List<wifi_endpoint>> scanForWifiNetworks(@Nullable CountryCode countryCode) {
         logger.info(GattPeripheral.LOG_TAG, "scanForWifiNetworks()");
 
-        if (isBusy()) {
-            return Observable.error(new SenseBusyError());
+        return scanWifiEndpoints(countryCode).toList();
+    }
+
+    /**
+     * Scans for WiFi networks, emitting each access point as soon as Sense reports it.
+     * <p />
+     * Access points with a BSSID that has already been emitted are dropped. An access
+     * point is only emitted for an SSID that has already been emitted if its RSSI is
+     * stronger, in which case it should replace the earlier access point.
+     * <p />
+     * Up to {@link #WIFI_STREAM_BUFFER_CAPACITY} access points are buffered for slow
+     * subscribers. Because duplicates are dropped before the buffer, it only overflows
+     * if a scan reports more distinct networks than that, in which case the stream
+     * fails with a <code>MissingBackpressureException</code>.
+     */
+    @CheckResult
+    public Observable<wifi_endpoint> streamWifiNetworks(@Nullable final CountryCode countryCode) {
+        logger.info(GattPeripheral.LOG_TAG, "streamWifiNetworks()");
+
+        return Observable.defer(new Func0<Observable<wifi_endpoint>>() {
+            @Override
+            public Observable<wifi_endpoint> call() {
+                return scanWifiEndpoints(countryCode).filter(createWifiEndpointFilter());
+            }
+        }).onBackpressureBuffer(WIFI_STREAM_BUFFER_CAPACITY, new Action0() {
+            @Override
+            public void call() {
+                logger.warn(GattPeripheral.LOG_TAG, "WiFi scan buffer overflowed, subscriber is not keeping up.", null);
+            }
+        });
+    }
+
+    /**
+     * Starts a WiFi scan in the background, holding onto its results so that the next
+     * scan with the same country code either joins it, or returns its results at once.
+     */
+    private void prefetchWifiScan(@Nullable final CountryCode countryCode) {
+        logger.info(GattPeripheral.LOG_TAG, "prefetchWifiScan()");
+
+        performWifiScan(countryCode).toList().subscribe(new Subscriber<List<wifi_endpoint>>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                logger.warn(GattPeripheral.LOG_TAG, "Could not prefetch WiFi scan, ignoring.", e);
+            }
+
+            @Override
+            public void onNext(List<wifi_endpoint> endpoints) {
+                responseCache.put(getPrefetchedWifiScanKey(countryCode), endpoints,
+                                  TimeUnit.SECONDS.toMillis(PREFETCHED_WIFI_SCAN_TTL_S));
+            }
+        });
+    }
+
+    private @Nullable List<wifi_endpoint> takePrefetchedWifiScan(@Nullable CountryCode countryCode) {
+        final String key = getPrefetchedWifiScanKey(countryCode);
+        final List<wifi_endpoint> prefetched = responseCache.get(key);
+        if (prefetched != null) {
+            // Held results are only used once, so that asking to rescan performs a real scan.
+            responseCache.invalidate(key);
         }
+        return prefetched;
+    }
+
+    private static String getPrefetchedWifiScanKey(@Nullable CountryCode countryCode) {
+        return SenseResponseCache.KEY_PREFETCHED_WIFI_SCAN + ":" + countryCode;
+    }
+
+    /**
+     * Creates a stateful filter that drops access points with a BSSID it has already seen,
+     * and access points no stronger than the strongest it has seen with the same SSID.
+     */
+    @VisibleForTesting
+    static Func1<wifi_endpoint, Boolean> createWifiEndpointFilter() {
+        final Set<ByteString> seenBssids = new HashSet<>();
+        final SimpleArrayMap<String, Integer> strongestRssis = new SimpleArrayMap<>();
+        return new Func1<wifi_endpoint, Boolean>() {
+            @Override
+            public Boolean call(wifi_endpoint endpoint) {
+                if (endpoint.hasBssid() && !seenBssids.add(endpoint.getBssid())) {
+                    return false;
+                }
+
+                final Integer strongestRssi = strongestRssis.get(endpoint.getSsid());
+                if (strongestRssi != null && endpoint.getRssi() <= strongestRssi) {
+                    return false;
+                }
+
+                strongestRssis.put(endpoint.getSsid(), endpoint.getRssi());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Performs a WiFi scan, emitting every access point with an SSID as it is reported
+     * by Sense. The prefetched scan is used instead if there is one when subscribed to.
+     */
+    private Observable<wifi_endpoint> scanWifiEndpoints(@Nullable final CountryCode countryCode) {
+        return Observable.defer(new Func0<Observable<wifi_endpoint>>() {
+            @Override
+            public Observable<wifi_endpoint> call() {
+                final List<wifi_endpoint> prefetched = takePrefetchedWifiScan(countryCode);
+                if (prefetched != null) {
+                    logger.info(GattPeripheral.LOG_TAG, "Using prefetched WiFi scan");
+                    return Observable.from(prefetched);
+                }
+
+                // The scan may be shared with a prefetch that is still in flight, whose
+                // results must not be handed out again when the caller asks to rescan.
+                return performWifiScan(countryCode).finallyDo(new Action0() {
+                    @Override
+                    public void call() {
+                        responseCache.invalidate(getPrefetchedWifiScanKey(countryCode));
+                    }
+                });
+            }
+        });
+    }
 
+    /**
+     * Performs a WiFi scan on Sense, without consulting the prefetched scan.
+     * Concurrent scans with the same country code are coalesced.
+     */
+    private Observable<wifi_endpoint> performWifiScan(@Nullable CountryCode countryCode) {
         final MorpheusCommand.Builder builder =
                 MorpheusCommand.newBuilder()
                                .setType(CommandType.MORPHEUS_COMMAND_START_WIFISCAN)
@@ -1090,9 +2250,7 @@ public class SensePeripheral {
 
         final MorpheusCommand command = builder.build();
 
-        return performCommand(command, createScanWifiTimeout(), new ResponseHandler<List<wifi_endpoint>>() {
-            final List<wifi_endpoint> endpoints = new ArrayList<>();
-
+        final Observable<wifi_endpoint> scan = performCommand(command, createScanWifiTimeout(), new ResponseHandler<wifi_endpoint>() {
             @Override
             void onResponse(@NonNull final MorpheusCommand response) {
                 if (response.getType() == CommandType.MORPHEUS_COMMAND_START_WIFISCAN) {
@@ -1101,24 +2259,23 @@ public class SensePeripheral {
                     if (response.getWifiScanResultCount() == 1
                             && response.getWifiScanResult(0).hasSsid()
                             && !response.getWifiScanResult(0).getSsid().isEmpty()) {
-                        endpoints.add(response.getWifiScanResult(0));
+                        subscriber.onNext(response.getWifiScanResult(0));
                     }
                 } else if (response.getType() == CommandType.MORPHEUS_COMMAND_STOP_WIFISCAN) {
                     timeout.unschedule();
+                    packetListener.setResponseListener(null);
 
                     final Observable<UUID> unsubscribe =
                             unsubscribeResponse(createStackTimeout("Unsubscribe"));
                     unsubscribe.subscribe(new Action1<UUID>() {
                         @Override
                         public void call(UUID ignored) {
-                            packetListener.setResponseListener(null);
-
-                            subscriber.onNext(endpoints);
                             subscriber.onCompleted();
                         }
                     }, this);
                 } else if (response.getType() == CommandType.MORPHEUS_COMMAND_ERROR) {
                     timeout.unschedule();
+                    packetListener.setResponseListener(null);
 
                     final Observable<UUID> unsubscribe =
                             unsubscribeResponse(createStackTimeout("Unsubscribe"));
@@ -1162,6 +2319,88 @@ public class SensePeripheral {
                 }
             }
         });
+        final Observable<wifi_endpoint> indexedScan = scan.doOnNext(new Action1<wifi_endpoint>() {
+            @Override
+            public void call(wifi_endpoint endpoint) {
+                wifiAccessPointIndex.add(endpoint);
+            }
+        });
+        return coalesceRead(command.getType() + ":" + command.getCountryCode(), indexedScan);
+    }
+
+    //endregion
+
+
+    //region Unsolicited Messages
+
+    /**
+     * Returns an observable that emits messages of a given type that Sense sends without
+     * being asked, such as pill heartbeats and proximity data. Never completes.
+     * <p />
+     * Messages are only received while notifications from the command response
+     * characteristic are enabled, see {@link #setPersistentResponseSubscription(boolean)}.
+     * Each subscriber buffers messages it has not requested yet according to the overflow
+     * policy of the type, so a slow subscriber never holds up responses to commands.
+     */
+    @CheckResult
+    public Observable<MorpheusCommand> observeUnsolicited(@NonNull CommandType type) {
+        return pushChannel.observe(type);
+    }
+
+    /**
+     * Sets how unsolicited messages of a given type are buffered for subscribers that have
+     * not requested them yet. Pill telemetry keeps the newest {@link SensePushChannel#DEFAULT_CAPACITY}
+     * messages by default, every other type only keeps the latest message.
+     * Only affects subsequent subscriptions.
+     */
+    public void setUnsolicitedOverflowPolicy(@NonNull CommandType type,
+                                            @NonNull SensePushChannel.OverflowPolicy overflowPolicy,
+                                            int capacity) {
+        pushChannel.setOverflowPolicy(type, overflowPolicy, capacity);
+    }
+
+    /**
+     * Returns the number of unsolicited messages discarded because a subscriber's buffer was full.
+     */
+    public long getDroppedUnsolicitedCount() {
+        return pushChannel.getDroppedCount();
+    }
+
+    /**
+     * Returns an observable that collects pill data and heartbeats pushed by Sense into
+     * columnar batches. A batch is emitted once it holds <code>maximumCount</code> records,
+     * or <code>timespanMs</code> after the previous batch, whichever comes first.
+     * Empty batches are not emitted.
+     */
+    @CheckResult
+    public Observable<PillTelemetry> observePillTelemetry(long timespanMs, int maximumCount) {
+        final Observable<MorpheusCommand> records =
+                Observable.merge(observeUnsolicited(CommandType.MORPHEUS_COMMAND_PILL_DATA),
+                                 observeUnsolicited(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT))
+                          .filter(new Func1<MorpheusCommand, Boolean>() {
+                              @Override
+                              public Boolean call(MorpheusCommand message) {
+                                  return message.hasPillData();
+                              }
+                          });
+        return records.buffer(timespanMs, TimeUnit.MILLISECONDS, maximumCount,
+                              gattPeripheral.getStack().getScheduler())
+                      .filter(new Func1<List<MorpheusCommand>, Boolean>() {
+                          @Override
+                          public Boolean call(List<MorpheusCommand> batch) {
+                              return !batch.isEmpty();
+                          }
+                      })
+                      .map(new Func1<List<MorpheusCommand>, PillTelemetry>() {
+                          @Override
+                          public PillTelemetry call(List<MorpheusCommand> batch) {
+                              final PillTelemetry.Builder builder = new PillTelemetry.Builder();
+                              for (final MorpheusCommand message : batch) {
+                                  builder.append(message.getPillData());
+                              }
+                              return builder.build();
+                          }
+                      });
     }
 
     //endregion
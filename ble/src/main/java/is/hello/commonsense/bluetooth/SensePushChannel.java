@@ -0,0 +1,276 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.v4.util.SimpleArrayMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.commonsense.bluetooth.model.ProtobufPacketListener;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand.CommandType;
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Delivers messages Sense pushes without being asked to subscribers, routed by command type.
+ * <p />
+ * Each subscriber has its own bounded ring buffer, and is only sent as many messages as it
+ * has requested. Messages that arrive while a subscriber's buffer is full are handled by the
+ * overflow policy of their command type, so a burst of pushed messages never blocks the
+ * thread packets are delivered on, and never holds up responses to commands.
+ */
+public final class SensePushChannel implements ProtobufPacketListener.UnsolicitedListener {
+    /**
+     * What to do with a message that arrives while a subscriber's buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest buffered message to make room.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Only ever buffer the newest message. Suited to messages
+         * that describe the current state of Sense.
+         */
+        LATEST_ONLY,
+    }
+
+    /**
+     * The number of messages buffered per subscriber by default
+     * for types using {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    static final int DEFAULT_CAPACITY = 64;
+
+    private final LoggerFacade logger;
+    private final SimpleArrayMap<CommandType, Policy> policies = new SimpleArrayMap<>();
+    private final SimpleArrayMap<CommandType, List<Channel>> channels = new SimpleArrayMap<>();
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+
+    SensePushChannel(@NonNull LoggerFacade logger) {
+        this.logger = logger;
+    }
+
+
+    //region Policies
+
+    /**
+     * Sets how messages of a given type are buffered. Only affects subscribers
+     * that subscribe after the policy is changed.
+     *
+     * @param capacity  The number of messages buffered per subscriber.
+     *                  Ignored for {@link OverflowPolicy#LATEST_ONLY}.
+     */
+    void setOverflowPolicy(@NonNull CommandType type,
+                           @NonNull OverflowPolicy overflowPolicy,
+                           int capacity) {
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST && capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+
+        synchronized (policies) {
+            policies.put(type, new Policy(overflowPolicy, capacity));
+        }
+    }
+
+    /**
+     * Pill telemetry is buffered so that a slow subscriber still sees recent history,
+     * every other pushed message describes the current state of Sense.
+     */
+    @NonNull Policy getPolicy(@NonNull CommandType type) {
+        synchronized (policies) {
+            final Policy policy = policies.get(type);
+            if (policy != null) {
+                return policy;
+            }
+        }
+
+        if (ProtobufPacketListener.isPushOnly(type)) {
+            return new Policy(OverflowPolicy.DROP_OLDEST, DEFAULT_CAPACITY);
+        } else {
+            return new Policy(OverflowPolicy.LATEST_ONLY, 1);
+        }
+    }
+
+    //endregion
+
+
+    //region Delivery
+
+    /**
+     * Returns an observable that emits every message of a given type pushed by Sense
+     * while it is subscribed to. Never completes, and honors backpressure.
+     */
+    Observable<MorpheusCommand> observe(@NonNull final CommandType type) {
+        return Observable.create(new Observable.OnSubscribe<MorpheusCommand>() {
+            @Override
+            public void call(Subscriber<? super MorpheusCommand> subscriber) {
+                final Channel channel = new Channel(subscriber, getPolicy(type));
+                synchronized (channels) {
+                    List<Channel> forType = channels.get(type);
+                    if (forType == null) {
+                        forType = new ArrayList<>();
+                        channels.put(type, forType);
+                    }
+                    forType.add(channel);
+                }
+
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        synchronized (channels) {
+                            final List<Channel> forType = channels.get(type);
+                            if (forType != null) {
+                                forType.remove(channel);
+                            }
+                        }
+                    }
+                }));
+                subscriber.setProducer(channel);
+            }
+        });
+    }
+
+    /**
+     * Called on the thread packets are delivered on.
+     */
+    @Override
+    public void onUnsolicitedData(MorpheusCommand message) {
+        final Channel[] targets;
+        synchronized (channels) {
+            final List<Channel> forType = channels.get(message.getType());
+            if (forType == null || forType.isEmpty()) {
+                logger.info(GattPeripheral.LOG_TAG, "Dropping unobserved push " + message.getType());
+                return;
+            }
+            targets = forType.toArray(new Channel[forType.size()]);
+        }
+
+        for (final Channel channel : targets) {
+            try {
+                channel.offer(message);
+            } catch (Throwable e) {
+                logger.error(GattPeripheral.LOG_TAG, "Push subscriber threw, ignoring.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages discarded because a subscriber's buffer was full.
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    //endregion
+
+
+    static final class Policy {
+        final OverflowPolicy overflowPolicy;
+        final int capacity;
+
+        Policy(@NonNull OverflowPolicy overflowPolicy, int capacity) {
+            this.overflowPolicy = overflowPolicy;
+            this.capacity = (overflowPolicy == OverflowPolicy.LATEST_ONLY) ? 1 : capacity;
+        }
+    }
+
+    private final class Channel implements Producer {
+        private final Subscriber<? super MorpheusCommand> subscriber;
+        private final MorpheusCommand[] buffer;
+        private int head = 0;
+        private int count = 0;
+
+        private final AtomicLong requested = new AtomicLong(0);
+        private final AtomicInteger draining = new AtomicInteger(0);
+
+        Channel(@NonNull Subscriber<? super MorpheusCommand> subscriber, @NonNull Policy policy) {
+            this.subscriber = subscriber;
+            this.buffer = new MorpheusCommand[policy.capacity];
+        }
+
+        void offer(@NonNull MorpheusCommand message) {
+            synchronized (buffer) {
+                if (count == buffer.length) {
+                    buffer[head] = null;
+                    this.head = (head + 1) % buffer.length;
+                    this.count--;
+                    droppedCount.incrementAndGet();
+                }
+                buffer[(head + count) % buffer.length] = message;
+                this.count++;
+            }
+
+            drain();
+        }
+
+        private MorpheusCommand poll() {
+            synchronized (buffer) {
+                if (count == 0) {
+                    return null;
+                }
+
+                final MorpheusCommand message = buffer[head];
+                buffer[head] = null;
+                this.head = (head + 1) % buffer.length;
+                this.count--;
+                return message;
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                return;
+            }
+
+            while (true) {
+                final long current = requested.get();
+                final long next = (current + n < 0) ? Long.MAX_VALUE : current + n;
+                if (requested.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+
+            drain();
+        }
+
+        /**
+         * Emits buffered messages while the subscriber has outstanding requests. Only one
+         * thread drains at a time, a thread that finds another draining leaves it more work.
+         */
+        private void drain() {
+            if (draining.getAndIncrement() != 0) {
+                return;
+            }
+
+            try {
+                do {
+                    while (requested.get() > 0 && !subscriber.isUnsubscribed()) {
+                        final MorpheusCommand message = poll();
+                        if (message == null) {
+                            break;
+                        }
+
+                        if (requested.get() != Long.MAX_VALUE) {
+                            requested.decrementAndGet();
+                        }
+                        subscriber.onNext(message);
+                    }
+                } while (draining.decrementAndGet() != 0);
+            } catch (RuntimeException e) {
+                draining.set(0);
+                throw e;
+            }
+        }
+    }
+}
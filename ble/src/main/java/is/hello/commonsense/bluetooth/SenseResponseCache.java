@@ -0,0 +1,77 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.SimpleArrayMap;
+
+import rx.Scheduler;
+
+/**
+ * Holds on to values read from a single peripheral for a limited time,
+ * so that they can be read again without a round trip to Sense.
+ * <p />
+ * Expiration is measured against the clock of a given scheduler.
+ */
+final class SenseResponseCache {
+    static final String KEY_WIFI_NETWORK = "WIFI_NETWORK";
+    static final String KEY_PILL_ID = "PILL_ID";
+    static final String KEY_FIRMWARE_VERSION = "FIRMWARE_VERSION";
+    static final String KEY_TOP_VERSION = "TOP_VERSION";
+    static final String KEY_PREFETCHED_WIFI_SCAN = "PREFETCHED_WIFI_SCAN";
+
+    private final Scheduler scheduler;
+    private final SimpleArrayMap<String, Entry> entries = new SimpleArrayMap<>();
+
+
+    SenseResponseCache(@NonNull Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+
+    /**
+     * Returns the value for a key, or <code>null</code> if there is none or it has expired.
+     */
+    synchronized @Nullable <T> T get(@NonNull String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (scheduler.now() >= entry.expiresAt) {
+            entries.remove(key);
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        final T value = (T) entry.value;
+        return value;
+    }
+
+    /**
+     * Stores a value for a key, replacing any existing value.
+     *
+     * @param timeToLiveMs How long the value should be returned by {@link #get(String)}.
+     */
+    synchronized void put(@NonNull String key, @NonNull Object value, long timeToLiveMs) {
+        entries.put(key, new Entry(value, scheduler.now() + timeToLiveMs));
+    }
+
+    synchronized void invalidate(@NonNull String key) {
+        entries.remove(key);
+    }
+
+    synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+
+    private static final class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(@NonNull Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
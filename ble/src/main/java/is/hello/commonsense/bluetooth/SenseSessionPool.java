@@ -0,0 +1,498 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.CheckResult;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.commonsense.util.ConnectProgress;
+import is.hello.commonsense.util.Functions;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * Keeps connections to recently used Senses open, so that operations performed back
+ * to back on the same Sense do not have to go through {@link SensePeripheral#connect()}
+ * each time. Sessions are keyed by {@link SensePeripheral#getDeviceId()}.
+ * <p />
+ * A session is handed out by one of the <code>acquire</code> methods, and returned to
+ * the pool by {@link #release(SensePeripheral)}. A session that has not been acquired
+ * again within the idle timeout is disconnected. Once the pool is full, the least
+ * recently used idle session is disconnected to make room for a new one.
+ * <p />
+ * Sessions are checked to still be connected and bonded, and to still respond
+ * to a {@link SensePeripheral#ping()}, before being handed out.
+ */
+public final class SenseSessionPool {
+    private static final String LOG_TAG = SenseSessionPool.class.getSimpleName();
+
+    /**
+     * The number of sessions kept open by default.
+     */
+    public static final int DEFAULT_MAXIMUM_SESSIONS = 3;
+
+    /**
+     * How long a session is kept open after being released by default.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * How long Sense has to answer the probe sent before a pooled session is handed out.
+     */
+    static final long PROBE_TIMEOUT_MS = 5 * 1000;
+
+    private final BluetoothStack stack;
+    private final Scheduler scheduler;
+    private final LoggerFacade logger;
+    private final int maximumSessions;
+    private final long idleTimeoutMs;
+
+    /**
+     * Iterates from the least to the most recently used session.
+     */
+    private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Connection attempts currently in flight, keyed by device id. Guarded by {@link #sessions}.
+     */
+    private final Map<String, Observable<SensePeripheral>> connecting = new HashMap<>();
+    private int hitCount = 0;
+    private int missCount = 0;
+
+
+    //region Lifecycle
+
+    public SenseSessionPool(@NonNull BluetoothStack stack) {
+        this(stack, DEFAULT_MAXIMUM_SESSIONS, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public SenseSessionPool(@NonNull BluetoothStack stack, int maximumSessions, long idleTimeoutMs) {
+        if (maximumSessions < 1) {
+            throw new IllegalArgumentException("maximumSessions < 1");
+        }
+
+        this.stack = stack;
+        this.scheduler = stack.getScheduler();
+        this.logger = stack.getLogger();
+        this.maximumSessions = maximumSessions;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    //endregion
+
+
+    //region Sessions
+
+    /**
+     * Returns a connected session for a given device id,
+     * rediscovering and connecting to the Sense if needed.
+     */
+    @CheckResult
+    public Observable<SensePeripheral> acquire(@NonNull final String deviceId) {
+        return acquireSession(deviceId, new Func0<Observable<SensePeripheral>>() {
+            @Override
+            public Observable<SensePeripheral> call() {
+                return SensePeripheral.rediscover(stack, deviceId, false)
+                                      .flatMap(new Func1<SensePeripheral, Observable<SensePeripheral>>() {
+                                          @Override
+                                          public Observable<SensePeripheral> call(SensePeripheral peripheral) {
+                                              return connect(deviceId, peripheral);
+                                          }
+                                      });
+            }
+        });
+    }
+
+    /**
+     * Returns a connected session for a given peripheral. The existing session
+     * for the peripheral's device id is returned if there is a healthy one.
+     */
+    @CheckResult
+    public Observable<SensePeripheral> acquire(@NonNull final SensePeripheral peripheral) {
+        final String deviceId = peripheral.getDeviceId();
+        if (deviceId == null) {
+            return Observable.error(new IllegalArgumentException("Peripheral has no device id"));
+        }
+
+        return acquireSession(deviceId, new Func0<Observable<SensePeripheral>>() {
+            @Override
+            public Observable<SensePeripheral> call() {
+                return connect(deviceId, peripheral);
+            }
+        });
+    }
+
+    /**
+     * Returns a session to the pool. The session is disconnected if it is not
+     * acquired again within the idle timeout. Peripherals that did not come
+     * from the pool are disconnected immediately.
+     */
+    public void release(@NonNull SensePeripheral peripheral) {
+        final String deviceId = peripheral.getDeviceId();
+        synchronized (sessions) {
+            final Session session = (deviceId != null) ? sessions.get(deviceId) : null;
+            if (session != null && session.peripheral == peripheral) {
+                if (session.useCount <= 0) {
+                    logger.warn(LOG_TAG, "Session for " + deviceId + " released more times than acquired", null);
+                    return;
+                }
+
+                if (--session.useCount == 0) {
+                    scheduleIdleTimeout(deviceId, session);
+                }
+                return;
+            }
+        }
+
+        disconnectQuietly(peripheral);
+    }
+
+    /**
+     * Disconnects every session, including sessions that are currently acquired.
+     */
+    public void evictAll() {
+        final List<Session> evicted;
+        synchronized (sessions) {
+            evicted = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+
+        for (final Session session : evicted) {
+            session.cancelIdleTimeout();
+            disconnectQuietly(session.peripheral);
+        }
+    }
+
+    /**
+     * Hands out the healthy session for a device id if there is one. Otherwise
+     * connects a new session, sharing a single connection attempt between every
+     * caller that asks for the same device id while it is in flight. An unhealthy
+     * session is fully disconnected before the new connection is started.
+     *
+     * @param deviceId  The device id of the session.
+     * @param connect   Connects a new session and adds it to the pool.
+     */
+    private Observable<SensePeripheral> acquireSession(@NonNull final String deviceId,
+                                                      @NonNull final Func0<Observable<SensePeripheral>> connect) {
+        return Observable.defer(new Func0<Observable<SensePeripheral>>() {
+            @Override
+            public Observable<SensePeripheral> call() {
+                synchronized (sessions) {
+                    final Session session = sessions.get(deviceId);
+                    if (session == null) {
+                        return reconnect(deviceId, null, connect);
+                    }
+
+                    session.cancelIdleTimeout();
+                    if (isHealthy(session.peripheral)) {
+                        session.useCount++;
+                        return probe(deviceId, session, connect);
+                    }
+
+                    sessions.remove(deviceId);
+                    return reconnect(deviceId, session.peripheral, connect);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands out a pooled session once Sense has answered a {@link SensePeripheral#ping()}
+     * within {@link #PROBE_TIMEOUT_MS}. A session that does not answer is discarded and
+     * reconnected. The caller is counted as using the session while the probe is in flight,
+     * so the session cannot idle out or be evicted from under it.
+     */
+    private Observable<SensePeripheral> probe(@NonNull final String deviceId,
+                                              @NonNull final Session session,
+                                              @NonNull final Func0<Observable<SensePeripheral>> connect) {
+        final SensePeripheral peripheral = session.peripheral;
+        final boolean[] settled = {false};
+        return peripheral.ping()
+                         .timeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS, scheduler)
+                         .last()
+                         .map(Functions.<Long, SensePeripheral>createMapperToValue(peripheral))
+                         .doOnNext(new Action1<SensePeripheral>() {
+                             @Override
+                             public void call(SensePeripheral ignored) {
+                                 synchronized (sessions) {
+                                     settled[0] = true;
+                                     SenseSessionPool.this.hitCount++;
+                                 }
+                             }
+                         })
+                         .onErrorResumeNext(new Func1<Throwable, Observable<SensePeripheral>>() {
+                             @Override
+                             public Observable<SensePeripheral> call(Throwable e) {
+                                 logger.warn(LOG_TAG, "Session for " + deviceId + " did not respond to probe", e);
+                                 synchronized (sessions) {
+                                     settled[0] = true;
+                                     session.useCount--;
+                                     if (sessions.get(deviceId) == session) {
+                                         sessions.remove(deviceId);
+                                     }
+                                     return reconnect(deviceId, peripheral, connect);
+                                 }
+                             }
+                         })
+                         .doOnUnsubscribe(new Action0() {
+                             @Override
+                             public void call() {
+                                 synchronized (sessions) {
+                                     if (settled[0]) {
+                                         return;
+                                     }
+                                     settled[0] = true;
+                                 }
+                                 release(peripheral);
+                             }
+                         });
+    }
+
+    /**
+     * Connects a new session, or joins the connection attempt already in flight for a device id.
+     * Must be called while holding the {@link #sessions} lock.
+     *
+     * @param deviceId  The device id of the session.
+     * @param unhealthy The session being replaced, if any.
+     * @param connect   Connects a new session and adds it to the pool.
+     */
+    private Observable<SensePeripheral> reconnect(@NonNull final String deviceId,
+                                                  @Nullable SensePeripheral unhealthy,
+                                                  @NonNull Func0<Observable<SensePeripheral>> connect) {
+        Observable<SensePeripheral> inFlight = connecting.get(deviceId);
+        if (inFlight == null) {
+            this.missCount++;
+            if (unhealthy != null) {
+                logger.info(LOG_TAG, "Discarding unhealthy session for " + deviceId);
+            }
+
+            final Observable<?>[] shared = new Observable<?>[1];
+            inFlight = disconnectFirst(unhealthy, Observable.defer(connect))
+                    .finallyDo(new Action0() {
+                        @Override
+                        public void call() {
+                            synchronized (sessions) {
+                                if (connecting.get(deviceId) == shared[0]) {
+                                    connecting.remove(deviceId);
+                                }
+                            }
+                        }
+                    })
+                    .replay()
+                    .refCount();
+            shared[0] = inFlight;
+            connecting.put(deviceId, inFlight);
+        } else {
+            logger.info(LOG_TAG, "Joining in flight connect to " + deviceId);
+        }
+
+        return inFlight.doOnNext(new Action1<SensePeripheral>() {
+            @Override
+            public void call(SensePeripheral connected) {
+                retain(deviceId, connected);
+            }
+        });
+    }
+
+    /**
+     * Disconnects an unhealthy session before subscribing to a connect,
+     * so the disconnect cannot tear down the new connection.
+     */
+    private Observable<SensePeripheral> disconnectFirst(@Nullable SensePeripheral unhealthy,
+                                                        @NonNull Observable<SensePeripheral> connect) {
+        if (unhealthy == null || !unhealthy.isConnected()) {
+            return connect;
+        }
+
+        return unhealthy.disconnect()
+                        .ignoreElements()
+                        .onErrorResumeNext(new Func1<Throwable, Observable<SensePeripheral>>() {
+                            @Override
+                            public Observable<SensePeripheral> call(Throwable e) {
+                                logger.error(LOG_TAG, "Could not disconnect unhealthy session, ignoring.", e);
+                                return Observable.empty();
+                            }
+                        })
+                        .concatWith(connect);
+    }
+
+    private Observable<SensePeripheral> connect(@NonNull final String deviceId,
+                                                @NonNull final SensePeripheral peripheral) {
+        return peripheral.connect()
+                         .last()
+                         .map(Functions.<ConnectProgress, SensePeripheral>createMapperToValue(peripheral))
+                         .doOnNext(new Action1<SensePeripheral>() {
+                             @Override
+                             public void call(SensePeripheral connected) {
+                                 add(deviceId, connected);
+                             }
+                         });
+    }
+
+    /**
+     * Counts a caller of a newly connected session as using it.
+     */
+    private void retain(@NonNull String deviceId, @NonNull SensePeripheral peripheral) {
+        synchronized (sessions) {
+            final Session session = sessions.get(deviceId);
+            if (session != null && session.peripheral == peripheral) {
+                session.cancelIdleTimeout();
+                session.useCount++;
+            }
+        }
+    }
+
+    /**
+     * Adds a newly connected session to the pool. The session starts out unused,
+     * each caller it is handed to is counted by {@link #retain(String, SensePeripheral)}.
+     */
+    private void add(@NonNull String deviceId, @NonNull SensePeripheral peripheral) {
+        final List<Session> evicted = new ArrayList<>();
+        synchronized (sessions) {
+            final Session session = new Session(peripheral);
+
+            final Session replaced = sessions.put(deviceId, session);
+            if (replaced != null && replaced.peripheral != peripheral) {
+                replaced.cancelIdleTimeout();
+                if (replaced.useCount == 0) {
+                    evicted.add(replaced);
+                }
+                // A replaced session still in use is disconnected when it is released.
+            }
+
+            final Iterator<Map.Entry<String, Session>> iterator = sessions.entrySet().iterator();
+            while (sessions.size() > maximumSessions && iterator.hasNext()) {
+                final Session candidate = iterator.next().getValue();
+                if (candidate != session && candidate.useCount == 0) {
+                    iterator.remove();
+                    evicted.add(candidate);
+                }
+            }
+        }
+
+        for (final Session session : evicted) {
+            logger.info(LOG_TAG, "Evicting session for " + session.peripheral);
+            session.cancelIdleTimeout();
+            disconnectQuietly(session.peripheral);
+        }
+    }
+
+    private void scheduleIdleTimeout(@NonNull final String deviceId, @NonNull final Session session) {
+        final Scheduler.Worker worker = scheduler.createWorker();
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                worker.unsubscribe();
+
+                synchronized (sessions) {
+                    if (session.idleTimeout == worker) {
+                        session.idleTimeout = null;
+                    }
+                    if (sessions.get(deviceId) != session || session.useCount > 0) {
+                        return;
+                    }
+                    sessions.remove(deviceId);
+                }
+
+                logger.info(LOG_TAG, "Session for " + deviceId + " idle, disconnecting");
+                disconnectQuietly(session.peripheral);
+            }
+        }, idleTimeoutMs, TimeUnit.MILLISECONDS);
+        session.idleTimeout = worker;
+    }
+
+    private static boolean isHealthy(@NonNull SensePeripheral peripheral) {
+        return (peripheral.isConnected() &&
+                peripheral.getBondStatus() == GattPeripheral.BOND_BONDED);
+    }
+
+    private void disconnectQuietly(@NonNull SensePeripheral peripheral) {
+        if (!peripheral.isConnected()) {
+            return;
+        }
+
+        peripheral.disconnect().subscribe(new Subscriber<SensePeripheral>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                logger.error(LOG_TAG, "Could not disconnect pooled session, ignoring.", e);
+            }
+
+            @Override
+            public void onNext(SensePeripheral sensePeripheral) {
+                logger.info(LOG_TAG, "Disconnected pooled session " + sensePeripheral);
+            }
+        });
+    }
+
+    //endregion
+
+
+    //region Attributes
+
+    /**
+     * Returns the number of sessions currently open, whether acquired or idle.
+     */
+    public int getSessionCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    /**
+     * Returns the number of times an open session was handed out.
+     */
+    public int getHitCount() {
+        synchronized (sessions) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * Returns the number of times a session had to be connected.
+     */
+    public int getMissCount() {
+        synchronized (sessions) {
+            return missCount;
+        }
+    }
+
+    //endregion
+
+
+    private static final class Session {
+        final SensePeripheral peripheral;
+        int useCount = 0;
+        @Nullable Subscription idleTimeout;
+
+        Session(@NonNull SensePeripheral peripheral) {
+            this.peripheral = peripheral;
+        }
+
+        void cancelIdleTimeout() {
+            if (idleTimeout != null) {
+                idleTimeout.unsubscribe();
+                this.idleTimeout = null;
+            }
+        }
+    }
+}
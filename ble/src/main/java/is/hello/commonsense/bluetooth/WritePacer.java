@@ -0,0 +1,173 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Learns how quickly command packets can be written to a Sense through the phone's
+ * Bluetooth stack, by adjusting the number of packets kept in flight and the gap
+ * between packets with an additive-increase, multiplicative-decrease policy.
+ * <p />
+ * Pacers start out as cautious as a non-adaptive write, and open up for every window
+ * of packets written without signs of congestion. A failed write, or a write that
+ * takes much longer to be confirmed than the fastest write seen so far, halves the
+ * window and backs off the gap between packets.
+ * <p />
+ * Pacers are remembered per device address for the lifetime of the process.
+ */
+public final class WritePacer {
+    /**
+     * The smallest gap introduced after a failed write.
+     */
+    @VisibleForTesting static final long MINIMUM_BACK_OFF_GAP_MS = 10;
+
+    /**
+     * The largest gap the pacer will ever leave between packets.
+     */
+    @VisibleForTesting static final long MAXIMUM_GAP_MS = 160;
+
+    /**
+     * How much the gap between packets is reduced by after a window of uncongested writes.
+     */
+    @VisibleForTesting static final long GAP_DECREASE_MS = 5;
+
+    /**
+     * Write latencies at or below this value are never considered congested.
+     */
+    @VisibleForTesting static final long MINIMUM_CONGESTED_LATENCY_MS = 50;
+
+    /**
+     * How many times slower than the fastest write a write has to be to be considered congested.
+     */
+    private static final int CONGESTED_LATENCY_FACTOR = 2;
+
+    private static final Map<String, WritePacer> PACERS = new HashMap<>();
+
+    private final int maximumWindowSize;
+
+    private int windowSize = 1;
+    private long gapMs = 0;
+    private long minimumLatencyMs = Long.MAX_VALUE;
+    private int uncongestedWrites = 0;
+
+
+    //region Lifecycle
+
+    /**
+     * Returns the pacer for a given device address, creating it if needed.
+     */
+    public static @NonNull WritePacer forAddress(@NonNull String address) {
+        synchronized (PACERS) {
+            WritePacer pacer = PACERS.get(address);
+            if (pacer == null) {
+                pacer = new WritePacer(SensePeripheral.MAXIMUM_WRITE_WINDOW_SIZE);
+                PACERS.put(address, pacer);
+            }
+            return pacer;
+        }
+    }
+
+    /**
+     * Forgets the pacing learned for every device address.
+     */
+    public static void forgetAll() {
+        synchronized (PACERS) {
+            PACERS.clear();
+        }
+    }
+
+    @VisibleForTesting
+    WritePacer(int maximumWindowSize) {
+        if (maximumWindowSize < 1) {
+            throw new IllegalArgumentException("maximumWindowSize < 1");
+        }
+        this.maximumWindowSize = maximumWindowSize;
+    }
+
+    //endregion
+
+
+    //region Pacing
+
+    /**
+     * Returns the number of packets that should currently be kept in flight.
+     */
+    public synchronized int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Returns the number of milliseconds that should currently be left between packets.
+     */
+    public synchronized long getGapMs() {
+        return gapMs;
+    }
+
+    public int getMaximumWindowSize() {
+        return maximumWindowSize;
+    }
+
+    /**
+     * Restores a window size and gap previously read from a pacer for the same device,
+     * so that pacing does not have to be learned again from scratch. Values out of
+     * range for this pacer are clamped.
+     */
+    public synchronized void restore(int windowSize, long gapMs) {
+        this.windowSize = Math.max(1, Math.min(maximumWindowSize, windowSize));
+        this.gapMs = Math.max(0, Math.min(MAXIMUM_GAP_MS, gapMs));
+        this.uncongestedWrites = 0;
+    }
+
+    /**
+     * Informs the pacer that a packet was confirmed by the stack.
+     *
+     * @param latencyMs The time between the packet being written and being confirmed.
+     */
+    public synchronized void onPacketWritten(long latencyMs) {
+        if (latencyMs < minimumLatencyMs) {
+            this.minimumLatencyMs = latencyMs;
+        }
+
+        final long congestedLatencyMs = Math.max(MINIMUM_CONGESTED_LATENCY_MS,
+                                                 minimumLatencyMs * CONGESTED_LATENCY_FACTOR);
+        if (latencyMs > congestedLatencyMs) {
+            this.windowSize = Math.max(1, windowSize / 2);
+            this.uncongestedWrites = 0;
+            return;
+        }
+
+        this.uncongestedWrites++;
+        if (uncongestedWrites >= windowSize) {
+            if (gapMs > 0) {
+                this.gapMs = Math.max(0, gapMs - GAP_DECREASE_MS);
+            } else if (windowSize < maximumWindowSize) {
+                this.windowSize++;
+            }
+            this.uncongestedWrites = 0;
+        }
+    }
+
+    /**
+     * Informs the pacer that the stack failed to write a packet.
+     */
+    public synchronized void onPacketFailed() {
+        this.windowSize = Math.max(1, windowSize / 2);
+        this.gapMs = Math.min(MAXIMUM_GAP_MS, Math.max(MINIMUM_BACK_OFF_GAP_MS, gapMs * 2));
+        this.uncongestedWrites = 0;
+    }
+
+    //endregion
+
+
+    @Override
+    public synchronized String toString() {
+        return "WritePacer{" +
+                "windowSize=" + windowSize +
+                ", gapMs=" + gapMs +
+                ", minimumLatencyMs=" + minimumLatencyMs +
+                '}';
+    }
+}
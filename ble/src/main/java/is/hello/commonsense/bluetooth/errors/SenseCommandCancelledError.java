@@ -0,0 +1,27 @@
+package is.hello.commonsense.bluetooth.errors;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import is.hello.buruberi.bluetooth.errors.BuruberiException;
+import is.hello.commonsense.R;
+import is.hello.commonsense.util.Errors;
+import is.hello.commonsense.util.StringRef;
+
+public class SenseCommandCancelledError extends BuruberiException implements Errors.Reporting {
+    public SenseCommandCancelledError() {
+        super("Command was cancelled before it could be sent to Sense.");
+    }
+
+    @Nullable
+    @Override
+    public String getContextInfo() {
+        return null;
+    }
+
+    @NonNull
+    @Override
+    public StringRef getDisplayMessage() {
+        return StringRef.from(R.string.error_bluetooth_command_cancelled);
+    }
+}
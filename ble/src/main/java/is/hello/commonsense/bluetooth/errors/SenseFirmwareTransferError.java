@@ -0,0 +1,34 @@
+package is.hello.commonsense.bluetooth.errors;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import is.hello.buruberi.bluetooth.errors.BuruberiException;
+import is.hello.commonsense.R;
+import is.hello.commonsense.util.Errors;
+import is.hello.commonsense.util.StringRef;
+
+/**
+ * Reports that a firmware transfer stopped making progress, because Sense
+ * kept rejecting the chunks after a given offset as corrupt.
+ */
+public class SenseFirmwareTransferError extends BuruberiException implements Errors.Reporting {
+    public final int offset;
+
+    public SenseFirmwareTransferError(int offset, int attempts) {
+        super("Firmware chunks after offset " + offset + " rejected " + attempts + " times");
+        this.offset = offset;
+    }
+
+    @Nullable
+    @Override
+    public String getContextInfo() {
+        return "Offset: " + offset;
+    }
+
+    @NonNull
+    @Override
+    public StringRef getDisplayMessage() {
+        return StringRef.from(R.string.error_bluetooth_firmware_transfer_failed);
+    }
+}
@@ -14,6 +14,7 @@ public class SenseProtobufError extends BuruberiException {
 
     public enum Reason {
         DATA_LOST_OR_OUT_OF_ORDER("Protobuf data lost or out of order"),
+        INVALID_PACKET_HEADER("Invalid protobuf packet header"),
         INVALID_PROTOBUF("Invalid protobuf data");
 
         private final String description;
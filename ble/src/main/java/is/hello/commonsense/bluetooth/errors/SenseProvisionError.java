@@ -0,0 +1,40 @@
+package is.hello.commonsense.bluetooth.errors;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import is.hello.buruberi.bluetooth.errors.BuruberiException;
+import is.hello.commonsense.R;
+import is.hello.commonsense.bluetooth.model.SenseProvisionUpdate;
+import is.hello.commonsense.util.Errors;
+import is.hello.commonsense.util.StringRef;
+
+/**
+ * Reports the step a provisioning operation failed at, so that provisioning
+ * can be resumed from that step. The original error is the cause.
+ */
+public class SenseProvisionError extends BuruberiException implements Errors.Reporting {
+    public final SenseProvisionUpdate.Step step;
+
+    public SenseProvisionError(@NonNull SenseProvisionUpdate.Step step, @NonNull Throwable cause) {
+        super("Provisioning failed at " + step, cause);
+        this.step = step;
+    }
+
+    @Nullable
+    @Override
+    public String getContextInfo() {
+        return "Step: " + step + ", " + Errors.getContextInfo(getCause());
+    }
+
+    @NonNull
+    @Override
+    public StringRef getDisplayMessage() {
+        final StringRef causeMessage = Errors.getDisplayMessage(getCause());
+        if (causeMessage != null) {
+            return causeMessage;
+        } else {
+            return StringRef.from(R.string.error_bluetooth_provision_failed);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package is.hello.commonsense.bluetooth.model;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A firmware image memory-mapped from a local file, so that chunks can be read
+ * from any offset without loading the whole image into the heap, and without
+ * seeking a stream when a transfer resumes part way through the image.
+ */
+public final class FirmwareImage implements Closeable {
+    private final RandomAccessFile file;
+    private final MappedByteBuffer mapped;
+    private final long crc32;
+
+
+    //region Lifecycle
+
+    /**
+     * Maps a firmware image file into memory.
+     *
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public static @NonNull FirmwareImage open(@NonNull File imageFile) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(imageFile, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Firmware image too large: " + channel.size());
+            }
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new FirmwareImage(file, mapped);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private FirmwareImage(@NonNull RandomAccessFile file, @NonNull MappedByteBuffer mapped) {
+        this.file = file;
+        this.mapped = mapped;
+
+        final CRC32 crc32 = new CRC32();
+        final byte[] scratch = new byte[4096];
+        final ByteBuffer reader = mapped.duplicate();
+        while (reader.hasRemaining()) {
+            final int length = Math.min(scratch.length, reader.remaining());
+            reader.get(scratch, 0, length);
+            crc32.update(scratch, 0, length);
+        }
+        this.crc32 = crc32.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    //endregion
+
+
+    //region Reading
+
+    /**
+     * Returns the length of the image in bytes.
+     */
+    public int getLength() {
+        return mapped.capacity();
+    }
+
+    /**
+     * Returns the CRC-32 of the whole image. Used to tell images apart when resuming.
+     */
+    public long getCrc32() {
+        return crc32;
+    }
+
+    /**
+     * Copies part of the image into a caller-owned array, so that
+     * the same array can be reused for every chunk of a transfer.
+     *
+     * @param offset        The offset of the first byte to read.
+     * @param destination   The array to copy into. As many bytes as fit are
+     *                      read, truncated at the end of the image.
+     * @return The number of bytes read.
+     */
+    public int read(int offset, @NonNull byte[] destination) {
+        if (offset < 0 || offset > getLength()) {
+            throw new IndexOutOfBoundsException("offset " + offset + " not in [0, " + getLength() + "]");
+        }
+
+        final int length = Math.min(destination.length, getLength() - offset);
+        final ByteBuffer reader = mapped.duplicate();
+        reader.position(offset);
+        reader.get(destination, 0, length);
+        return length;
+    }
+
+    /**
+     * Returns the CRC-32 of the first <code>length</code> bytes of a chunk.
+     */
+    public static long crc32(@NonNull byte[] chunk, int length) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(chunk, 0, length);
+        return crc32.getValue();
+    }
+
+    /**
+     * Returns the CRC-32 of a chunk.
+     */
+    public static long crc32(@NonNull byte[] chunk) {
+        return crc32(chunk, chunk.length);
+    }
+
+    //endregion
+
+
+    @Override
+    public String toString() {
+        return "FirmwareImage{" +
+                "length=" + getLength() +
+                ", crc32=" + Long.toHexString(crc32) +
+                '}';
+    }
+}
@@ -0,0 +1,236 @@
+package is.hello.commonsense.bluetooth.model;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import is.hello.buruberi.bluetooth.stacks.GattCharacteristic;
+
+import is.hello.commonsense.bluetooth.model.ProtobufPacketListener.HeaderFormat;
+
+import static is.hello.commonsense.bluetooth.model.ProtobufPacketListener.BODY_PACKET_HEADER_LENGTH;
+import static is.hello.commonsense.bluetooth.model.ProtobufPacketListener.HEADER_PACKET_HEADER_LENGTH;
+import static is.hello.commonsense.bluetooth.model.ProtobufPacketListener.LEGACY_MAXIMUM_PACKET_COUNT;
+
+/**
+ * Divides a payload into packets that can be transmitted over a BLE gatt connection,
+ * producing one packet at a time as the transport asks for it.
+ * <p />
+ * Packets are written into buffers owned by the cursor. A buffer returned from
+ * {@link #next()} is only valid until the cursor has produced as many further
+ * packets as its window size, or {@link #reset(ByteBuffer, int, HeaderFormat)}
+ * is called, so the transport must be finished with a packet by then. A single
+ * cursor can be reused for any number of payloads without producing garbage,
+ * as long as the packet length and window size stay the same.
+ */
+public final class OutgoingPacketCursor {
+    /**
+     * The buffers used for packets that fill the entire packet length,
+     * one for each packet that may be in flight at once.
+     */
+    private byte[][] fullPackets = {new byte[GattCharacteristic.PACKET_LENGTH]};
+    private int nextFullPacket = 0;
+
+    /**
+     * Buffers for packets shorter than the packet length, indexed by their
+     * length. Lazily populated, there is at most one short packet per payload.
+     */
+    private byte[][] shortPackets = new byte[GattCharacteristic.PACKET_LENGTH][];
+
+    private ByteBuffer payload;
+    private int packetLength = GattCharacteristic.PACKET_LENGTH;
+    private HeaderFormat headerFormat = HeaderFormat.LEGACY;
+    private int packetCount = 0;
+    private int packetIndex = 0;
+
+
+    //region Lifecycle
+
+    /**
+     * Calculates how many packets a payload of a given length will be
+     * divided into, for a given packet length and header format.
+     */
+    public static int getPacketCount(int payloadLength,
+                                     int packetLength,
+                                     @NonNull HeaderFormat headerFormat) {
+        if (headerFormat == HeaderFormat.LEGACY) {
+            final int headerPayloadLength = (packetLength - HEADER_PACKET_HEADER_LENGTH);
+            if (payloadLength <= headerPayloadLength) {
+                return 1;
+            } else {
+                final int bodyPayloadLength = (packetLength - BODY_PACKET_HEADER_LENGTH);
+                final int lengthNoHeader = (payloadLength - headerPayloadLength);
+                return 1 + (lengthNoHeader + bodyPayloadLength - 1) / bodyPayloadLength;
+            }
+        }
+
+        // The length of the first packet's header depends on the packet count, so keep
+        // counting until the assumed count produces itself. A larger assumed count can
+        // only make the first header longer, so the count never goes down between passes.
+        int packetCount = 1;
+        while (true) {
+            int remaining = payloadLength;
+            int packetIndex = 0;
+            do {
+                remaining -= (packetLength - headerFormat.getHeaderLength(packetIndex, packetCount));
+                packetIndex++;
+            } while (remaining > 0);
+
+            if (packetIndex <= packetCount) {
+                return packetCount;
+            }
+            packetCount = packetIndex;
+        }
+    }
+
+    /**
+     * Points the cursor at a new payload. The payload's position is advanced as packets
+     * are produced, the payload should not be modified until the cursor is exhausted.
+     *
+     * @param payload       The payload to divide.
+     * @param packetLength  The maximum length of each packet, including its header.
+     *                      Must be at least {@link GattCharacteristic#PACKET_LENGTH}.
+     * @param headerFormat  The format of the header written at the start of each packet.
+     * @return The cursor, for convenience.
+     * @throws IllegalArgumentException if the payload is too large for a legacy header.
+     */
+    public OutgoingPacketCursor reset(@NonNull ByteBuffer payload,
+                                      int packetLength,
+                                      @NonNull HeaderFormat headerFormat) {
+        if (packetLength < GattCharacteristic.PACKET_LENGTH) {
+            throw new IllegalArgumentException("packetLength < " + GattCharacteristic.PACKET_LENGTH);
+        }
+
+        final int packetCount = getPacketCount(payload.remaining(), packetLength, headerFormat);
+        if (headerFormat == HeaderFormat.LEGACY && packetCount > LEGACY_MAXIMUM_PACKET_COUNT) {
+            throw new IllegalArgumentException("Payload requires " + packetCount +
+                                                       " packets, legacy headers support at most " +
+                                                       LEGACY_MAXIMUM_PACKET_COUNT);
+        }
+
+        if (packetLength != fullPackets[0].length) {
+            for (int i = 0; i < fullPackets.length; i++) {
+                fullPackets[i] = new byte[packetLength];
+            }
+        }
+        if (packetLength > shortPackets.length) {
+            this.shortPackets = new byte[packetLength][];
+        }
+
+        this.payload = payload;
+        this.packetLength = packetLength;
+        this.headerFormat = headerFormat;
+        this.packetCount = packetCount;
+        this.packetIndex = 0;
+        return this;
+    }
+
+    /**
+     * Points the cursor at the contents of a given byte array.
+     *
+     * @see #reset(ByteBuffer, int, HeaderFormat)
+     */
+    public OutgoingPacketCursor reset(@NonNull byte[] payload,
+                                      int packetLength,
+                                      @NonNull HeaderFormat headerFormat) {
+        return reset(ByteBuffer.wrap(payload), packetLength, headerFormat);
+    }
+
+    /**
+     * Sets how many packets produced by the cursor may be in flight at once. Each of the
+     * buffers returned by the last <code>windowSize</code> calls to {@link #next()} will
+     * be left untouched. The default window size is <code>1</code>.
+     *
+     * @param windowSize The number of packets that may be in flight, at least <code>1</code>.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize < 1");
+        }
+
+        if (windowSize != fullPackets.length) {
+            final int packetLength = fullPackets[0].length;
+            this.fullPackets = new byte[windowSize][];
+            for (int i = 0; i < windowSize; i++) {
+                fullPackets[i] = new byte[packetLength];
+            }
+            this.nextFullPacket = 0;
+        }
+    }
+
+    public int getWindowSize() {
+        return fullPackets.length;
+    }
+
+    //endregion
+
+
+    //region Iteration
+
+    /**
+     * Returns the total number of packets the current payload will be divided into.
+     */
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Returns the index of the packet that will be returned by the next call to {@link #next()}.
+     */
+    public int getPacketIndex() {
+        return packetIndex;
+    }
+
+    /**
+     * Returns whether or not there are packets remaining for the current payload.
+     */
+    public boolean hasNext() {
+        return (packetIndex < packetCount);
+    }
+
+    /**
+     * Fills the buffer for the next packet of the current payload and returns it.
+     * <p />
+     * The returned array is owned by the cursor and will be overwritten once
+     * the window has moved past it, callers must not retain it.
+     *
+     * @see #setWindowSize(int)
+     */
+    public byte[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        final int headerLength = headerFormat.getHeaderLength(packetIndex, packetCount);
+        final int payloadLength = Math.min(payload.remaining(), packetLength - headerLength);
+
+        final byte[] packet = obtainPacket(headerLength + payloadLength);
+        headerFormat.writeHeader(packet, packetIndex, packetCount);
+        payload.get(packet, headerLength, payloadLength);
+
+        this.packetIndex++;
+        if (!hasNext()) {
+            this.payload = null;
+        }
+
+        return packet;
+    }
+
+    private byte[] obtainPacket(int length) {
+        if (length == packetLength) {
+            final byte[] packet = fullPackets[nextFullPacket];
+            this.nextFullPacket = (nextFullPacket + 1) % fullPackets.length;
+            return packet;
+        }
+
+        byte[] packet = shortPackets[length];
+        if (packet == null) {
+            packet = new byte[length];
+            shortPackets[length] = packet;
+        }
+        return packet;
+    }
+
+    //endregion
+}
@@ -0,0 +1,146 @@
+package is.hello.commonsense.bluetooth.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Arrays;
+
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.pill_data;
+
+/**
+ * A batch of pill telemetry records stored as parallel columns of primitives, so that
+ * large numbers of heartbeats can be held onto without allocating an object per record.
+ * Record <code>i</code> is described by the <code>i</code>th element of every column.
+ */
+public final class PillTelemetry {
+    /**
+     * The number of records in the batch. Every column has exactly this many elements.
+     */
+    public final int size;
+
+    /**
+     * The device id of the pill each record came from. Records
+     * from the same pill share a single string instance.
+     */
+    public final String[] pillIds;
+
+    public final int[] batteryLevels;
+
+    /**
+     * The uptime of the pill when each record was taken.
+     */
+    public final int[] uptimes;
+
+    public final int[] firmwareVersions;
+
+    /**
+     * When each record was taken, in seconds.
+     */
+    public final long[] timestamps;
+
+    public final short[] rssis;
+
+
+    private PillTelemetry(@NonNull Builder builder) {
+        this.size = builder.size;
+        this.pillIds = Arrays.copyOf(builder.pillIds, size);
+        this.batteryLevels = Arrays.copyOf(builder.batteryLevels, size);
+        this.uptimes = Arrays.copyOf(builder.uptimes, size);
+        this.firmwareVersions = Arrays.copyOf(builder.firmwareVersions, size);
+        this.timestamps = Arrays.copyOf(builder.timestamps, size);
+        this.rssis = Arrays.copyOf(builder.rssis, size);
+    }
+
+
+    @Override
+    public String toString() {
+        return "PillTelemetry{" +
+                "size=" + size +
+                '}';
+    }
+
+
+    /**
+     * Accumulates records into growable columns. A builder may be
+     * reused after {@link #build()} is called by calling {@link #clear()}.
+     */
+    public static final class Builder {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private int size = 0;
+        private String[] pillIds = new String[INITIAL_CAPACITY];
+        private int[] batteryLevels = new int[INITIAL_CAPACITY];
+        private int[] uptimes = new int[INITIAL_CAPACITY];
+        private int[] firmwareVersions = new int[INITIAL_CAPACITY];
+        private long[] timestamps = new long[INITIAL_CAPACITY];
+        private short[] rssis = new short[INITIAL_CAPACITY];
+
+        private @Nullable ByteString lastPillIdBytes;
+        private @Nullable String lastPillId;
+
+
+        //region Appending
+
+        /**
+         * Appends a single record, such as one carried by a pill heartbeat.
+         */
+        public Builder append(@NonNull pill_data record) {
+            ensureCapacity(size + 1);
+            pillIds[size] = internPillId(record.getDeviceIdBytes());
+            batteryLevels[size] = record.getBatteryLevel();
+            uptimes[size] = record.getUptime();
+            firmwareVersions[size] = record.getFirmwareVersion();
+            timestamps[size] = record.getTimestamp();
+            rssis[size] = (short) record.getRssi();
+            size++;
+            return this;
+        }
+
+        /**
+         * Batches almost always contain records from one or two pills,
+         * so reusing the last decoded id avoids a string per record.
+         */
+        private @NonNull String internPillId(@NonNull ByteString pillIdBytes) {
+            if (lastPillId == null || !pillIdBytes.equals(lastPillIdBytes)) {
+                this.lastPillIdBytes = pillIdBytes;
+                this.lastPillId = pillIdBytes.toStringUtf8();
+            }
+            return lastPillId;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= pillIds.length) {
+                return;
+            }
+
+            final int newCapacity = Math.max(capacity, pillIds.length * 2);
+            this.pillIds = Arrays.copyOf(pillIds, newCapacity);
+            this.batteryLevels = Arrays.copyOf(batteryLevels, newCapacity);
+            this.uptimes = Arrays.copyOf(uptimes, newCapacity);
+            this.firmwareVersions = Arrays.copyOf(firmwareVersions, newCapacity);
+            this.timestamps = Arrays.copyOf(timestamps, newCapacity);
+            this.rssis = Arrays.copyOf(rssis, newCapacity);
+        }
+
+        //endregion
+
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Removes every record from the builder, keeping its columns allocated.
+         */
+        public void clear() {
+            Arrays.fill(pillIds, 0, size, null);
+            this.size = 0;
+        }
+
+        public PillTelemetry build() {
+            return new PillTelemetry(this);
+        }
+    }
+}
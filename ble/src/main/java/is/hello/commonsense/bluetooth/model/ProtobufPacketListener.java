@@ -5,8 +5,10 @@ import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -34,7 +36,8 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
     public static final int HEADER_PACKET_HEADER_LENGTH = 2;
 
     /**
-     * The length of the payload portion of the first packet.
+     * The length of the payload portion of the first packet
+     * when packets are {@link GattCharacteristic#PACKET_LENGTH} long.
      */
     public static final int HEADER_PACKET_PAYLOAD_LENGTH = 18;
 
@@ -48,80 +51,104 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
     public static final int BODY_PACKET_HEADER_LENGTH = 1;
 
     /**
-     * The length of the payload portion of a body packet.
+     * The length of the payload portion of a body packet
+     * when packets are {@link GattCharacteristic#PACKET_LENGTH} long.
      */
     public static final int BODY_PACKET_PAYLOAD_LENGTH = 19;
 
+    /**
+     * The largest number of packets a payload can be divided into with a legacy header.
+     */
+    public static final int LEGACY_MAXIMUM_PACKET_COUNT = Byte.MAX_VALUE;
+
+    /**
+     * The first byte of every packet with an extended header.
+     * <p />
+     * The high bit never appears in a legacy sequence number, and
+     * the low bits are the version of the extended header format.
+     *
+     * <ol>
+     *  <li><code>[0]: Extended header version</code></li>
+     *  <li><code>[1...]: Packet sequence number, varint</code></li>
+     *  <li><code>[...]: Total packet count, varint, first packet only</code></li>
+     * </ol>
+     */
+    public static final byte EXTENDED_HEADER_VERSION_1 = (byte) 0x81;
+
+    /**
+     * Set on the first byte of every packet with an extended header.
+     */
+    private static final int EXTENDED_HEADER_FLAG = 0x80;
+
+    /**
+     * The largest reorder window supported by the parser.
+     *
+     * @see #setReorderWindow(int)
+     */
+    public static final int MAXIMUM_REORDER_WINDOW = Long.SIZE - 1;
+
     /**
      * The parser of the packet handler.
      */
     @VisibleForTesting final Parser parser = new Parser();
 
+    /**
+     * The cursor used to divide outgoing payloads into packets.
+     */
+    private final OutgoingPacketCursor outgoingPackets = new OutgoingPacketCursor();
+
 
     //region Primitive Methods
 
     /**
      * Divides a given payload into a series of packets that
      * can be transmitted over a BLE gatt connection.
+     * <p />
+     * Allocates a new array for every packet. Prefer
+     * {@link #prepareOutgoingPackets(byte[], int, HeaderFormat)} when writing to Sense.
      */
     public List<byte[]> createOutgoingPackets(@NonNull byte[] payload) {
-        final ArrayList<byte[]> packets = new ArrayList<>();
-        if (payload.length <= HEADER_PACKET_PAYLOAD_LENGTH) {
-            final byte[] headPacket = new byte[2 + payload.length];
-            headPacket[1] = 1;
-            System.arraycopy(
-                /* src */ payload,
-                /* srcStart */ 0,
-                /* dest */ headPacket,
-                /* destStart */ 2,
-                /* length */ payload.length
-            );
-            packets.add(headPacket);
-        } else {
-            int lengthNoHeader = (payload.length - HEADER_PACKET_PAYLOAD_LENGTH);
-            int packetCount = (int) Math.ceil(1f + lengthNoHeader / (float) BODY_PACKET_PAYLOAD_LENGTH);
-
-            int bytesRemaining = payload.length;
-            for (int packetIndex = 0; packetIndex < packetCount; packetIndex++) {
-                if (packetIndex == 0) {
-                    final byte[] headerPacket = new byte[GattCharacteristic.PACKET_LENGTH];
-                    headerPacket[0] = (byte) packetIndex;
-                    headerPacket[1] = (byte) packetCount;
-
-                    System.arraycopy(
-                        /* src */ payload,
-                        /* srcStart */ 0,
-                        /* dest */ headerPacket,
-                        /* destStart */ 2,
-                        /* length */ HEADER_PACKET_PAYLOAD_LENGTH
-                    );
-                    bytesRemaining -= HEADER_PACKET_PAYLOAD_LENGTH;
-
-                    packets.add(headerPacket);
-                } else {
-                    final int packetLength = (packetIndex == packetCount - 1) ? (bytesRemaining + 1) : GattCharacteristic.PACKET_LENGTH;
-                    final byte[] packet = new byte[packetLength];
-                    packet[0] = (byte) packetIndex;
+        return createOutgoingPackets(payload, GattCharacteristic.PACKET_LENGTH, HeaderFormat.LEGACY);
+    }
 
-                    int dataStart = HEADER_PACKET_PAYLOAD_LENGTH + (packetIndex - 1) * BODY_PACKET_PAYLOAD_LENGTH;
-                    int dataAmount = packetLength - 1;
-                    System.arraycopy(
-                        /* src */ payload,
-                        /* srcStart */ dataStart,
-                        /* dest */ packet,
-                        /* destStart */ 1,
-                        /* length */ dataAmount
-                    );
-                    bytesRemaining -= dataAmount;
-
-                    packets.add(packet);
-                }
-            }
+    /**
+     * Divides a given payload into a series of packets no longer than a given
+     * packet length, each starting with a header of a given format.
+     *
+     * @see #createOutgoingPackets(byte[])
+     */
+    public List<byte[]> createOutgoingPackets(@NonNull byte[] payload,
+                                              int packetLength,
+                                              @NonNull HeaderFormat headerFormat) {
+        final OutgoingPacketCursor cursor = new OutgoingPacketCursor().reset(payload,
+                                                                             packetLength,
+                                                                             headerFormat);
+        final ArrayList<byte[]> packets = new ArrayList<>(cursor.getPacketCount());
+        while (cursor.hasNext()) {
+            packets.add(cursor.next().clone());
         }
-
         return packets;
     }
 
+    /**
+     * Points the packet handler's outgoing cursor at a given payload.
+     * <p />
+     * The cursor is shared between all calls to this method, only
+     * one payload may be in the process of being written at a time.
+     *
+     * @param payload       The payload to divide.
+     * @param packetLength  The maximum length of each packet. Should be
+     *                      {@link GattCharacteristic#PACKET_LENGTH} unless
+     *                      a larger MTU has been negotiated with Sense.
+     * @param headerFormat  The header format to use. Should be {@link HeaderFormat#LEGACY}
+     *                      unless Sense is known to understand the extended format.
+     */
+    public OutgoingPacketCursor prepareOutgoingPackets(@NonNull byte[] payload,
+                                                       int packetLength,
+                                                       @NonNull HeaderFormat headerFormat) {
+        return outgoingPackets.reset(payload, packetLength, headerFormat);
+    }
+
     @Override
     public void onCharacteristicNotify(@NonNull UUID uuid, @NonNull byte[] bytes) {
         if (parser.canProcessPacket(uuid)) {
@@ -140,13 +167,153 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
     //endregion
 
 
+    //region Headers
+
+    /**
+     * The packet header formats understood by the packet handler.
+     * <p />
+     * Incoming packets may use either format, the parser
+     * determines the format of each packet as it arrives.
+     */
+    public enum HeaderFormat {
+        /**
+         * A one byte sequence number, with a one byte total packet count in the
+         * first packet. Understood by all firmware, limited to
+         * {@link #LEGACY_MAXIMUM_PACKET_COUNT} packets per payload.
+         */
+        LEGACY,
+
+        /**
+         * A version byte followed by a varint sequence number, with a varint
+         * total packet count in the first packet. Not limited in packet count.
+         *
+         * @see #EXTENDED_HEADER_VERSION_1
+         */
+        EXTENDED;
+
+        /**
+         * Returns the length of the header for a given packet.
+         */
+        int getHeaderLength(int packetIndex, int packetCount) {
+            switch (this) {
+                case LEGACY:
+                    return (packetIndex == 0) ? HEADER_PACKET_HEADER_LENGTH : BODY_PACKET_HEADER_LENGTH;
+
+                case EXTENDED:
+                    int length = 1 + getVarintLength(packetIndex);
+                    if (packetIndex == 0) {
+                        length += getVarintLength(packetCount);
+                    }
+                    return length;
+
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        /**
+         * Writes the header for a given packet into the start of a packet buffer.
+         */
+        void writeHeader(@NonNull byte[] packet, int packetIndex, int packetCount) {
+            switch (this) {
+                case LEGACY:
+                    packet[0] = (byte) packetIndex;
+                    if (packetIndex == 0) {
+                        packet[1] = (byte) packetCount;
+                    }
+                    break;
+
+                case EXTENDED:
+                    packet[0] = EXTENDED_HEADER_VERSION_1;
+                    final int offset = writeVarint(packet, 1, packetIndex);
+                    if (packetIndex == 0) {
+                        writeVarint(packet, offset, packetCount);
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes needed to encode a non-negative value as a varint.
+     */
+    static int getVarintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a non-negative value as a varint.
+     *
+     * @return The offset after the encoded value.
+     */
+    static int writeVarint(@NonNull byte[] destination, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            destination[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        destination[offset++] = (byte) value;
+        return offset;
+    }
+
+    //endregion
+
+
     //region Response Listeners
 
     /**
      * Sets the response listener of the packet parser.
+     * <p />
+     * Any response that is partially reassembled when a new listener is installed
+     * was sent before the listener's command, and will be dropped without being
+     * passed to the listener.
      */
     public void setResponseListener(@Nullable ResponseListener responseListener) {
-        parser.responseListener = responseListener;
+        parser.setResponseListener(responseListener);
+    }
+
+    /**
+     * Removes a response listener from the packet parser, leaving
+     * any listener installed after it in place.
+     *
+     * @return Whether or not the listener was still installed.
+     */
+    public boolean clearResponseListener(@NonNull ResponseListener responseListener) {
+        if (parser.responseListener != responseListener) {
+            return false;
+        }
+        parser.setResponseListener(null);
+        return true;
+    }
+
+    /**
+     * Sets how many packets past the next expected packet the parser will hold on to
+     * when packets arrive out of order. Held packets are reassembled once the gap
+     * before them is filled, and duplicate packets are ignored. Packets that arrive
+     * ahead of the header packet of their response are held in the same way.
+     * <p />
+     * A response is only reported as lost once a packet arrives that is further
+     * than the window ahead of the gap. The default window of <code>0</code>
+     * reports a loss as soon as any packet arrives out of order.
+     *
+     * @param reorderWindow A value between <code>0</code> and {@link #MAXIMUM_REORDER_WINDOW}.
+     */
+    public void setReorderWindow(int reorderWindow) {
+        if (reorderWindow < 0 || reorderWindow > MAXIMUM_REORDER_WINDOW) {
+            throw new IllegalArgumentException("reorderWindow not in [0, " + MAXIMUM_REORDER_WINDOW + "]");
+        }
+        parser.setReorderWindow(reorderWindow);
+    }
+
+    public int getReorderWindow() {
+        return parser.reorderWindow;
     }
 
     /**
@@ -177,19 +344,144 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
     //endregion
 
 
+    //region Unsolicited Listeners
+
+    /**
+     * Sets the listener that receives every complete message that is not a response
+     * to the command currently in flight. Includes messages that arrive while there is
+     * no response listener, messages that were already being reassembled when the
+     * current response listener was installed, and messages only ever pushed by Sense.
+     */
+    public void setUnsolicitedListener(@Nullable UnsolicitedListener unsolicitedListener) {
+        parser.unsolicitedListener = unsolicitedListener;
+    }
+
+    /**
+     * Returns whether or not a given type of message is only ever pushed by Sense,
+     * and so can never be the response to a command sent by the phone.
+     */
+    public static boolean isPushOnly(@NonNull MorpheusCommand.CommandType type) {
+        switch (type) {
+            case MORPHEUS_COMMAND_PILL_DATA:
+            case MORPHEUS_COMMAND_PILL_HEARTBEAT:
+            case MORPHEUS_COMMAND_PILL_SHAKES:
+            case MORPHEUS_COMMAND_PILL_PROX_DATA:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Represents an object interested in messages Sense sent without being asked.
+     */
+    public interface UnsolicitedListener {
+        /**
+         * Called when the packet parser has produced a complete message that
+         * is not a response. Called on the thread packets are delivered on,
+         * and so must not block.
+         */
+        void onUnsolicitedData(MorpheusCommand message);
+    }
+
+    //endregion
+
+
     /**
      * Responsible for decoding incoming packets. Separate from
      * the containing packet handler to simplify state isolation.
      */
     @VisibleForTesting
     static class Parser {
+        /**
+         * The initial capacity of the reassembly buffer. Large enough
+         * for the majority of responses sent by Sense.
+         */
+        private static final int INITIAL_BUFFER_CAPACITY = 256;
+
+        /**
+         * The most the reassembly buffer will be grown by ahead of packets actually
+         * arriving. Protects against an implausible packet count in a header.
+         */
+        private static final int MAXIMUM_PREALLOCATED_CAPACITY = 64 * 1024;
+
         private int totalPackets = 0;
         private int packetsProcessed = 0;
         private int expectedIndex = 0;
 
-        private byte[] buffer = null;
+        /**
+         * The sequence number decoded by the last call to {@link #readHeader(byte[])}.
+         */
+        private int headerSequenceNumber = 0;
+
+        /**
+         * The total packet count decoded by the last call to {@link #readHeader(byte[])}.
+         * Only meaningful when {@link #headerSequenceNumber} is <code>0</code>.
+         */
+        private int headerPacketCount = 0;
+
+        /**
+         * The value decoded by the last call to {@link #readVarint(byte[], int)}.
+         */
+        private int varintValue = 0;
+
+        /**
+         * How many packets past {@link #expectedIndex} may be held while waiting for a gap to fill.
+         */
+        private int reorderWindow = 0;
+
+        /**
+         * Tracks which packets are being held. Bit <code>n</code> is
+         * set when packet <code>expectedIndex + n</code> is held.
+         */
+        private long heldPackets = 0L;
+
+        /**
+         * The payloads of held packets, indexed by sequence number modulo
+         * {@link #reorderWindow}. Reused across responses.
+         */
+        private byte[][] heldPayloads = new byte[0][];
+        private int[] heldPayloadLengths = new int[0];
+
+        /**
+         * The offset of each reassembled packet's payload in {@link #buffer}. Reused across responses.
+         */
+        private int[] packetStarts = new int[16];
+
+        /**
+         * The number of packets in, and length of, the last response that was successfully
+         * reassembled. Its contents stay in {@link #buffer} until the next response starts,
+         * so late retransmissions of its packets can be recognized and dropped.
+         */
+        private int finishedPackets = 0;
+        private int finishedLength = 0;
+
+        /**
+         * Whether or not the response currently being reassembled was already in
+         * progress when the current response listener was installed. Such a response
+         * is unsolicited as far as the listener is concerned, and is passed to the
+         * unsolicited listener instead.
+         */
+        private boolean discardingResponse = false;
+
+        /**
+         * The reassembly buffer. Reused across responses,
+         * and grown on demand when a larger response comes in.
+         */
+        private byte[] buffer = new byte[INITIAL_BUFFER_CAPACITY];
         private int bufferOffset = 0;
-        private int bufferDataLength = 0;
+
+        /**
+         * Exposes the reassembled contents of {@link #buffer} to {@link #codedInput}.
+         */
+        private final BufferInputStream bufferInput = new BufferInputStream();
+
+        /**
+         * The stream used to decode reassembled responses. Reused across responses,
+         * recreated after a decode failure may have left it holding unread bytes.
+         */
+        private @Nullable CodedInputStream codedInput;
 
 
         //region Processing
@@ -206,65 +498,310 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
          * Process a single packet from Sense.
          */
         void processPacket(@NonNull byte[] packet) {
-            int sequenceNumber = packet[0];
-            if (this.expectedIndex != sequenceNumber) {
-                cleanUp();
+            final int packetBufferStart = readHeader(packet);
+            if (packetBufferStart < 0) {
+                abandonResponse(SenseProtobufError.Reason.INVALID_PACKET_HEADER);
 
-                dispatchError(new SenseProtobufError(SenseProtobufError.Reason.DATA_LOST_OR_OUT_OF_ORDER));
+                return;
+            }
 
+            final int sequenceNumber = this.headerSequenceNumber;
+            final int packetLength = (packet.length - packetBufferStart);
+            if (sequenceNumber == 0 && totalPackets > 0) {
+                if (reorderWindow > 0 && isDuplicateHeader(packet, packetBufferStart, packetLength)) {
+                    return;
+                }
+
+                // The start of a new response, the one in progress will never be finished.
+                abandonResponse(SenseProtobufError.Reason.DATA_LOST_OR_OUT_OF_ORDER);
+            }
+
+            if (sequenceNumber == this.expectedIndex) {
+                appendPayload(packet, packetBufferStart, packetLength);
+                releaseHeldPackets();
+            } else if (sequenceNumber < this.expectedIndex && reorderWindow > 0) {
+                // Duplicate of a packet that has already been reassembled.
+                return;
+            } else if (totalPackets == 0 && reorderWindow > 0 &&
+                    isFinishedPacket(sequenceNumber, packet, packetBufferStart, packetLength)) {
+                // Late retransmission of a packet from the response that already finished.
+                return;
+            } else if (sequenceNumber > this.expectedIndex &&
+                    sequenceNumber - this.expectedIndex <= reorderWindow &&
+                    (totalPackets == 0 || sequenceNumber < totalPackets)) {
+                // Packets that arrive ahead of the header packet are held until
+                // it arrives and says how many packets the response contains.
+                holdPacket(sequenceNumber, packet, packetBufferStart, packetLength);
                 return;
             } else {
-                this.expectedIndex = sequenceNumber + 1;
+                abandonResponse(SenseProtobufError.Reason.DATA_LOST_OR_OUT_OF_ORDER);
+
+                return;
             }
 
+            if (this.totalPackets > 0 && this.packetsProcessed == this.totalPackets) {
+                final MorpheusCommand data;
+                try {
+                    data = parseBuffer();
+                    this.dispatchData(data);
+                } catch (InvalidProtocolBufferException e) {
+                    abandonResponse(SenseProtobufError.Reason.INVALID_PROTOBUF);
+                    return;
+                }
 
-            final int packetBufferStart;
-            if (sequenceNumber == 0) {
-                // Assume the packets arrive in order.
+                final int length = bufferOffset;
+                final int packets = totalPackets;
+                cleanUp();
+                this.finishedPackets = packets;
+                this.finishedLength = length;
+            }
+        }
+
+        /**
+         * Returns whether or not a header packet is a retransmission of the header
+         * packet of the response currently being reassembled, rather than the start
+         * of a new response.
+         */
+        private boolean isDuplicateHeader(@NonNull byte[] packet, int packetBufferStart, int packetLength) {
+            if (headerPacketCount != totalPackets) {
+                return false;
+            }
+
+            final int headerLength = (packetsProcessed > 1) ? packetStarts[1] : bufferOffset;
+            return (packetLength == headerLength &&
+                    regionMatches(packet, packetBufferStart, 0, packetLength));
+        }
+
+        /**
+         * Returns whether or not a packet is a retransmission of a packet
+         * from the last response that was successfully reassembled.
+         */
+        private boolean isFinishedPacket(int sequenceNumber,
+                                         @NonNull byte[] packet,
+                                         int packetBufferStart,
+                                         int packetLength) {
+            if (sequenceNumber >= finishedPackets) {
+                return false;
+            }
+
+            final int start = packetStarts[sequenceNumber];
+            final int end = (sequenceNumber + 1 < finishedPackets) ?
+                    packetStarts[sequenceNumber + 1] : finishedLength;
+            return (packetLength == end - start &&
+                    regionMatches(packet, packetBufferStart, start, packetLength));
+        }
+
+        /**
+         * Compares part of a packet against part of the reassembly buffer.
+         */
+        private boolean regionMatches(@NonNull byte[] packet, int packetStart, int bufferStart, int length) {
+            for (int i = 0; i < length; i++) {
+                if (packet[packetStart + i] != buffer[bufferStart + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Cleans up after a response that cannot be reassembled, and reports
+         * the problem to the response listener if the response was solicited.
+         */
+        private void abandonResponse(@NonNull SenseProtobufError.Reason reason) {
+            final boolean solicited = !discardingResponse;
+            cleanUp();
+
+            if (solicited) {
+                dispatchError(new SenseProtobufError(reason));
+            }
+        }
+
+        /**
+         * Copies the payload of the packet at {@link #expectedIndex}
+         * onto the end of the reassembly buffer.
+         */
+        private void appendPayload(@NonNull byte[] source, int sourceStart, int length) {
+            if (expectedIndex == 0) {
                 this.packetsProcessed = 0;
-                this.totalPackets = packet[1];
+                this.totalPackets = this.headerPacketCount;
                 this.bufferOffset = 0;
+                this.finishedPackets = 0;
 
-                packetBufferStart = HEADER_PACKET_HEADER_LENGTH;
+                // Every packet but the last is as long as the header packet,
+                // whatever packet length Sense is currently using. Body packet
+                // headers are never longer than the header packet's header.
+                ensureBufferCapacity((int) Math.min((long) length * this.totalPackets,
+                                                    MAXIMUM_PREALLOCATED_CAPACITY));
+            }
 
-                int bufferSize = (HEADER_PACKET_PAYLOAD_LENGTH +
-                        BODY_PACKET_PAYLOAD_LENGTH * (this.totalPackets - 1));
-                this.buffer = new byte[bufferSize];
-                this.bufferDataLength = (packet.length - packetBufferStart);
-            } else {
-                packetBufferStart = BODY_PACKET_HEADER_LENGTH;
-                this.bufferDataLength += (packet.length - packetBufferStart);
+            if (expectedIndex >= packetStarts.length) {
+                final int[] newPacketStarts = new int[packetStarts.length * 2];
+                System.arraycopy(packetStarts, 0, newPacketStarts, 0, packetStarts.length);
+                this.packetStarts = newPacketStarts;
             }
+            packetStarts[expectedIndex] = bufferOffset;
 
             // copy data in packets to a continues payload buffer.
-            if (this.bufferOffset < this.buffer.length) {
-                int packetLength = (packet.length - packetBufferStart);
-                System.arraycopy(
-                    /* src */ packet,
-                    /* srcStart */ packetBufferStart,
-                    /* dest */ buffer,
-                    /* destStart */ bufferOffset,
-                    /* length */ packetLength
-                );
-
-                bufferOffset += packetLength;
-            }
+            ensureBufferCapacity(bufferOffset + length);
+            System.arraycopy(
+                /* src */ source,
+                /* srcStart */ sourceStart,
+                /* dest */ buffer,
+                /* destStart */ bufferOffset,
+                /* length */ length
+            );
+            bufferOffset += length;
             this.packetsProcessed++;
+            this.expectedIndex++;
+            this.heldPackets >>>= 1;
+        }
 
-            if (this.packetsProcessed == this.totalPackets) {
-                final MorpheusCommand data;
-                try {
-                    // This particular Parser#parseFrom variant is not delegated in the generated MorpheusCommand.
-                    data = MorpheusCommand.PARSER.parseFrom(this.buffer, 0, bufferDataLength);
-                    this.dispatchData(data);
-                } catch (InvalidProtocolBufferException e) {
-                    dispatchError(new SenseProtobufError(SenseProtobufError.Reason.INVALID_PROTOBUF));
-                }
+        /**
+         * Holds on to a packet that arrived ahead of {@link #expectedIndex}
+         * until the packets before it have been reassembled.
+         */
+        private void holdPacket(int sequenceNumber,
+                                @NonNull byte[] packet,
+                                int packetBufferStart,
+                                int packetLength) {
+            final long heldBit = 1L << (sequenceNumber - expectedIndex);
+            if ((heldPackets & heldBit) != 0) {
+                // Duplicate of a packet that is already being held.
+                return;
+            }
+
+            final int slot = sequenceNumber % reorderWindow;
+            byte[] heldPayload = heldPayloads[slot];
+            if (heldPayload == null || heldPayload.length < packetLength) {
+                heldPayload = new byte[packetLength];
+                heldPayloads[slot] = heldPayload;
+            }
+            System.arraycopy(packet, packetBufferStart, heldPayload, 0, packetLength);
+            heldPayloadLengths[slot] = packetLength;
+            this.heldPackets |= heldBit;
+        }
+
+        /**
+         * Reassembles any held packets that directly follow the packets already reassembled.
+         */
+        private void releaseHeldPackets() {
+            while ((heldPackets & 1L) != 0 && packetsProcessed < totalPackets) {
+                final int slot = expectedIndex % reorderWindow;
+                appendPayload(heldPayloads[slot], 0, heldPayloadLengths[slot]);
+            }
+        }
 
+        /**
+         * Changes the reorder window, discarding any packets currently being held.
+         */
+        void setReorderWindow(int reorderWindow) {
+            if (reorderWindow != this.reorderWindow) {
+                this.reorderWindow = reorderWindow;
+                this.heldPayloads = new byte[reorderWindow][];
+                this.heldPayloadLengths = new int[reorderWindow];
                 cleanUp();
             }
         }
 
+        /**
+         * Decodes the header of a packet in either the legacy or extended format into
+         * {@link #headerSequenceNumber} and {@link #headerPacketCount}.
+         *
+         * @return The length of the header, or <code>-1</code> if the header is malformed.
+         */
+        private int readHeader(@NonNull byte[] packet) {
+            if (packet.length == 0) {
+                return -1;
+            }
+
+            if ((packet[0] & EXTENDED_HEADER_FLAG) == 0) {
+                this.headerSequenceNumber = packet[0];
+                if (headerSequenceNumber != 0) {
+                    return BODY_PACKET_HEADER_LENGTH;
+                } else if (packet.length < HEADER_PACKET_HEADER_LENGTH || packet[1] < 1) {
+                    return -1;
+                } else {
+                    this.headerPacketCount = packet[1];
+                    return HEADER_PACKET_HEADER_LENGTH;
+                }
+            }
+
+            if (packet[0] != EXTENDED_HEADER_VERSION_1) {
+                return -1;
+            }
+
+            int offset = readVarint(packet, 1);
+            if (offset < 0) {
+                return -1;
+            }
+            this.headerSequenceNumber = varintValue;
+            if (headerSequenceNumber == 0) {
+                offset = readVarint(packet, offset);
+                if (offset < 0 || varintValue < 1) {
+                    return -1;
+                }
+                this.headerPacketCount = varintValue;
+            }
+            return offset;
+        }
+
+        /**
+         * Decodes a non-negative varint from a packet into {@link #varintValue}.
+         *
+         * @return The offset after the varint, or <code>-1</code> if it is truncated or too large.
+         */
+        private int readVarint(@NonNull byte[] packet, int offset) {
+            int value = 0;
+            for (int shift = 0; shift < 31; shift += 7) {
+                if (offset >= packet.length) {
+                    return -1;
+                }
+
+                final byte b = packet[offset++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        return -1;
+                    }
+                    this.varintValue = value;
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Grows the reassembly buffer if it cannot hold the given number of bytes,
+         * preserving any data that has already been copied into it.
+         */
+        private void ensureBufferCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                final byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+                System.arraycopy(buffer, 0, newBuffer, 0, bufferOffset);
+                this.buffer = newBuffer;
+            }
+        }
+
+        /**
+         * Decodes the contents of the reassembly buffer through the parser's coded input stream.
+         */
+        private MorpheusCommand parseBuffer() throws InvalidProtocolBufferException {
+            bufferInput.reset(buffer, bufferOffset);
+            if (codedInput == null) {
+                this.codedInput = CodedInputStream.newInstance(bufferInput);
+            }
+
+            try {
+                codedInput.resetSizeCounter();
+                final MorpheusCommand data = MorpheusCommand.PARSER.parseFrom(codedInput);
+                codedInput.checkLastTagWas(0);
+                return data;
+            } catch (InvalidProtocolBufferException e) {
+                this.codedInput = null;
+                throw e;
+            }
+        }
+
         /**
          * Cleans up the parser's state either in response to an error,
          * disconnect, or successfully parsed response.
@@ -273,10 +810,11 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
             this.totalPackets = 0;
             this.packetsProcessed = 0;
             this.expectedIndex = 0;
+            this.heldPackets = 0L;
+            this.discardingResponse = false;
+            this.finishedPackets = 0;
 
-            this.buffer = null;
             this.bufferOffset = 0;
-            this.bufferDataLength = 0;
         }
 
         //endregion
@@ -285,6 +823,18 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
         //region Propagating Data
 
         @Nullable ResponseListener responseListener;
+        @Nullable UnsolicitedListener unsolicitedListener;
+
+        /**
+         * Installs a new response listener, marking any response that
+         * is currently being reassembled as unsolicited.
+         */
+        void setResponseListener(@Nullable ResponseListener responseListener) {
+            if (responseListener != null && (expectedIndex != 0 || heldPackets != 0L)) {
+                this.discardingResponse = true;
+            }
+            this.responseListener = responseListener;
+        }
 
         /**
          * Pass off the given error to the registered response listener.
@@ -297,11 +847,14 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
         }
 
         /**
-         * Pass off the fully parsed value to the registered response listener.
+         * Pass off the fully parsed value to the registered response listener,
+         * or to the unsolicited listener if the value is not a response.
          */
-        private void dispatchData(@Nullable SenseCommandProtos.MorpheusCommand response) {
-            if (this.responseListener != null) {
+        private void dispatchData(@NonNull SenseCommandProtos.MorpheusCommand response) {
+            if (!discardingResponse && this.responseListener != null && !isPushOnly(response.getType())) {
                 this.responseListener.onDataReady(response);
+            } else if (this.unsolicitedListener != null) {
+                this.unsolicitedListener.onUnsolicitedData(response);
             }
         }
 
@@ -315,4 +868,48 @@ public class ProtobufPacketListener implements GattCharacteristic.PacketListener
 
         //endregion
     }
+
+
+    /**
+     * An input stream over a region of a byte array that can be repointed without allocating.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        void reset(@NonNull byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.position = 0;
+            this.limit = length;
+        }
+
+        @Override
+        public int read() {
+            if (position >= limit) {
+                return -1;
+            }
+            return (buffer[position++] & 0xFF);
+        }
+
+        @Override
+        public int read(@NonNull byte[] destination, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= limit) {
+                return -1;
+            }
+
+            final int amount = Math.min(length, limit - position);
+            System.arraycopy(buffer, position, destination, offset, amount);
+            this.position += amount;
+            return amount;
+        }
+
+        @Override
+        public int available() {
+            return (limit - position);
+        }
+    }
 }
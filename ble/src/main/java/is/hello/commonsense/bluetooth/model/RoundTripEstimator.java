@@ -0,0 +1,121 @@
+package is.hello.commonsense.bluetooth.model;
+
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Estimates the round trip time of commands sent to Sense from a series of samples.
+ * <p />
+ * Like NTP, the estimate is the smallest round trip seen, as every other sample was
+ * delayed by something other than the link itself. The number of samples needed adapts
+ * to how much the samples vary: a quiet link settles after {@link #MINIMUM_SAMPLES},
+ * a noisy link is sampled until the smallest round trip stops improving.
+ */
+public final class RoundTripEstimator {
+    /**
+     * The fewest samples an estimate is based on.
+     */
+    public static final int MINIMUM_SAMPLES = 3;
+
+    /**
+     * The most samples taken before an estimate is considered settled regardless of jitter.
+     */
+    public static final int MAXIMUM_SAMPLES = 12;
+
+    /**
+     * Jitter at or below which the link is considered quiet.
+     */
+    @VisibleForTesting static final long QUIET_JITTER_MS = 10;
+
+    /**
+     * The number of consecutive samples that must fail to improve on the
+     * smallest round trip before a noisy link is considered settled.
+     */
+    @VisibleForTesting static final int STABLE_SAMPLES = 3;
+
+    private int sampleCount = 0;
+    private long minimumRttMs = Long.MAX_VALUE;
+    private long lastRttMs = -1;
+    private long totalVariationMs = 0;
+    private int samplesSinceMinimum = 0;
+
+
+    //region Sampling
+
+    /**
+     * Records the round trip time of a single command.
+     */
+    public void add(long rttMs) {
+        if (rttMs < 0) {
+            throw new IllegalArgumentException("rttMs < 0");
+        }
+
+        if (lastRttMs >= 0) {
+            this.totalVariationMs += Math.abs(rttMs - lastRttMs);
+        }
+        this.lastRttMs = rttMs;
+
+        if (rttMs < minimumRttMs) {
+            this.minimumRttMs = rttMs;
+            this.samplesSinceMinimum = 0;
+        } else {
+            this.samplesSinceMinimum++;
+        }
+        this.sampleCount++;
+    }
+
+    /**
+     * Returns whether or not enough samples have been taken.
+     */
+    public boolean isSettled() {
+        if (sampleCount < MINIMUM_SAMPLES) {
+            return false;
+        }
+
+        return (sampleCount >= MAXIMUM_SAMPLES ||
+                getJitterMs() <= QUIET_JITTER_MS ||
+                samplesSinceMinimum >= STABLE_SAMPLES);
+    }
+
+    //endregion
+
+
+    //region Attributes
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the smallest round trip seen, or <code>-1</code> if there are no samples.
+     */
+    public long getRoundTripMs() {
+        return (sampleCount > 0) ? minimumRttMs : -1;
+    }
+
+    /**
+     * Returns the estimated time a command takes to reach Sense, which is half of
+     * the round trip. Timestamps sent to Sense should be advanced by this much.
+     */
+    public long getOneWayLatencyMs() {
+        return (sampleCount > 0) ? minimumRttMs / 2 : -1;
+    }
+
+    /**
+     * Returns the mean variation between consecutive samples.
+     */
+    public double getJitterMs() {
+        return (sampleCount > 1) ? totalVariationMs / (double) (sampleCount - 1) : 0.0;
+    }
+
+    //endregion
+
+
+    @Override
+    public String toString() {
+        return "RoundTripEstimator{" +
+                "sampleCount=" + sampleCount +
+                ", roundTripMs=" + getRoundTripMs() +
+                ", jitterMs=" + getJitterMs() +
+                '}';
+    }
+}
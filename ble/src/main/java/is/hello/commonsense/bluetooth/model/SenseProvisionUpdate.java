@@ -0,0 +1,57 @@
+package is.hello.commonsense.bluetooth.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import is.hello.commonsense.bluetooth.SensePeripheral;
+
+/**
+ * Encapsulates progress updates from {@link SensePeripheral#provision(String,
+ * is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.wifi_endpoint.sec_type,
+ * String, String, Step)}. An update is emitted when each step starts, and when it finishes.
+ */
+public final class SenseProvisionUpdate {
+    /**
+     * The steps performed to provision a Sense, in order.
+     */
+    public enum Step {
+        CONNECT_WIFI,
+        LINK_ACCOUNT,
+        PAIR_PILL,
+        PUSH_DATA,
+    }
+
+    /**
+     * The step the update describes.
+     */
+    public final @NonNull Step step;
+
+    /**
+     * Whether the step has finished, or has just started.
+     */
+    public final boolean finished;
+
+    /**
+     * The device id of the paired pill.
+     * <p />
+     * Only set when {@link #step} is {@link Step#PAIR_PILL} and {@link #finished} is true.
+     */
+    public final @Nullable String pillId;
+
+
+    public SenseProvisionUpdate(@NonNull Step step, boolean finished, @Nullable String pillId) {
+        this.step = step;
+        this.finished = finished;
+        this.pillId = pillId;
+    }
+
+
+    @Override
+    public String toString() {
+        return "SenseProvisionUpdate{" +
+                "step=" + step +
+                ", finished=" + finished +
+                ", pillId='" + pillId + '\'' +
+                '}';
+    }
+}
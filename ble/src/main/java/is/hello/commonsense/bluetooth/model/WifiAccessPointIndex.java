@@ -0,0 +1,166 @@
+package is.hello.commonsense.bluetooth.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.wifi_endpoint;
+import rx.Scheduler;
+
+/**
+ * Accumulates WiFi access points reported across several scans, so that a short scan
+ * can be combined with the results of previous scans into a more complete list.
+ * <p />
+ * Access points are keyed by BSSID. The RSSI of each access point is smoothed with an
+ * exponentially weighted moving average, as individual readings vary widely between
+ * scans. Access points that have not been seen within the maximum age are evicted.
+ */
+public final class WifiAccessPointIndex {
+    /**
+     * The default amount of time an access point is remembered after it was last seen.
+     */
+    public static final long DEFAULT_MAXIMUM_AGE_MS = 5 * 60 * 1000;
+
+    /**
+     * The weight given to each new RSSI reading.
+     */
+    @VisibleForTesting static final double RSSI_SMOOTHING_WEIGHT = 0.25;
+
+    private final Scheduler clock;
+    private final long maximumAgeMs;
+    private final Map<ByteString, AccessPoint> accessPoints = new HashMap<>();
+
+
+    public WifiAccessPointIndex(@NonNull Scheduler clock, long maximumAgeMs) {
+        this.clock = clock;
+        this.maximumAgeMs = maximumAgeMs;
+    }
+
+
+    //region Updating
+
+    /**
+     * Records an observation of an access point. Access points without an SSID are ignored.
+     */
+    public synchronized void add(@NonNull wifi_endpoint endpoint) {
+        if (!endpoint.hasSsid() || endpoint.getSsid().isEmpty()) {
+            return;
+        }
+
+        final ByteString key = getKey(endpoint);
+        final long now = clock.now();
+        final AccessPoint existing = accessPoints.get(key);
+        if (existing == null) {
+            accessPoints.put(key, new AccessPoint(endpoint, endpoint.getRssi(), now));
+        } else {
+            final double smoothedRssi = (RSSI_SMOOTHING_WEIGHT * endpoint.getRssi()) +
+                    ((1.0 - RSSI_SMOOTHING_WEIGHT) * existing.smoothedRssi);
+            accessPoints.put(key, new AccessPoint(endpoint, smoothedRssi, now));
+        }
+    }
+
+    /**
+     * Records the results of a scan.
+     */
+    public synchronized void addAll(@NonNull List<wifi_endpoint> endpoints) {
+        for (final wifi_endpoint endpoint : endpoints) {
+            add(endpoint);
+        }
+    }
+
+    /**
+     * Removes every access point not seen within the maximum age.
+     */
+    public synchronized void evictExpired() {
+        final long oldestLastSeen = clock.now() - maximumAgeMs;
+        final Iterator<AccessPoint> iterator = accessPoints.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastSeen < oldestLastSeen) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        accessPoints.clear();
+    }
+
+    private static ByteString getKey(@NonNull wifi_endpoint endpoint) {
+        if (endpoint.hasBssid() && !endpoint.getBssid().isEmpty()) {
+            return endpoint.getBssid();
+        } else {
+            return endpoint.getSsidBytes();
+        }
+    }
+
+    //endregion
+
+
+    //region Querying
+
+    /**
+     * Returns the strongest access point for each known network, strongest first.
+     * The RSSI of each returned access point is its smoothed RSSI.
+     *
+     * @param limit The maximum number of networks to return.
+     */
+    public synchronized List<wifi_endpoint> getTopNetworks(int limit) {
+        evictExpired();
+
+        final List<AccessPoint> ranked = new ArrayList<>(accessPoints.values());
+        Collections.sort(ranked, new Comparator<AccessPoint>() {
+            @Override
+            public int compare(AccessPoint lhs, AccessPoint rhs) {
+                return Double.compare(rhs.smoothedRssi, lhs.smoothedRssi);
+            }
+        });
+
+        final Set<String> seenSsids = new HashSet<>();
+        final List<wifi_endpoint> networks = new ArrayList<>();
+        for (final AccessPoint accessPoint : ranked) {
+            if (networks.size() >= limit) {
+                break;
+            }
+
+            if (seenSsids.add(accessPoint.endpoint.getSsid())) {
+                networks.add(accessPoint.endpoint.toBuilder()
+                                                 .setRssi((int) Math.round(accessPoint.smoothedRssi))
+                                                 .build());
+            }
+        }
+        return networks;
+    }
+
+    /**
+     * Returns the number of access points currently known, including expired access points.
+     */
+    public synchronized int size() {
+        return accessPoints.size();
+    }
+
+    //endregion
+
+
+    private static final class AccessPoint {
+        final wifi_endpoint endpoint;
+        final double smoothedRssi;
+        final long lastSeen;
+
+        AccessPoint(@NonNull wifi_endpoint endpoint, double smoothedRssi, long lastSeen) {
+            this.endpoint = endpoint;
+            this.smoothedRssi = smoothedRssi;
+            this.lastSeen = lastSeen;
+        }
+    }
+}
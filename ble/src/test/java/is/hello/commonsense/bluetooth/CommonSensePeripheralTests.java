@@ -3,15 +3,22 @@ package is.hello.commonsense.bluetooth;
 import android.bluetooth.BluetoothGatt;
 import android.support.annotation.NonNull;
 
+import com.google.protobuf.ByteString;
+
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import is.hello.buruberi.bluetooth.errors.BondException;
 import is.hello.buruberi.bluetooth.errors.ConnectionStateException;
 import is.hello.buruberi.bluetooth.errors.GattException;
+import is.hello.buruberi.bluetooth.errors.OperationTimeoutException;
 import is.hello.buruberi.bluetooth.errors.UserDisabledBuruberiException;
 import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
 import is.hello.buruberi.bluetooth.stacks.GattCharacteristic;
@@ -23,24 +30,40 @@ import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
 import is.hello.buruberi.util.AdvertisingDataBuilder;
 import is.hello.buruberi.util.Operation;
+import is.hello.commonsense.bluetooth.errors.SenseProvisionError;
+import is.hello.commonsense.bluetooth.model.ProtobufPacketListener;
+import is.hello.commonsense.bluetooth.model.SenseConnectToWiFiUpdate;
 import is.hello.commonsense.bluetooth.model.SenseHardwareVersion;
+import is.hello.commonsense.bluetooth.model.SenseProvisionUpdate;
 import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos;
 import is.hello.commonsense.util.CommonSenseTestCase;
+import is.hello.commonsense.util.ConnectProgress;
 import is.hello.commonsense.util.Sync;
 import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
 import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
 
 import static is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -316,6 +339,7 @@ public class CommonSensePeripheralTests extends CommonSenseTestCase {
                 .discoverService(eq(SenseIdentifiers.SERVICE), any(OperationTimeout.class));
 
         final SensePeripheral peripheral = spy(new SensePeripheral(device));
+        peripheral.setConnectPacing(ConnectPacing.IMMEDIATE);
 
         Sync.last(peripheral.connect());
 
@@ -323,6 +347,151 @@ public class CommonSensePeripheralTests extends CommonSenseTestCase {
         verify(device).connect(any(int.class), any(OperationTimeout.class));
         verify(device).createBond();
         verify(device).discoverService(eq(SenseIdentifiers.SERVICE), any(OperationTimeout.class));
+        assertThat(peripheral.getLastConnectTimeSavedMs(), is(equalTo(ConnectPacing.LEGACY_TOTAL_DELAY_MS)));
+    }
+
+    @Test
+    public void connectSkipsBondWhenPreviouslyBonded() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        //noinspection ResourceType
+        doReturn(Observable.just(device))
+                .when(device)
+                .connect(any(int.class), any(OperationTimeout.class));
+        doReturn(GattPeripheral.BOND_BONDED)
+                .when(device)
+                .getBondStatus();
+        final GattService service = mock(GattService.class);
+        doReturn(mock(GattCharacteristic.class))
+                .when(service)
+                .getCharacteristic(any(UUID.class));
+        doReturn(Observable.just(service))
+                .when(device)
+                .discoverService(eq(SenseIdentifiers.SERVICE), any(OperationTimeout.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.setConnectPacing(ConnectPacing.IMMEDIATE);
+        peripheral.restoreMetadata(SensePeripheral.COMMAND_VERSION_WEP_FIX, true);
+
+        Sync.last(peripheral.connect());
+
+        verify(device, times(0)).createBond();
+        assertThat(peripheral.getCommandVersion(), is(equalTo(SensePeripheral.COMMAND_VERSION_WEP_FIX)));
+    }
+
+    @Test
+    public void connectPrefetchesWifiScan() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        //noinspection ResourceType
+        doReturn(Observable.just(device))
+                .when(device)
+                .connect(any(int.class), any(OperationTimeout.class));
+        doReturn(Observable.just(device))
+                .when(device)
+                .createBond();
+        doReturn(GattPeripheral.STATUS_CONNECTED)
+                .when(device)
+                .getConnectionStatus();
+        final GattService service = createMockGattService();
+        final GattCharacteristic commandCharacteristic =
+                createMockGattCharacteristic(service, SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        final GattCharacteristic responseCharacteristic =
+                createMockGattCharacteristic(service, SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doReturn(commandCharacteristic)
+                .when(service)
+                .getCharacteristic(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        doReturn(responseCharacteristic)
+                .when(service)
+                .getCharacteristic(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doReturn(Observable.just(service))
+                .when(device)
+                .discoverService(eq(SenseIdentifiers.SERVICE), any(OperationTimeout.class));
+        doReturn(Observable.just(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE))
+                .when(responseCharacteristic)
+                .enableNotification(any(UUID.class), any(OperationTimeout.class));
+        doReturn(Observable.just(null))
+                .when(commandCharacteristic)
+                .write(any(GattPeripheral.WriteType.class),
+                       any(byte[].class),
+                       any(OperationTimeout.class));
+
+        doReturn(mock(OperationTimeout.class))
+                .when(device)
+                .createOperationTimeout(any(String.class), any(long.class), any(TimeUnit.class));
+        doAnswer(new Answer<Observable<?>>() {
+            @Override
+            public Observable<?> answer(InvocationOnMock invocation) throws Throwable {
+                final Observable.OnSubscribe<?> onSubscribe =
+                        (Observable.OnSubscribe<?>) invocation.getArguments()[0];
+                return Observable.create(onSubscribe);
+            }
+        }).when(stack).newConfiguredObservable(any(Observable.OnSubscribe.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.setConnectPacing(ConnectPacing.IMMEDIATE);
+        peripheral.setPrefetchWifiScan(true, SensePeripheral.CountryCode.US);
+
+        Sync.last(peripheral.connect());
+
+        verify(commandCharacteristic).write(any(GattPeripheral.WriteType.class),
+                                            any(byte[].class),
+                                            any(OperationTimeout.class));
+    }
+
+    @Test
+    public void connectCarefulPacing() throws Exception {
+        final TestScheduler scheduler = new TestScheduler();
+        final BluetoothStack stack = createMockBluetoothStack();
+        doReturn(scheduler)
+                .when(stack)
+                .getScheduler();
+        final GattPeripheral device = createMockPeripheral(stack);
+        //noinspection ResourceType
+        doReturn(Observable.just(device))
+                .when(device)
+                .connect(any(int.class), any(OperationTimeout.class));
+        doReturn(Observable.just(device))
+                .when(device)
+                .createBond();
+        doReturn(GattPeripheral.BOND_BONDED)
+                .when(device)
+                .getBondStatus();
+        final GattService service = mock(GattService.class);
+        doReturn(mock(GattCharacteristic.class))
+                .when(service)
+                .getCharacteristic(any(UUID.class));
+        doReturn(Observable.just(service))
+                .when(device)
+                .discoverService(eq(SenseIdentifiers.SERVICE), any(OperationTimeout.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.setConnectPacing(ConnectPacing.CAREFUL);
+
+        final List<ConnectProgress> progress = new ArrayList<>();
+        peripheral.connect().subscribe(new Action1<ConnectProgress>() {
+            @Override
+            public void call(ConnectProgress step) {
+                progress.add(step);
+            }
+        });
+
+        scheduler.triggerActions();
+        assertThat(progress, contains(ConnectProgress.CONNECTING));
+
+        scheduler.advanceTimeBy(ConnectPacing.LEGACY_STEP_DELAY_MS, TimeUnit.MILLISECONDS);
+        assertThat(progress, contains(ConnectProgress.CONNECTING, ConnectProgress.BONDING));
+
+        final long stableBondMs = ConnectPacing.BOND_POLL_INTERVAL_MS * ConnectPacing.STABLE_BOND_POLL_COUNT;
+        scheduler.advanceTimeBy(stableBondMs, TimeUnit.MILLISECONDS);
+        assertThat(progress, contains(ConnectProgress.CONNECTING,
+                                      ConnectProgress.BONDING,
+                                      ConnectProgress.DISCOVERING_SERVICES,
+                                      ConnectProgress.CONNECTED));
+
+        final long pacingMs = ConnectPacing.LEGACY_STEP_DELAY_MS + stableBondMs;
+        assertThat(peripheral.getLastConnectTimeSavedMs(),
+                   is(equalTo(ConnectPacing.LEGACY_TOTAL_DELAY_MS - pacingMs)));
     }
 
     @Test
@@ -598,11 +767,341 @@ public class CommonSensePeripheralTests extends CommonSenseTestCase {
             .assertThat(is(equalTo(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE)));
     }
 
+    @Test
+    public void persistentResponseSubscription() throws Exception {
+        final UUID characteristicId = SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE;
+        final UUID descriptorId = SenseIdentifiers.DESCRIPTOR_CHARACTERISTIC_COMMAND_RESPONSE_CONFIG;
+
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+
+        doReturn(GattPeripheral.STATUS_CONNECTED)
+                .when(device)
+                .getConnectionStatus();
+        doReturn(Observable.just(device))
+                .when(device)
+                .disconnect();
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.setPersistentResponseSubscription(true);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        final GattCharacteristic responseCharacteristic =
+                createMockGattCharacteristic(peripheral.gattService,
+                                             SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        peripheral.responseCharacteristic = responseCharacteristic;
+        doReturn(Observable.just(characteristicId))
+                .when(responseCharacteristic)
+                .enableNotification(eq(descriptorId),
+                                    any(OperationTimeout.class));
+
+        for (int i = 0; i < 3; i++) {
+            Sync.wrap(peripheral.subscribeResponse(mock(OperationTimeout.class)))
+                .assertThat(is(equalTo(characteristicId)));
+            Sync.wrap(peripheral.unsubscribeResponse(mock(OperationTimeout.class)))
+                .assertThat(is(equalTo(characteristicId)));
+        }
+
+        verify(responseCharacteristic, times(1)).enableNotification(eq(descriptorId),
+                                                                    any(OperationTimeout.class));
+        verify(responseCharacteristic, times(0)).disableNotification(eq(descriptorId),
+                                                                     any(OperationTimeout.class));
+
+        Sync.last(peripheral.disconnect());
+        peripheral.responseCharacteristic = responseCharacteristic;
+
+        Sync.wrap(peripheral.subscribeResponse(mock(OperationTimeout.class)))
+            .assertThat(is(equalTo(characteristicId)));
+        verify(responseCharacteristic, times(2)).enableNotification(eq(descriptorId),
+                                                                    any(OperationTimeout.class));
+    }
+
+    //endregion
+
+
+    //region Coalescing
+
+    @Test
+    public void coalesceRead() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        final SensePeripheral peripheral = new SensePeripheral(device);
+
+        final AtomicInteger reads = new AtomicInteger(0);
+        final PublishSubject<String> result = PublishSubject.create();
+        final Observable<String> read = Observable.defer(new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                reads.incrementAndGet();
+                return result;
+            }
+        });
+
+        final List<String> values = new ArrayList<>();
+        final Action1<String> onNext = new Action1<String>() {
+            @Override
+            public void call(String value) {
+                values.add(value);
+            }
+        };
+        peripheral.coalesceRead("read", read).subscribe(onNext);
+        peripheral.coalesceRead("read", read).subscribe(onNext);
+        peripheral.coalesceRead("other read", Observable.just("other")).subscribe(onNext);
+        assertThat(reads.get(), is(equalTo(1)));
+
+        result.onNext("value");
+        result.onCompleted();
+        assertThat(values, contains("other", "value", "value"));
+
+        peripheral.coalesceRead("read", read).subscribe(onNext);
+        assertThat(reads.get(), is(equalTo(2)));
+    }
+
+    @Test
+    public void performDeclaredCommand() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        final SensePeripheral peripheral = spy(new SensePeripheral(device));
+        peripheral.commandVersion = SensePeripheral.COMMAND_VERSION_WEP_FIX;
+
+        final List<MorpheusCommand> sent = new ArrayList<>();
+        doAnswer(new Answer<Observable<MorpheusCommand>>() {
+            @Override
+            public Observable<MorpheusCommand> answer(InvocationOnMock invocation) throws Throwable {
+                final MorpheusCommand command = (MorpheusCommand) invocation.getArguments()[0];
+                sent.add(command);
+                return Observable.just(MorpheusCommand.newBuilder()
+                                                      .setType(command.getType())
+                                                      .setVersion(command.getVersion())
+                                                      .setDeviceId(TEST_DEVICE_ID)
+                                                      .build());
+            }
+        }).when(peripheral).performSimpleCommand(any(MorpheusCommand.class), any(OperationTimeout.class));
+
+        assertThat(Sync.last(peripheral.readDeviceId()), is(equalTo(TEST_DEVICE_ID)));
+        Sync.last(peripheral.unpairPill("PILL"));
+
+        assertThat(sent, hasSize(2));
+        assertThat(sent.get(0).getType(), is(equalTo(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_DEVICE_ID)));
+        assertThat(sent.get(0).getVersion(), is(equalTo(SensePeripheral.COMMAND_VERSION_WEP_FIX)));
+        assertThat(sent.get(0).getAppVersion(), is(equalTo(SensePeripheral.APP_VERSION)));
+        assertThat(sent.get(1).getType(), is(equalTo(MorpheusCommand.CommandType.MORPHEUS_COMMAND_UNPAIR_PILL)));
+        assertThat(sent.get(1).getDeviceId(), is(equalTo("PILL")));
+        verify(device, times(2)).createOperationTimeout(eq("Simple Command"),
+                                                        eq(SensePeripheral.SIMPLE_COMMAND_TIMEOUT_S),
+                                                        eq(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void wifiEndpointFilter() throws Exception {
+        final Func1<SenseCommandProtos.wifi_endpoint, Boolean> filter =
+                SensePeripheral.createWifiEndpointFilter();
+
+        final SenseCommandProtos.wifi_endpoint weak = createWifiEndpoint("Hello", 1, -80);
+        final SenseCommandProtos.wifi_endpoint strong = createWifiEndpoint("Hello", 2, -40);
+        final SenseCommandProtos.wifi_endpoint weaker = createWifiEndpoint("Hello", 3, -90);
+        final SenseCommandProtos.wifi_endpoint other = createWifiEndpoint("Other", 4, -90);
+
+        assertThat(filter.call(weak), is(true));
+        assertThat(filter.call(weak), is(false));
+        assertThat(filter.call(strong), is(true));
+        assertThat(filter.call(weaker), is(false));
+        assertThat(filter.call(other), is(true));
+    }
+
+    private static SenseCommandProtos.wifi_endpoint createWifiEndpoint(String ssid, int bssid, int rssi) {
+        return SenseCommandProtos.wifi_endpoint.newBuilder()
+                                               .setSsid(ssid)
+                                               .setBssid(ByteString.copyFrom(new byte[] {(byte) bssid}))
+                                               .setRssi(rssi)
+                                               .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                               .build();
+    }
+
     //endregion
 
 
     //region Writing Commands
 
+    @Test
+    public void unsubscribeCancelsInFlightCommand() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        doAnswer(new Answer<Observable<?>>() {
+            @Override
+            public Observable<?> answer(InvocationOnMock invocation) throws Throwable {
+                final Observable.OnSubscribe<?> onSubscribe =
+                        (Observable.OnSubscribe<?>) invocation.getArguments()[0];
+                return Observable.create(onSubscribe);
+            }
+        }).when(stack).newConfiguredObservable(any(Observable.OnSubscribe.class));
+        final GattPeripheral device = createMockPeripheral(stack);
+        doReturn(GattPeripheral.STATUS_CONNECTED)
+                .when(device)
+                .getConnectionStatus();
+        doReturn(mock(OperationTimeout.class))
+                .when(device)
+                .createOperationTimeout(any(String.class), any(long.class), any(TimeUnit.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        peripheral.responseCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                         SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doReturn(Observable.just(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE))
+                .when(peripheral.responseCharacteristic)
+                .enableNotification(any(UUID.class), any(OperationTimeout.class));
+        doReturn(Observable.just(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE))
+                .when(peripheral.responseCharacteristic)
+                .disableNotification(any(UUID.class), any(OperationTimeout.class));
+        doReturn(Observable.just(null))
+                .when(peripheral.commandCharacteristic)
+                .write(any(GattPeripheral.WriteType.class),
+                       any(byte[].class),
+                       any(OperationTimeout.class));
+
+        final List<Throwable> errors = new ArrayList<>();
+        final Action1<Throwable> onError = new Action1<Throwable>() {
+            @Override
+            public void call(Throwable error) {
+                errors.add(error);
+            }
+        };
+        final Action1<MorpheusCommand> onNext = new Action1<MorpheusCommand>() {
+            @Override
+            public void call(MorpheusCommand response) {
+            }
+        };
+        final OperationTimeout firstTimeout = mock(OperationTimeout.class);
+        final MorpheusCommand command = MorpheusCommand.newBuilder()
+                                                       .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT)
+                                                       .setVersion(0)
+                                                       .build();
+        final Subscription first = peripheral.performSimpleCommand(command, firstTimeout)
+                                             .subscribe(onNext, onError);
+        verify(firstTimeout).schedule();
+
+        first.unsubscribe();
+        verify(firstTimeout).unschedule();
+        verify(peripheral.responseCharacteristic).disableNotification(any(UUID.class),
+                                                                      any(OperationTimeout.class));
+
+        final OperationTimeout secondTimeout = mock(OperationTimeout.class);
+        final Subscription second = peripheral.performSimpleCommand(command, secondTimeout)
+                                              .subscribe(onNext, onError);
+        assertThat(errors, hasSize(0));
+        verify(secondTimeout).schedule();
+        verify(peripheral.responseCharacteristic, times(2)).enableNotification(any(UUID.class),
+                                                                               any(OperationTimeout.class));
+        second.unsubscribe();
+    }
+
+    private static void respond(@NonNull SensePeripheral peripheral,
+                                @NonNull MorpheusCommand.CommandType type) {
+        final MorpheusCommand response = MorpheusCommand.newBuilder()
+                                                        .setType(type)
+                                                        .setVersion(0)
+                                                        .build();
+        for (final byte[] packet : peripheral.packetListener.createOutgoingPackets(response.toByteArray())) {
+            peripheral.packetListener.onCharacteristicNotify(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE,
+                                                             packet);
+        }
+    }
+
+    @Test
+    public void overlappingCommandsRunInPriorityOrder() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        doAnswer(new Answer<Observable<?>>() {
+            @Override
+            public Observable<?> answer(InvocationOnMock invocation) throws Throwable {
+                final Observable.OnSubscribe<?> onSubscribe =
+                        (Observable.OnSubscribe<?>) invocation.getArguments()[0];
+                return Observable.create(onSubscribe);
+            }
+        }).when(stack).newConfiguredObservable(any(Observable.OnSubscribe.class));
+        final GattPeripheral device = createMockPeripheral(stack);
+        doReturn(GattPeripheral.STATUS_CONNECTED)
+                .when(device)
+                .getConnectionStatus();
+        doReturn(mock(OperationTimeout.class))
+                .when(device)
+                .createOperationTimeout(any(String.class), any(long.class), any(TimeUnit.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        peripheral.responseCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                         SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doReturn(Observable.just(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE))
+                .when(peripheral.responseCharacteristic)
+                .enableNotification(any(UUID.class), any(OperationTimeout.class));
+        doReturn(Observable.just(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE))
+                .when(peripheral.responseCharacteristic)
+                .disableNotification(any(UUID.class), any(OperationTimeout.class));
+        doReturn(Observable.just(null))
+                .when(peripheral.commandCharacteristic)
+                .write(any(GattPeripheral.WriteType.class),
+                       any(byte[].class),
+                       any(OperationTimeout.class));
+
+        final List<Throwable> errors = new ArrayList<>();
+        final Action1<Throwable> onError = new Action1<Throwable>() {
+            @Override
+            public void call(Throwable error) {
+                errors.add(error);
+            }
+        };
+        final List<MorpheusCommand.CommandType> finished = new ArrayList<>();
+        final Action1<MorpheusCommand> onNext = new Action1<MorpheusCommand>() {
+            @Override
+            public void call(MorpheusCommand response) {
+                finished.add(response.getType());
+            }
+        };
+
+        final OperationTimeout firstTimeout = mock(OperationTimeout.class);
+        final MorpheusCommand first = MorpheusCommand.newBuilder()
+                                                     .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT)
+                                                     .setVersion(0)
+                                                     .build();
+        peripheral.performSimpleCommand(first, firstTimeout)
+                  .subscribe(onNext, onError);
+        verify(firstTimeout).schedule();
+
+        final OperationTimeout lowTimeout = mock(OperationTimeout.class);
+        final MorpheusCommand low = MorpheusCommand.newBuilder()
+                                                   .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_PUSH_DATA_AFTER_SET_TIMEZONE)
+                                                   .setVersion(0)
+                                                   .build();
+        peripheral.performSimpleCommand(low, lowTimeout)
+                  .subscribe(onNext, onError);
+
+        final OperationTimeout highTimeout = mock(OperationTimeout.class);
+        final MorpheusCommand high = MorpheusCommand.newBuilder()
+                                                    .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_LED_OPERATION_FAILED)
+                                                    .setVersion(0)
+                                                    .build();
+        peripheral.performSimpleCommand(high, highTimeout)
+                  .subscribe(onNext, onError);
+
+        assertThat(errors, hasSize(0));
+        verify(lowTimeout, never()).schedule();
+        verify(highTimeout, never()).schedule();
+
+        respond(peripheral, first.getType());
+        verify(highTimeout).schedule();
+        verify(lowTimeout, never()).schedule();
+
+        respond(peripheral, high.getType());
+        verify(lowTimeout).schedule();
+
+        respond(peripheral, low.getType());
+        assertThat(errors, hasSize(0));
+        assertThat(finished, contains(first.getType(), high.getType(), low.getType()));
+    }
+
     @Test
     public void writeLargeCommandSuccess() throws Exception {
         final BluetoothStack stack = createMockBluetoothStack();
@@ -635,6 +1134,354 @@ public class CommonSensePeripheralTests extends CommonSenseTestCase {
                                                                  any(OperationTimeout.class));
     }
 
+    @Test
+    public void writeLargeCommandWithNegotiatedMtu() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        peripheral.responseCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                         SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doReturn(Observable.just(null))
+                .when(peripheral.commandCharacteristic)
+                .write(any(GattPeripheral.WriteType.class),
+                       any(byte[].class),
+                       any(OperationTimeout.class));
+
+        MorpheusCommand command = MorpheusCommand.newBuilder()
+                                                 .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                                                 .setVersion(0)
+                                                 .setWifiName("Mostly Radiation")
+                                                 .setWifiSSID("00:00:00:00:00:00")
+                                                 .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                                 .build();
+
+        peripheral.setNegotiatedMtu(185);
+        assertThat(peripheral.getOutgoingPacketLength(), is(equalTo(GattCharacteristic.PACKET_LENGTH)));
+
+        peripheral.connectionCommandVersion = SensePeripheral.COMMAND_VERSION_LARGE_PACKETS;
+        assertThat(peripheral.getOutgoingPacketLength(), is(equalTo(182)));
+
+        Sync.last(peripheral.writeLargeCommand(
+                command.toByteArray()));
+
+        verify(peripheral.commandCharacteristic, times(1)).write(any(GattPeripheral.WriteType.class),
+                                                                 any(byte[].class),
+                                                                 any(OperationTimeout.class));
+    }
+
+    @Test
+    public void outgoingHeaderFormat() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        doReturn(Observable.just(device))
+                .when(device)
+                .disconnect();
+        final SensePeripheral peripheral = new SensePeripheral(device);
+
+        assertThat(peripheral.getOutgoingHeaderFormat(), is(equalTo(ProtobufPacketListener.HeaderFormat.LEGACY)));
+
+        peripheral.restoreMetadata(SensePeripheral.COMMAND_VERSION_EXTENDED_HEADER, false);
+        assertThat(peripheral.getOutgoingHeaderFormat(), is(equalTo(ProtobufPacketListener.HeaderFormat.LEGACY)));
+
+        peripheral.connectionCommandVersion = SensePeripheral.COMMAND_VERSION_LARGE_PACKETS;
+        assertThat(peripheral.getOutgoingHeaderFormat(), is(equalTo(ProtobufPacketListener.HeaderFormat.LEGACY)));
+
+        peripheral.connectionCommandVersion = SensePeripheral.COMMAND_VERSION_EXTENDED_HEADER;
+        assertThat(peripheral.getOutgoingHeaderFormat(), is(equalTo(ProtobufPacketListener.HeaderFormat.EXTENDED)));
+
+        Sync.last(peripheral.disconnect());
+        assertThat(peripheral.getOutgoingHeaderFormat(), is(equalTo(ProtobufPacketListener.HeaderFormat.LEGACY)));
+    }
+
+    @Test
+    public void writeLargeCommandWindowed() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        doReturn(mock(OperationTimeout.class))
+                .when(device)
+                .createOperationTimeout(any(String.class), any(Long.class), any(TimeUnit.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        peripheral.responseCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                         SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+
+        final List<byte[]> writtenPackets = new ArrayList<>();
+        final List<PublishSubject<Void>> pendingWrites = new ArrayList<>();
+        doAnswer(new Answer<Observable<Void>>() {
+            @Override
+            public Observable<Void> answer(InvocationOnMock invocation) throws Throwable {
+                writtenPackets.add((byte[]) invocation.getArguments()[1]);
+                final PublishSubject<Void> write = PublishSubject.create();
+                pendingWrites.add(write);
+                return write;
+            }
+        }).when(peripheral.commandCharacteristic)
+          .write(any(GattPeripheral.WriteType.class),
+                 any(byte[].class),
+                 any(OperationTimeout.class));
+
+        MorpheusCommand command = MorpheusCommand.newBuilder()
+                                                 .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                                                 .setVersion(0)
+                                                 .setWifiName("Mostly Radiation")
+                                                 .setWifiSSID("00:00:00:00:00:00")
+                                                 .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                                 .build();
+        final List<byte[]> expectedPackets =
+                new ProtobufPacketListener().createOutgoingPackets(command.toByteArray());
+        assertThat(expectedPackets.size(), is(equalTo(3)));
+
+        peripheral.setWriteWindowSize(2);
+        final List<Void> results = new ArrayList<>();
+        peripheral.writeLargeCommand(command.toByteArray())
+                  .subscribe(new Action1<Void>() {
+                      @Override
+                      public void call(Void ignored) {
+                          results.add(ignored);
+                      }
+                  });
+
+        assertThat(writtenPackets, hasSize(2));
+        assertArrayEquals(expectedPackets.get(0), writtenPackets.get(0));
+        assertArrayEquals(expectedPackets.get(1), writtenPackets.get(1));
+
+        pendingWrites.get(0).onNext(null);
+        pendingWrites.get(0).onCompleted();
+        assertThat(writtenPackets, hasSize(3));
+        assertArrayEquals(expectedPackets.get(1), writtenPackets.get(1));
+        assertArrayEquals(expectedPackets.get(2), writtenPackets.get(2));
+
+        pendingWrites.get(1).onNext(null);
+        pendingWrites.get(1).onCompleted();
+        assertThat(results, hasSize(0));
+
+        pendingWrites.get(2).onNext(null);
+        pendingWrites.get(2).onCompleted();
+        assertThat(results, hasSize(1));
+        assertThat(writtenPackets, hasSize(3));
+    }
+
+    /**
+     * Creates a peripheral whose command characteristic records every
+     * packet written to it, and leaves each write pending until told otherwise.
+     */
+    private static SensePeripheral createPendingWritePeripheral(@NonNull GattPeripheral device,
+                                                                @NonNull final List<byte[]> writtenPackets,
+                                                                @NonNull final List<PublishSubject<Void>> pendingWrites) {
+        doReturn(mock(OperationTimeout.class))
+                .when(device)
+                .createOperationTimeout(any(String.class), any(Long.class), any(TimeUnit.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        peripheral.responseCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                         SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doAnswer(new Answer<Observable<Void>>() {
+            @Override
+            public Observable<Void> answer(InvocationOnMock invocation) throws Throwable {
+                writtenPackets.add((byte[]) invocation.getArguments()[1]);
+                final PublishSubject<Void> write = PublishSubject.create();
+                pendingWrites.add(write);
+                return write;
+            }
+        }).when(peripheral.commandCharacteristic)
+          .write(any(GattPeripheral.WriteType.class),
+                 any(byte[].class),
+                 any(OperationTimeout.class));
+        return peripheral;
+    }
+
+    @Test
+    public void writeLargeCommandOutOfOrderConfirmations() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        final List<byte[]> writtenPackets = new ArrayList<>();
+        final List<PublishSubject<Void>> pendingWrites = new ArrayList<>();
+        final SensePeripheral peripheral = createPendingWritePeripheral(device, writtenPackets, pendingWrites);
+
+        MorpheusCommand command = MorpheusCommand.newBuilder()
+                                                 .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                                                 .setVersion(0)
+                                                 .setWifiName("Mostly Radiation")
+                                                 .setWifiSSID("00:00:00:00:00:00")
+                                                 .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                                 .build();
+
+        peripheral.setWriteWindowSize(2);
+        final List<Void> results = new ArrayList<>();
+        peripheral.writeLargeCommand(command.toByteArray())
+                  .subscribe(new Action1<Void>() {
+                      @Override
+                      public void call(Void ignored) {
+                          results.add(ignored);
+                      }
+                  });
+        assertThat(writtenPackets, hasSize(2));
+
+        // The window cannot move past the oldest unconfirmed packet.
+        pendingWrites.get(1).onNext(null);
+        pendingWrites.get(1).onCompleted();
+        assertThat(writtenPackets, hasSize(2));
+
+        pendingWrites.get(0).onNext(null);
+        pendingWrites.get(0).onCompleted();
+        assertThat(writtenPackets, hasSize(3));
+        assertThat(results, hasSize(0));
+
+        pendingWrites.get(2).onNext(null);
+        pendingWrites.get(2).onCompleted();
+        assertThat(results, hasSize(1));
+
+        verify(device, times(3)).createOperationTimeout(eq("Write Large Command"),
+                                                        any(Long.class),
+                                                        any(TimeUnit.class));
+    }
+
+    @Test
+    public void writeLargeCommandWhileCancelledWriteInFlight() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        final List<byte[]> writtenPackets = new ArrayList<>();
+        final List<PublishSubject<Void>> pendingWrites = new ArrayList<>();
+        final SensePeripheral peripheral = createPendingWritePeripheral(device, writtenPackets, pendingWrites);
+
+        MorpheusCommand first = MorpheusCommand.newBuilder()
+                                               .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                                               .setVersion(0)
+                                               .setWifiName("Mostly Radiation")
+                                               .setWifiSSID("00:00:00:00:00:00")
+                                               .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                               .build();
+        MorpheusCommand second = MorpheusCommand.newBuilder()
+                                                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                                                .setVersion(0)
+                                                .setWifiName("Hello")
+                                                .setWifiSSID("11:11:11:11:11:11")
+                                                .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                                .build();
+        final List<byte[]> expectedPackets =
+                new ProtobufPacketListener().createOutgoingPackets(first.toByteArray());
+
+        peripheral.setWriteWindowSize(2);
+        final Subscription cancelled = peripheral.writeLargeCommand(first.toByteArray()).subscribe();
+        cancelled.unsubscribe();
+        assertThat(writtenPackets, hasSize(2));
+
+        peripheral.writeLargeCommand(second.toByteArray()).subscribe();
+        assertThat(writtenPackets, hasSize(4));
+
+        // The packets of the cancelled command are still with the stack, and must be left alone.
+        assertArrayEquals(expectedPackets.get(0), writtenPackets.get(0));
+        assertArrayEquals(expectedPackets.get(1), writtenPackets.get(1));
+    }
+
+    @Test
+    public void writeLargeCommandAdaptivePacing() throws Exception {
+        final BluetoothStack stack = createMockBluetoothStack();
+        final GattPeripheral device = createMockPeripheral(stack);
+        doReturn("ca:15:4f:fa:b7:0b").when(device).getAddress();
+        doReturn(mock(OperationTimeout.class))
+                .when(device)
+                .createOperationTimeout(any(String.class), any(Long.class), any(TimeUnit.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        peripheral.responseCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                         SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doReturn(Observable.just(null))
+                .when(peripheral.commandCharacteristic)
+                .write(any(GattPeripheral.WriteType.class),
+                       any(byte[].class),
+                       any(OperationTimeout.class));
+
+        MorpheusCommand command = MorpheusCommand.newBuilder()
+                                                 .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                                                 .setVersion(0)
+                                                 .setWifiName("Mostly Radiation")
+                                                 .setWifiSSID("00:00:00:00:00:00")
+                                                 .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                                 .build();
+
+        WritePacer.forgetAll();
+        peripheral.setAdaptiveWritePacing(true);
+        Sync.last(peripheral.writeLargeCommand(command.toByteArray()));
+
+        verify(peripheral.commandCharacteristic, times(3)).write(any(GattPeripheral.WriteType.class),
+                                                                 any(byte[].class),
+                                                                 any(OperationTimeout.class));
+        assertThat(WritePacer.forAddress("ca:15:4f:fa:b7:0b").getWindowSize(), is(equalTo(3)));
+    }
+
+    @Test
+    public void writeLargeCommandUnsubscribeStopsGapWorker() throws Exception {
+        final TestScheduler scheduler = spy(new TestScheduler());
+        final List<Scheduler.Worker> workers = new ArrayList<>();
+        doAnswer(new Answer<Scheduler.Worker>() {
+            @Override
+            public Scheduler.Worker answer(InvocationOnMock invocation) throws Throwable {
+                final Scheduler.Worker worker = (Scheduler.Worker) invocation.callRealMethod();
+                workers.add(worker);
+                return worker;
+            }
+        }).when(scheduler).createWorker();
+        final BluetoothStack stack = createMockBluetoothStack();
+        doReturn(scheduler)
+                .when(stack)
+                .getScheduler();
+        final GattPeripheral device = createMockPeripheral(stack);
+        doReturn("ca:15:4f:fa:b7:0c").when(device).getAddress();
+        doReturn(mock(OperationTimeout.class))
+                .when(device)
+                .createOperationTimeout(any(String.class), any(Long.class), any(TimeUnit.class));
+
+        final SensePeripheral peripheral = new SensePeripheral(device);
+        peripheral.gattService = createMockGattService();
+        peripheral.commandCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                        SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND);
+        peripheral.responseCharacteristic = createMockGattCharacteristic(peripheral.gattService,
+                                                                         SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE);
+        doReturn(Observable.just(null))
+                .when(peripheral.commandCharacteristic)
+                .write(any(GattPeripheral.WriteType.class),
+                       any(byte[].class),
+                       any(OperationTimeout.class));
+
+        MorpheusCommand command = MorpheusCommand.newBuilder()
+                                                 .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                                                 .setVersion(0)
+                                                 .setWifiName("Mostly Radiation")
+                                                 .setWifiSSID("00:00:00:00:00:00")
+                                                 .setSecurityType(SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN)
+                                                 .build();
+
+        WritePacer.forgetAll();
+        WritePacer.forAddress("ca:15:4f:fa:b7:0c").restore(1, 100);
+        peripheral.setAdaptiveWritePacing(true);
+        final Subscription subscription = peripheral.writeLargeCommand(command.toByteArray()).subscribe();
+
+        assertThat(workers, hasSize(1));
+        assertThat(workers.get(0).isUnsubscribed(), is(false));
+
+        subscription.unsubscribe();
+        assertThat(workers.get(0).isUnsubscribed(), is(true));
+
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        verify(peripheral.commandCharacteristic, times(1)).write(any(GattPeripheral.WriteType.class),
+                                                                 any(byte[].class),
+                                                                 any(OperationTimeout.class));
+    }
+
     @Test
     public void writeLargeCommandFailure() throws Exception {
         final BluetoothStack stack = createMockBluetoothStack();
@@ -671,4 +1518,150 @@ public class CommonSensePeripheralTests extends CommonSenseTestCase {
     }
 
     //endregion
+
+
+    //region Provisioning
+
+    /**
+     * The provisioning deadline is a timer on the stack's scheduler,
+     * which would block the immediate scheduler for its full duration.
+     */
+    private static BluetoothStack createProvisioningBluetoothStack(@NonNull TestScheduler scheduler) {
+        final BluetoothStack stack = createMockBluetoothStack();
+        doReturn(scheduler)
+                .when(stack)
+                .getScheduler();
+        return stack;
+    }
+
+    private static SensePeripheral createProvisionablePeripheral(@NonNull BluetoothStack stack) {
+        final GattPeripheral device = createMockPeripheral(stack);
+        final SensePeripheral peripheral = spy(new SensePeripheral(device));
+        final SenseConnectToWiFiUpdate connected =
+                new SenseConnectToWiFiUpdate(SenseCommandProtos.wifi_connection_state.CONNECTED, null, null);
+        doReturn(Observable.just(connected))
+                .when(peripheral)
+                .connectToWiFiNetwork(any(String.class),
+                                      any(SenseCommandProtos.wifi_endpoint.sec_type.class),
+                                      any(String.class));
+        doReturn(Observable.just(null))
+                .when(peripheral)
+                .linkAccount(any(String.class));
+        doReturn(Observable.just("PILL"))
+                .when(peripheral)
+                .pairPill(any(String.class));
+        doReturn(Observable.just(null))
+                .when(peripheral)
+                .pushData();
+        return peripheral;
+    }
+
+    @Test
+    public void provisionReportsEachStep() throws Exception {
+        final SensePeripheral peripheral = createProvisionablePeripheral(createProvisioningBluetoothStack(new TestScheduler()));
+
+        final List<SenseProvisionUpdate> updates =
+                Sync.wrap(peripheral.provision("Hello", SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN,
+                                               null, "token", null)
+                                    .toList())
+                    .last();
+        assertThat(updates, hasSize(SenseProvisionUpdate.Step.values().length * 2));
+        assertThat(updates.get(0).step, is(equalTo(SenseProvisionUpdate.Step.CONNECT_WIFI)));
+        assertThat(updates.get(0).finished, is(false));
+        assertThat(updates.get(5).step, is(equalTo(SenseProvisionUpdate.Step.PAIR_PILL)));
+        assertThat(updates.get(5).pillId, is(equalTo("PILL")));
+        assertThat(updates.get(7).step, is(equalTo(SenseProvisionUpdate.Step.PUSH_DATA)));
+        assertThat(updates.get(7).finished, is(true));
+    }
+
+    @Test
+    public void provisionResumesFromFailedStep() throws Exception {
+        final SensePeripheral peripheral = createProvisionablePeripheral(createProvisioningBluetoothStack(new TestScheduler()));
+        doReturn(Observable.error(new OperationTimeoutException(Operation.COMMAND_RESPONSE)))
+                .when(peripheral)
+                .pairPill(any(String.class));
+
+        final Observable<SenseProvisionUpdate> provision =
+                peripheral.provision("Hello", SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN,
+                                     null, "token", null);
+        final List<Throwable> errors = new ArrayList<>();
+        provision.subscribe(new Action1<SenseProvisionUpdate>() {
+            @Override
+            public void call(SenseProvisionUpdate update) {
+            }
+        }, new Action1<Throwable>() {
+            @Override
+            public void call(Throwable error) {
+                errors.add(error);
+            }
+        });
+        assertThat(errors, hasSize(1));
+        final SenseProvisionError error = (SenseProvisionError) errors.get(0);
+        assertThat(error.step, is(equalTo(SenseProvisionUpdate.Step.PAIR_PILL)));
+
+        doReturn(Observable.just("PILL"))
+                .when(peripheral)
+                .pairPill(any(String.class));
+        Sync.last(peripheral.provision("Hello", SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN,
+                                       null, "token", error.step));
+
+        verify(peripheral, times(1)).connectToWiFiNetwork(any(String.class),
+                                                          any(SenseCommandProtos.wifi_endpoint.sec_type.class),
+                                                          any(String.class));
+        verify(peripheral, times(1)).linkAccount(any(String.class));
+        verify(peripheral, times(2)).pairPill(any(String.class));
+        verify(peripheral, times(1)).pushData();
+    }
+
+    @Test
+    public void provisionDeadline() throws Exception {
+        final TestScheduler scheduler = new TestScheduler();
+        final SensePeripheral peripheral =
+                createProvisionablePeripheral(createProvisioningBluetoothStack(scheduler));
+        doReturn(Observable.never())
+                .when(peripheral)
+                .linkAccount(any(String.class));
+
+        final List<Throwable> errors = new ArrayList<>();
+        peripheral.provision("Hello", SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN,
+                             null, "token", null)
+                  .subscribe(new Action1<SenseProvisionUpdate>() {
+                      @Override
+                      public void call(SenseProvisionUpdate update) {
+                      }
+                  }, new Action1<Throwable>() {
+                      @Override
+                      public void call(Throwable error) {
+                          errors.add(error);
+                      }
+                  });
+
+        scheduler.advanceTimeBy(3, TimeUnit.MINUTES);
+        assertThat(errors, hasSize(1));
+        assertThat(((SenseProvisionError) errors.get(0)).step,
+                   is(equalTo(SenseProvisionUpdate.Step.LINK_ACCOUNT)));
+    }
+
+    @Test
+    public void overlappingOperationsHoldResponseSubscription() throws Exception {
+        final SensePeripheral peripheral = createProvisionablePeripheral(createProvisioningBluetoothStack(new TestScheduler()));
+        doReturn(Observable.never())
+                .when(peripheral)
+                .linkAccount(any(String.class));
+
+        final Subscription pending =
+                peripheral.provision("Hello", SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN,
+                                     null, "token", null)
+                          .subscribe();
+        assertThat(peripheral.responseSubscriptionHolds, is(equalTo(1)));
+
+        Sync.last(peripheral.provision("Hello", SenseCommandProtos.wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN,
+                                       null, "token", SenseProvisionUpdate.Step.PAIR_PILL));
+        assertThat(peripheral.responseSubscriptionHolds, is(equalTo(1)));
+
+        pending.unsubscribe();
+        assertThat(peripheral.responseSubscriptionHolds, is(equalTo(0)));
+    }
+
+    //endregion
 }
@@ -0,0 +1,20 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import is.hello.commonsense.util.CommonSenseTestCase;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class ConnectPacingTests extends CommonSenseTestCase {
+    @Test
+    public void forModel() throws Exception {
+        assertThat(ConnectPacing.forModel("SM-G920F"), is(sameInstance(ConnectPacing.CAREFUL)));
+        assertThat(ConnectPacing.forModel("SAMSUNG-SM-G925A"), is(sameInstance(ConnectPacing.CAREFUL)));
+        assertThat(ConnectPacing.forModel("SM-G930F"), is(sameInstance(ConnectPacing.IMMEDIATE)));
+        assertThat(ConnectPacing.forModel("Nexus 5"), is(sameInstance(ConnectPacing.IMMEDIATE)));
+        assertThat(ConnectPacing.forModel(null), is(sameInstance(ConnectPacing.IMMEDIATE)));
+    }
+}
@@ -0,0 +1,162 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.commonsense.bluetooth.errors.SenseCommandCancelledError;
+import is.hello.commonsense.util.CommonSenseTestCase;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SenseCommandQueueTests extends CommonSenseTestCase {
+    private final SenseCommandQueue queue = new SenseCommandQueue(mock(LoggerFacade.class),
+                                                                  Schedulers.immediate());
+    private final List<String> started = new ArrayList<>();
+    private final List<String> finished = new ArrayList<>();
+
+    private Observable<String> enqueue(final String name,
+                                       SenseCommandQueue.Priority priority,
+                                       final PublishSubject<String> command) {
+        final Observable<String> tracked = Observable.defer(new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                started.add(name);
+                return command;
+            }
+        });
+        return queue.enqueue(name, priority, tracked);
+    }
+
+    private Action1<String> recordFinished() {
+        return new Action1<String>() {
+            @Override
+            public void call(String value) {
+                finished.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void runsOneAtATime() throws Exception {
+        final PublishSubject<String> first = PublishSubject.create();
+        final PublishSubject<String> second = PublishSubject.create();
+
+        enqueue("first", SenseCommandQueue.Priority.NORMAL, first).subscribe(recordFinished());
+        enqueue("second", SenseCommandQueue.Priority.NORMAL, second).subscribe(recordFinished());
+
+        assertThat(started, contains("first"));
+        assertThat(queue.isRunning(), is(true));
+        assertThat(queue.getQueueDepth(), is(equalTo(1)));
+
+        first.onNext("first");
+        first.onCompleted();
+
+        assertThat(started, contains("first", "second"));
+        assertThat(queue.getQueueDepth(), is(equalTo(0)));
+
+        second.onNext("second");
+        second.onCompleted();
+
+        assertThat(finished, contains("first", "second"));
+        assertThat(queue.isRunning(), is(false));
+    }
+
+    @Test
+    public void priorities() throws Exception {
+        final PublishSubject<String> running = PublishSubject.create();
+        final PublishSubject<String> low = PublishSubject.create();
+        final PublishSubject<String> normal = PublishSubject.create();
+        final PublishSubject<String> high = PublishSubject.create();
+
+        enqueue("running", SenseCommandQueue.Priority.NORMAL, running).subscribe(recordFinished());
+        enqueue("low", SenseCommandQueue.Priority.LOW, low).subscribe(recordFinished());
+        enqueue("normal", SenseCommandQueue.Priority.NORMAL, normal).subscribe(recordFinished());
+        enqueue("high", SenseCommandQueue.Priority.HIGH, high).subscribe(recordFinished());
+        assertThat(queue.getQueueDepth(), is(equalTo(3)));
+
+        running.onCompleted();
+        high.onCompleted();
+        normal.onCompleted();
+
+        assertThat(started, contains("running", "high", "normal", "low"));
+    }
+
+    @Test
+    public void unsubscribeWhileWaiting() throws Exception {
+        final PublishSubject<String> first = PublishSubject.create();
+        final PublishSubject<String> second = PublishSubject.create();
+        final PublishSubject<String> third = PublishSubject.create();
+
+        enqueue("first", SenseCommandQueue.Priority.NORMAL, first).subscribe(recordFinished());
+        final Subscription subscription =
+                enqueue("second", SenseCommandQueue.Priority.NORMAL, second).subscribe(recordFinished());
+        enqueue("third", SenseCommandQueue.Priority.NORMAL, third).subscribe(recordFinished());
+
+        subscription.unsubscribe();
+        assertThat(queue.getQueueDepth(), is(equalTo(1)));
+
+        first.onCompleted();
+        assertThat(started, contains("first", "third"));
+    }
+
+    @Test
+    public void unsubscribeWhileRunning() throws Exception {
+        final PublishSubject<String> first = PublishSubject.create();
+        final PublishSubject<String> second = PublishSubject.create();
+
+        final Subscription subscription =
+                enqueue("first", SenseCommandQueue.Priority.NORMAL, first).subscribe(recordFinished());
+        enqueue("second", SenseCommandQueue.Priority.NORMAL, second).subscribe(recordFinished());
+
+        subscription.unsubscribe();
+        assertThat(first.hasObservers(), is(false));
+        assertThat(started, contains("first", "second"));
+        assertThat(queue.getQueueDepth(), is(equalTo(0)));
+
+        first.onNext("first");
+        first.onCompleted();
+        assertThat(finished, hasSize(0));
+    }
+
+    @Test
+    public void cancelWaiting() throws Exception {
+        final PublishSubject<String> first = PublishSubject.create();
+        final PublishSubject<String> second = PublishSubject.create();
+
+        enqueue("first", SenseCommandQueue.Priority.NORMAL, first).subscribe(recordFinished());
+
+        final List<Throwable> errors = new ArrayList<>();
+        enqueue("second", SenseCommandQueue.Priority.NORMAL, second)
+                .subscribe(recordFinished(), new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable error) {
+                        errors.add(error);
+                    }
+                });
+
+        queue.cancelWaiting(new SenseCommandCancelledError());
+        assertThat(errors, hasSize(1));
+        assertThat(errors.get(0), is(instanceOf(SenseCommandCancelledError.class)));
+        assertThat(queue.getQueueDepth(), is(equalTo(0)));
+
+        first.onNext("first");
+        first.onCompleted();
+        assertThat(started, contains("first"));
+        assertThat(finished, contains("first"));
+    }
+}
@@ -0,0 +1,80 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import is.hello.commonsense.bluetooth.model.SenseLedAnimation;
+import is.hello.commonsense.bluetooth.model.SenseNetworkStatus;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos;
+import is.hello.commonsense.util.CommonSenseTestCase;
+
+import static is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand;
+import static is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand.CommandType;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class SenseCommandTests extends CommonSenseTestCase {
+    @Test
+    public void registry() throws Exception {
+        assertThat(SenseCommand.forType(CommandType.MORPHEUS_COMMAND_GET_DEVICE_ID),
+                   is(sameInstance((Object) SenseCommand.GET_DEVICE_ID)));
+        assertThat(SenseCommand.forType(CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT), is(nullValue()));
+
+        for (final SenseLedAnimation animation : SenseLedAnimation.values()) {
+            final SenseCommand<Void> command = SenseCommand.forAnimation(animation);
+            assertThat(command.type, is(equalTo(animation.commandType)));
+            assertThat(SenseCommand.forType(animation.commandType), is(sameInstance((Object) command)));
+            assertThat(command.timeoutS, is(equalTo(SensePeripheral.ANIMATION_TIMEOUT_S)));
+        }
+    }
+
+    @Test
+    public void disconnectSemantics() throws Exception {
+        assertThat(SenseCommand.SWITCH_TO_PAIRING_MODE.disconnects, is(true));
+        assertThat(SenseCommand.FACTORY_RESET.disconnects, is(true));
+        assertThat(SenseCommand.DFU_BEGIN.disconnects, is(true));
+        assertThat(SenseCommand.SWITCH_TO_NORMAL_MODE.disconnects, is(false));
+        assertThat(SenseCommand.PAIR_PILL.disconnects, is(false));
+    }
+
+    @Test
+    public void cacheInvalidation() throws Exception {
+        assertThat(SenseCommand.FACTORY_RESET.invalidatesAll, is(true));
+        assertThat(SenseCommand.PAIR_SENSE.invalidatedKey, is(equalTo(SenseResponseCache.KEY_PILL_ID)));
+        assertThat(SenseCommand.UNPAIR_PILL.invalidatedKey, is(equalTo(SenseResponseCache.KEY_PILL_ID)));
+        assertThat(SenseCommand.GET_DEVICE_ID.invalidatesAll, is(false));
+        assertThat(SenseCommand.GET_DEVICE_ID.invalidatedKey, is(nullValue()));
+    }
+
+    @Test
+    public void priority() throws Exception {
+        assertThat(SenseCommand.getPriority(CommandType.MORPHEUS_COMMAND_LED_OPERATION_FAILED),
+                   is(equalTo(SenseCommandQueue.Priority.HIGH)));
+        assertThat(SenseCommand.getPriority(CommandType.MORPHEUS_COMMAND_PUSH_DATA_AFTER_SET_TIMEZONE),
+                   is(equalTo(SenseCommandQueue.Priority.LOW)));
+        assertThat(SenseCommand.getPriority(CommandType.MORPHEUS_COMMAND_GET_DEVICE_ID),
+                   is(equalTo(SenseCommandQueue.Priority.NORMAL)));
+        assertThat(SenseCommand.getPriority(CommandType.MORPHEUS_COMMAND_SCAN_WIFI),
+                   is(equalTo(SenseCommandQueue.Priority.NORMAL)));
+    }
+
+    @Test
+    public void resultMappers() throws Exception {
+        final MorpheusCommand response = MorpheusCommand.newBuilder()
+                                                        .setType(CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT)
+                                                        .setVersion(0)
+                                                        .setDeviceId("CA154FFA")
+                                                        .setWifiSSID("Hello")
+                                                        .setWifiConnectionState(SenseCommandProtos.wifi_connection_state.IP_RETRIEVED)
+                                                        .build();
+        assertThat(SenseCommand.TO_VOID.call(response), is(nullValue()));
+        assertThat(SenseCommand.TO_DEVICE_ID.call(response), is(equalTo("CA154FFA")));
+
+        final SenseNetworkStatus status = SenseCommand.TO_NETWORK_STATUS.call(response);
+        assertThat(status.ssid, is(equalTo("Hello")));
+        assertThat(status.connectionState,
+                   is(equalTo(SenseCommandProtos.wifi_connection_state.IP_RETRIEVED)));
+    }
+}
@@ -0,0 +1,343 @@
+package is.hello.commonsense.bluetooth;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.commonsense.bluetooth.errors.SenseFirmwareTransferError;
+import is.hello.commonsense.bluetooth.model.FirmwareImage;
+import is.hello.commonsense.util.CommonSenseTestCase;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class SenseFirmwareTransferTests extends CommonSenseTestCase {
+    private static final int IMAGE_LENGTH = 5000;
+    private static final int CHUNK_SIZE = 128;
+    private static final int WINDOW_SIZE = 4;
+    private static final long WRITE_DURATION_MS = 10;
+    private static final String DEVICE_ID = "CA154FFA";
+
+    private final TestScheduler clock = new TestScheduler();
+    private File imageFile;
+    private byte[] imageBytes;
+    private FirmwareImage image;
+    private FirmwareCheckpointStore checkpointStore;
+    private SimulatedSense sense;
+
+    @Before
+    public void setUp() throws Exception {
+        this.imageBytes = new byte[IMAGE_LENGTH];
+        new Random(42).nextBytes(imageBytes);
+
+        this.imageFile = File.createTempFile("firmware", ".bin");
+        final FileOutputStream out = new FileOutputStream(imageFile);
+        try {
+            out.write(imageBytes);
+        } finally {
+            out.close();
+        }
+
+        this.image = FirmwareImage.open(imageFile);
+        this.checkpointStore = new FirmwareCheckpointStore(getContext());
+        checkpointStore.clearAll();
+        this.sense = new SimulatedSense(IMAGE_LENGTH);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        image.close();
+        //noinspection ResultOfMethodCallIgnored
+        imageFile.delete();
+    }
+
+    private SenseFirmwareTransfer createTransfer() {
+        final SenseFirmwareTransfer transfer = new SenseFirmwareTransfer(DEVICE_ID, image, sense, checkpointStore,
+                                                                         clock, mock(LoggerFacade.class));
+        transfer.setChunkSize(CHUNK_SIZE);
+        transfer.setWindowSize(WINDOW_SIZE);
+        return transfer;
+    }
+
+    private static <T> Result<T> run(@NonNull Observable<T> observable) {
+        final Result<T> result = new Result<>();
+        observable.subscribe(new Action1<T>() {
+            @Override
+            public void call(T value) {
+                result.values.add(value);
+            }
+        }, new Action1<Throwable>() {
+            @Override
+            public void call(Throwable e) {
+                result.error = e;
+            }
+        });
+        return result;
+    }
+
+    @Test
+    public void transfersWholeImage() throws Exception {
+        final Result<SenseFirmwareTransfer.Progress> result = run(createTransfer().transfer());
+        assertThat(result.error, is(nullValue()));
+        assertThat(sense.finished, is(true));
+        assertTrue(Arrays.equals(sense.received, imageBytes));
+
+        final int windows = (int) Math.ceil(IMAGE_LENGTH / (double) (CHUNK_SIZE * WINDOW_SIZE));
+        assertThat(sense.confirmCount, is(equalTo(windows)));
+        assertThat(result.values.size(), is(equalTo(windows + 1)));
+
+        final SenseFirmwareTransfer.Progress last = result.values.get(result.values.size() - 1);
+        assertThat(last.finished, is(true));
+        assertThat(last.confirmedBytes, is(equalTo(IMAGE_LENGTH)));
+        assertThat(last.remainingMs, is(equalTo(0L)));
+        assertThat(last.bytesPerSecond, is(greaterThan(0.0)));
+        assertThat(checkpointStore.load(DEVICE_ID, image.getCrc32()), is(equalTo(0)));
+    }
+
+    @Test
+    public void resendsCorruptChunk() throws Exception {
+        sense.corruptOnce.add(CHUNK_SIZE * 5);
+
+        final Result<SenseFirmwareTransfer.Progress> result = run(createTransfer().transfer());
+        assertThat(result.error, is(nullValue()));
+        assertThat(sense.finished, is(true));
+        assertTrue(Arrays.equals(sense.received, imageBytes));
+
+        boolean sawRewind = false;
+        for (final SenseFirmwareTransfer.Progress progress : result.values) {
+            if (progress.confirmedBytes == CHUNK_SIZE * 5) {
+                sawRewind = true;
+            }
+        }
+        assertThat(sawRewind, is(true));
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        sense.failAfterWrites = 10;
+
+        final Result<SenseFirmwareTransfer.Progress> failed = run(createTransfer().transfer());
+        assertThat(failed.error, is(notNullValue()));
+        assertThat(sense.finished, is(false));
+
+        final int checkpoint = checkpointStore.load(DEVICE_ID, image.getCrc32());
+        assertThat(checkpoint, is(equalTo(CHUNK_SIZE * WINDOW_SIZE * 2)));
+
+        sense.failAfterWrites = -1;
+        sense.writeCount = 0;
+        final Result<SenseFirmwareTransfer.Progress> resumed = run(createTransfer().transfer());
+        assertThat(resumed.error, is(nullValue()));
+        assertThat(sense.finished, is(true));
+        assertTrue(Arrays.equals(sense.received, imageBytes));
+        assertThat(resumed.values.get(0).resumedFrom, is(equalTo(checkpoint)));
+
+        final int expectedWrites = (int) Math.ceil((IMAGE_LENGTH - checkpoint) / (double) CHUNK_SIZE);
+        assertThat(sense.writeCount, is(equalTo(expectedWrites)));
+    }
+
+    @Test
+    public void restartsWhenSenseDiscardedImage() throws Exception {
+        checkpointStore.save(DEVICE_ID, image.getCrc32(), CHUNK_SIZE * WINDOW_SIZE);
+        sense.forgetOnBegin = true;
+
+        final Result<SenseFirmwareTransfer.Progress> result = run(createTransfer().transfer());
+        assertThat(result.error, is(nullValue()));
+        assertThat(result.values.get(0).resumedFrom, is(equalTo(0)));
+        assertTrue(Arrays.equals(sense.received, imageBytes));
+    }
+
+    @Test
+    public void givesUpWithoutProgress() throws Exception {
+        sense.alwaysCorrupt = CHUNK_SIZE * WINDOW_SIZE;
+
+        final Result<SenseFirmwareTransfer.Progress> result = run(createTransfer().transfer());
+        assertThat(result.error, is(instanceOf(SenseFirmwareTransferError.class)));
+        assertThat(((SenseFirmwareTransferError) result.error).offset,
+                   is(equalTo(CHUNK_SIZE * WINDOW_SIZE)));
+        assertThat(checkpointStore.load(DEVICE_ID, image.getCrc32()), is(equalTo(CHUNK_SIZE * WINDOW_SIZE)));
+    }
+
+    @Test
+    public void pipelinesWritesInWindow() throws Exception {
+        final List<PublishSubject<Void>> pending = new ArrayList<>();
+        final int[] confirms = {0};
+        final SenseFirmwareTransfer.Transport transport = new SenseFirmwareTransfer.Transport() {
+            @Override
+            public Observable<Integer> begin(int imageLength, long imageCrc32, int resumeOffset) {
+                return Observable.just(0);
+            }
+
+            @Override
+            public Observable<Void> writeChunk(int offset, @NonNull byte[] chunk, int length, long chunkCrc32) {
+                final PublishSubject<Void> write = PublishSubject.create();
+                return write.doOnSubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        pending.add(write);
+                    }
+                });
+            }
+
+            @Override
+            public Observable<Integer> confirm() {
+                confirms[0]++;
+                return Observable.never();
+            }
+
+            @Override
+            public Observable<Void> finish(long imageCrc32) {
+                return Observable.empty();
+            }
+        };
+        final SenseFirmwareTransfer transfer = new SenseFirmwareTransfer(DEVICE_ID, image, transport, checkpointStore,
+                                                                         clock, mock(LoggerFacade.class));
+        transfer.setChunkSize(CHUNK_SIZE);
+        transfer.setWindowSize(WINDOW_SIZE);
+
+        run(transfer.transfer());
+        assertThat(pending.size(), is(equalTo(WINDOW_SIZE)));
+        assertThat(confirms[0], is(equalTo(0)));
+
+        for (final PublishSubject<Void> write : pending) {
+            write.onCompleted();
+        }
+        assertThat(confirms[0], is(equalTo(1)));
+    }
+
+    @Test
+    public void checkpointsKeyedByDevice() throws Exception {
+        checkpointStore.save(DEVICE_ID, image.getCrc32(), CHUNK_SIZE * WINDOW_SIZE);
+        assertThat(checkpointStore.load("8AF51CA1", image.getCrc32()), is(equalTo(0)));
+        assertThat(checkpointStore.load(DEVICE_ID, image.getCrc32()), is(equalTo(CHUNK_SIZE * WINDOW_SIZE)));
+
+        checkpointStore.clear("8AF51CA1", image.getCrc32());
+        assertThat(checkpointStore.load(DEVICE_ID, image.getCrc32()), is(equalTo(CHUNK_SIZE * WINDOW_SIZE)));
+    }
+
+    @Test
+    public void imageReads() throws Exception {
+        assertThat(image.getLength(), is(equalTo(IMAGE_LENGTH)));
+        assertThat(image.getCrc32(), is(equalTo(FirmwareImage.crc32(imageBytes))));
+        final byte[] chunk = new byte[50];
+        assertThat(image.read(100, chunk), is(equalTo(50)));
+        assertTrue(Arrays.equals(chunk, Arrays.copyOfRange(imageBytes, 100, 150)));
+        assertThat(image.read(IMAGE_LENGTH - 10, new byte[CHUNK_SIZE]), is(equalTo(10)));
+    }
+
+    @Test(expected = IOException.class)
+    public void imageMissing() throws Exception {
+        FirmwareImage.open(new File(imageFile.getPath() + ".missing"));
+    }
+
+
+    static class Result<T> {
+        final List<T> values = new ArrayList<>();
+        Throwable error;
+    }
+
+    /**
+     * Behaves like the receiving end of a transfer on Sense: chunks are only
+     * accepted in order, and everything after a corrupt chunk is discarded.
+     */
+    class SimulatedSense implements SenseFirmwareTransfer.Transport {
+        final byte[] received;
+        final Set<Integer> corruptOnce = new HashSet<>();
+        int alwaysCorrupt = -1;
+        int failAfterWrites = -1;
+        boolean forgetOnBegin = false;
+
+        int verifiedOffset = 0;
+        int writeCount = 0;
+        int confirmCount = 0;
+        boolean finished = false;
+
+        SimulatedSense(int length) {
+            this.received = new byte[length];
+        }
+
+        @Override
+        public Observable<Integer> begin(int imageLength, long imageCrc32, int resumeOffset) {
+            if (forgetOnBegin) {
+                this.verifiedOffset = 0;
+            }
+            return Observable.just(Math.min(resumeOffset, verifiedOffset));
+        }
+
+        @Override
+        public Observable<Void> writeChunk(final int offset,
+                                           @NonNull byte[] chunkBuffer,
+                                           int length,
+                                           final long chunkCrc32) {
+            // The buffer is reused by the transfer, the write happens later.
+            final byte[] chunk = Arrays.copyOf(chunkBuffer, length);
+            return Observable.defer(new Func0<Observable<Void>>() {
+                @Override
+                public Observable<Void> call() {
+                    if (failAfterWrites >= 0 && writeCount >= failAfterWrites) {
+                        return Observable.error(new IOException("Connection lost"));
+                    }
+
+                    writeCount++;
+                    clock.advanceTimeBy(WRITE_DURATION_MS, TimeUnit.MILLISECONDS);
+
+                    final boolean corrupt = corruptOnce.remove(offset) || offset == alwaysCorrupt;
+                    if (offset == verifiedOffset && !corrupt &&
+                            FirmwareImage.crc32(chunk) == chunkCrc32) {
+                        System.arraycopy(chunk, 0, received, offset, chunk.length);
+                        verifiedOffset += chunk.length;
+                    }
+                    return Observable.empty();
+                }
+            });
+        }
+
+        @Override
+        public Observable<Integer> confirm() {
+            return Observable.defer(new Func0<Observable<Integer>>() {
+                @Override
+                public Observable<Integer> call() {
+                    confirmCount++;
+                    return Observable.just(verifiedOffset);
+                }
+            });
+        }
+
+        @Override
+        public Observable<Void> finish(long imageCrc32) {
+            return Observable.defer(new Func0<Observable<Void>>() {
+                @Override
+                public Observable<Void> call() {
+                    finished = (FirmwareImage.crc32(received) == image.getCrc32());
+                    return Observable.empty();
+                }
+            });
+        }
+    }
+}
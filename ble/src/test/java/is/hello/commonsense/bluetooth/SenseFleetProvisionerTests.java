@@ -0,0 +1,136 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import is.hello.buruberi.bluetooth.errors.OperationTimeoutException;
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.util.Operation;
+import is.hello.commonsense.bluetooth.model.SenseConnectToWiFiUpdate;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.wifi_connection_state;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.wifi_endpoint;
+import is.hello.commonsense.util.CommonSenseTestCase;
+import is.hello.commonsense.util.ConnectProgress;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.subjects.PublishSubject;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SenseFleetProvisionerTests extends CommonSenseTestCase {
+    private static final String ACCOUNT_TOKEN = "token";
+
+    private final BluetoothStack stack = CommonSensePeripheralTests.createMockBluetoothStack();
+    private final SenseFleetProvisioner provisioner =
+            new SenseFleetProvisioner(stack, "Hello", wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_OPEN,
+                                      null, ACCOUNT_TOKEN);
+
+    private static SensePeripheral createProvisionablePeripheral(Observable<ConnectProgress> connect) {
+        final SensePeripheral peripheral = mock(SensePeripheral.class);
+        doReturn(connect)
+                .when(peripheral)
+                .connect();
+        final SenseConnectToWiFiUpdate connected =
+                new SenseConnectToWiFiUpdate(wifi_connection_state.CONNECTED, null, null);
+        doReturn(Observable.just(connected))
+                .when(peripheral)
+                .connectToWiFiNetwork(anyString(), any(wifi_endpoint.sec_type.class), anyString());
+        doReturn(Observable.just(null))
+                .when(peripheral)
+                .linkAccount(ACCOUNT_TOKEN);
+        doReturn(Observable.just("PILL"))
+                .when(peripheral)
+                .pairPill(ACCOUNT_TOKEN);
+        doReturn(Observable.just(null))
+                .when(peripheral)
+                .pushData();
+        doReturn(Observable.just(peripheral))
+                .when(peripheral)
+                .disconnect();
+        return peripheral;
+    }
+
+    private List<SenseFleetProvisioner.Result> provision(SensePeripheral... peripherals) {
+        final List<SenseFleetProvisioner.Result> results = new ArrayList<>();
+        provisioner.provision(Arrays.asList(peripherals))
+                   .subscribe(new Action1<SenseFleetProvisioner.Result>() {
+                       @Override
+                       public void call(SenseFleetProvisioner.Result result) {
+                           results.add(result);
+                       }
+                   });
+        return results;
+    }
+
+    @Test
+    public void boundedConcurrency() throws Exception {
+        final PublishSubject<ConnectProgress> connect1 = PublishSubject.create();
+        final PublishSubject<ConnectProgress> connect2 = PublishSubject.create();
+        final PublishSubject<ConnectProgress> connect3 = PublishSubject.create();
+        final SensePeripheral peripheral1 = createProvisionablePeripheral(connect1);
+        final SensePeripheral peripheral2 = createProvisionablePeripheral(connect2);
+        final SensePeripheral peripheral3 = createProvisionablePeripheral(connect3);
+
+        provisioner.setMaximumConcurrentConnections(2);
+        final List<SenseFleetProvisioner.Result> results = provision(peripheral1, peripheral2, peripheral3);
+
+        verify(peripheral1).connect();
+        verify(peripheral2).connect();
+        verify(peripheral3, never()).connect();
+        assertThat(provisioner.getInFlightCount(), is(equalTo(2)));
+
+        connect2.onNext(ConnectProgress.CONNECTED);
+        connect2.onCompleted();
+
+        verify(peripheral3).connect();
+        assertThat(results, hasSize(1));
+        assertThat(results.get(0).isSuccess(), is(true));
+        assertThat(results.get(0).getPillId(), is(equalTo("PILL")));
+        assertThat(provisioner.getSucceededCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void retriesIndependently() throws Exception {
+        final SensePeripheral flaky = createProvisionablePeripheral(Observable.just(ConnectProgress.CONNECTED));
+        final SensePeripheral broken = createProvisionablePeripheral(Observable.just(ConnectProgress.CONNECTED));
+        final SensePeripheral healthy = createProvisionablePeripheral(Observable.just(ConnectProgress.CONNECTED));
+        doReturn(Observable.error(new OperationTimeoutException(Operation.COMMAND_RESPONSE)))
+                .doReturn(Observable.just(null))
+                .when(flaky)
+                .linkAccount(ACCOUNT_TOKEN);
+        doReturn(Observable.error(new OperationTimeoutException(Operation.COMMAND_RESPONSE)))
+                .when(broken)
+                .pairPill(ACCOUNT_TOKEN);
+
+        final List<SenseFleetProvisioner.Result> results = provision(flaky, broken, healthy);
+        assertThat(results, hasSize(3));
+
+        assertThat(results.get(0).isSuccess(), is(true));
+        assertThat(results.get(0).getAttempts(), is(equalTo(2)));
+
+        assertThat(results.get(1).isSuccess(), is(false));
+        assertThat(results.get(1).getAttempts(), is(equalTo(SenseFleetProvisioner.DEFAULT_MAXIMUM_ATTEMPTS)));
+        verify(broken, times(SenseFleetProvisioner.DEFAULT_MAXIMUM_ATTEMPTS)).connect();
+
+        assertThat(results.get(2).isSuccess(), is(true));
+        assertThat(results.get(2).getAttempts(), is(equalTo(1)));
+
+        assertThat(provisioner.getSucceededCount(), is(equalTo(2)));
+        assertThat(provisioner.getFailedCount(), is(equalTo(1)));
+        assertThat(provisioner.getRetryCount(), is(equalTo(1 + SenseFleetProvisioner.DEFAULT_MAXIMUM_ATTEMPTS - 1)));
+        assertThat(provisioner.getInFlightCount(), is(equalTo(0)));
+    }
+}
@@ -0,0 +1,92 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+import is.hello.commonsense.bluetooth.model.SenseHardwareVersion;
+import is.hello.commonsense.util.CommonSenseTestCase;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+public class SenseMetadataStoreTests extends CommonSenseTestCase {
+    private static final String TEST_DEVICE_ID = "CA154FFA";
+    private static final String TEST_ADDRESS = "ca:15:4f:fa:b7:0b";
+
+    private SenseMetadataStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        this.store = new SenseMetadataStore(getContext());
+        store.forgetAll();
+        WritePacer.forgetAll();
+    }
+
+    private static SensePeripheral createPeripheral(String address) {
+        final BluetoothStack stack = CommonSensePeripheralTests.createMockBluetoothStack();
+        final GattPeripheral device = CommonSensePeripheralTests.createMockPeripheral(stack);
+
+        final AdvertisingDataBuilder builder = new AdvertisingDataBuilder();
+        builder.add(AdvertisingData.TYPE_SERVICE_DATA,
+                    SenseIdentifiers.ADVERTISEMENT_SERVICE_16_BIT + TEST_DEVICE_ID);
+        doReturn(builder.build())
+                .when(device)
+                .getAdvertisingData();
+        doReturn(address)
+                .when(device)
+                .getAddress();
+        doReturn(GattPeripheral.BOND_BONDED)
+                .when(device)
+                .getBondStatus();
+
+        return new SensePeripheral(device);
+    }
+
+    @Test
+    public void saveAndRestore() throws Exception {
+        final SensePeripheral peripheral = createPeripheral(TEST_ADDRESS);
+        peripheral.commandVersion = SensePeripheral.COMMAND_VERSION_WEP_FIX;
+        WritePacer.forAddress(TEST_ADDRESS).restore(4, 20);
+        assertThat(store.save(peripheral), is(true));
+
+        final SenseMetadataStore.Metadata metadata = store.get(TEST_DEVICE_ID);
+        assertThat(metadata, is(notNullValue()));
+        assertThat(metadata.address, is(equalTo(TEST_ADDRESS)));
+        assertThat(metadata.commandVersion, is(equalTo(SensePeripheral.COMMAND_VERSION_WEP_FIX)));
+        assertThat(metadata.hardwareVersion, is(equalTo(SenseHardwareVersion.UNKNOWN)));
+        assertThat(metadata.firmwareVersion, is(nullValue()));
+        assertThat(metadata.bondStatus, is(equalTo(GattPeripheral.BOND_BONDED)));
+
+        WritePacer.forgetAll();
+
+        final SensePeripheral reconnected = createPeripheral(TEST_ADDRESS);
+        assertThat(store.restore(reconnected), is(true));
+        assertThat(reconnected.getCommandVersion(), is(equalTo(SensePeripheral.COMMAND_VERSION_WEP_FIX)));
+        assertThat(WritePacer.forAddress(TEST_ADDRESS).getWindowSize(), is(equalTo(4)));
+        assertThat(WritePacer.forAddress(TEST_ADDRESS).getGapMs(), is(equalTo(20L)));
+    }
+
+    @Test
+    public void restoreRequiresMatchingAddress() throws Exception {
+        store.save(createPeripheral(TEST_ADDRESS));
+
+        final SensePeripheral impostor = createPeripheral("c2:18:4e:fb:b3:0a");
+        assertThat(store.restore(impostor), is(false));
+        assertThat(impostor.getCommandVersion(), is(equalTo(SensePeripheral.COMMAND_VERSION_PVT)));
+    }
+
+    @Test
+    public void forget() throws Exception {
+        store.save(createPeripheral(TEST_ADDRESS));
+        store.forget(TEST_DEVICE_ID);
+        assertThat(store.get(TEST_DEVICE_ID), is(nullValue()));
+    }
+}
@@ -0,0 +1,139 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand.CommandType;
+import is.hello.commonsense.util.CommonSenseTestCase;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action1;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SensePushChannelTests extends CommonSenseTestCase {
+    private final SensePushChannel channel = new SensePushChannel(mock(LoggerFacade.class));
+
+    private static MorpheusCommand createMessage(CommandType type, int version) {
+        return MorpheusCommand.newBuilder()
+                              .setType(type)
+                              .setVersion(version)
+                              .build();
+    }
+
+    private static List<Integer> versions(List<MorpheusCommand> messages) {
+        final List<Integer> versions = new ArrayList<>();
+        for (final MorpheusCommand message : messages) {
+            versions.add(message.getVersion());
+        }
+        return versions;
+    }
+
+    /**
+     * Requests nothing until told to.
+     */
+    private static final class SlowSubscriber extends Subscriber<MorpheusCommand> {
+        final List<MorpheusCommand> received = new ArrayList<>();
+
+        @Override
+        public void onStart() {
+            request(0);
+        }
+
+        void requestMore(long n) {
+            request(n);
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+        }
+
+        @Override
+        public void onNext(MorpheusCommand message) {
+            received.add(message);
+        }
+    }
+
+    @Test
+    public void routesByType() throws Exception {
+        final List<MorpheusCommand> heartbeats = new ArrayList<>();
+        final Subscription subscription =
+                channel.observe(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT)
+                       .subscribe(new Action1<MorpheusCommand>() {
+                           @Override
+                           public void call(MorpheusCommand message) {
+                               heartbeats.add(message);
+                           }
+                       });
+
+        channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT, 1));
+        channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_PILL_PROX_DATA, 2));
+        channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT, 3));
+        assertThat(versions(heartbeats), contains(1, 3));
+
+        subscription.unsubscribe();
+        channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT, 4));
+        assertThat(heartbeats, hasSize(2));
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        channel.setOverflowPolicy(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT,
+                                  SensePushChannel.OverflowPolicy.DROP_OLDEST, 2);
+
+        final SlowSubscriber subscriber = new SlowSubscriber();
+        channel.observe(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT).subscribe(subscriber);
+        for (int i = 1; i <= 5; i++) {
+            channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT, i));
+        }
+        assertThat(subscriber.received, hasSize(0));
+        assertThat(channel.getDroppedCount(), is(equalTo(3L)));
+
+        subscriber.requestMore(1);
+        assertThat(versions(subscriber.received), contains(4));
+
+        subscriber.requestMore(10);
+        assertThat(versions(subscriber.received), contains(4, 5));
+
+        channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT, 6));
+        assertThat(versions(subscriber.received), contains(4, 5, 6));
+    }
+
+    @Test
+    public void latestOnly() throws Exception {
+        final SlowSubscriber subscriber = new SlowSubscriber();
+        channel.observe(CommandType.MORPHEUS_COMMAND_CONNECTION_STATE).subscribe(subscriber);
+        for (int i = 1; i <= 3; i++) {
+            channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_CONNECTION_STATE, i));
+        }
+
+        subscriber.requestMore(10);
+        assertThat(versions(subscriber.received), contains(3));
+    }
+
+    @Test
+    public void throwingSubscriberDoesNotPropagate() throws Exception {
+        channel.observe(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT)
+               .subscribe(new Action1<MorpheusCommand>() {
+                   @Override
+                   public void call(MorpheusCommand message) {
+                       throw new IllegalStateException("Expected");
+                   }
+               });
+
+        channel.onUnsolicitedData(createMessage(CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT, 1));
+    }
+}
@@ -0,0 +1,43 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import is.hello.commonsense.util.CommonSenseTestCase;
+import rx.schedulers.TestScheduler;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SenseResponseCacheTests extends CommonSenseTestCase {
+    private final TestScheduler scheduler = new TestScheduler();
+    private final SenseResponseCache cache = new SenseResponseCache(scheduler);
+
+    @Test
+    public void expiration() throws Exception {
+        cache.put(SenseResponseCache.KEY_PILL_ID, "1234", 1000);
+        assertThat(cache.<String>get(SenseResponseCache.KEY_PILL_ID), is(equalTo("1234")));
+
+        scheduler.advanceTimeBy(999, TimeUnit.MILLISECONDS);
+        assertThat(cache.<String>get(SenseResponseCache.KEY_PILL_ID), is(equalTo("1234")));
+
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        assertThat(cache.<String>get(SenseResponseCache.KEY_PILL_ID), is(nullValue()));
+    }
+
+    @Test
+    public void invalidation() throws Exception {
+        cache.put(SenseResponseCache.KEY_PILL_ID, "1234", 1000);
+        cache.put(SenseResponseCache.KEY_TOP_VERSION, "abcd", 1000);
+
+        cache.invalidate(SenseResponseCache.KEY_PILL_ID);
+        assertThat(cache.<String>get(SenseResponseCache.KEY_PILL_ID), is(nullValue()));
+        assertThat(cache.<String>get(SenseResponseCache.KEY_TOP_VERSION), is(equalTo("abcd")));
+
+        cache.invalidateAll();
+        assertThat(cache.<String>get(SenseResponseCache.KEY_TOP_VERSION), is(nullValue()));
+    }
+}
@@ -0,0 +1,277 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.commonsense.bluetooth.errors.SensePeripheralError;
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos;
+import is.hello.commonsense.util.CommonSenseTestCase;
+import is.hello.commonsense.util.ConnectProgress;
+import is.hello.commonsense.util.Sync;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SenseSessionPoolTests extends CommonSenseTestCase {
+    private static final long IDLE_TIMEOUT_MS = 1000;
+
+    private final TestScheduler scheduler = new TestScheduler();
+    private final SenseSessionPool pool;
+
+    public SenseSessionPoolTests() {
+        final BluetoothStack stack = CommonSensePeripheralTests.createMockBluetoothStack();
+        doReturn(scheduler)
+                .when(stack)
+                .getScheduler();
+        this.pool = new SenseSessionPool(stack, 2, IDLE_TIMEOUT_MS);
+    }
+
+    private static SensePeripheral createConnectablePeripheral(String deviceId) {
+        final SensePeripheral peripheral = mock(SensePeripheral.class);
+        doReturn(deviceId)
+                .when(peripheral)
+                .getDeviceId();
+        doReturn(Observable.just(ConnectProgress.CONNECTED))
+                .when(peripheral)
+                .connect();
+        doReturn(Observable.just(peripheral))
+                .when(peripheral)
+                .disconnect();
+        doReturn(true)
+                .when(peripheral)
+                .isConnected();
+        doReturn(GattPeripheral.BOND_BONDED)
+                .when(peripheral)
+                .getBondStatus();
+        doReturn(Observable.just(20L))
+                .when(peripheral)
+                .ping();
+        return peripheral;
+    }
+
+    @Test
+    public void reusesHealthySession() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        assertThat(Sync.last(pool.acquire(peripheral)), is(sameInstance(peripheral)));
+        pool.release(peripheral);
+        assertThat(Sync.last(pool.acquire(peripheral)), is(sameInstance(peripheral)));
+
+        verify(peripheral, times(1)).connect();
+        assertThat(pool.getHitCount(), is(equalTo(1)));
+        assertThat(pool.getMissCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void reconnectsUnhealthySession() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        Sync.last(pool.acquire(peripheral));
+        pool.release(peripheral);
+
+        doReturn(GattPeripheral.BOND_NONE)
+                .when(peripheral)
+                .getBondStatus();
+        Sync.last(pool.acquire(peripheral));
+
+        verify(peripheral, times(2)).connect();
+        assertThat(pool.getHitCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void reconnectsSessionThatFailsProbe() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        Sync.last(pool.acquire(peripheral));
+        pool.release(peripheral);
+
+        doReturn(Observable.error(new SensePeripheralError(SenseCommandProtos.ErrorType.INTERNAL_OPERATION_FAILED, null)))
+                .when(peripheral)
+                .ping();
+        assertThat(Sync.last(pool.acquire(peripheral)), is(sameInstance(peripheral)));
+
+        verify(peripheral).disconnect();
+        verify(peripheral, times(2)).connect();
+        assertThat(pool.getHitCount(), is(equalTo(0)));
+        assertThat(pool.getMissCount(), is(equalTo(2)));
+        assertThat(pool.getSessionCount(), is(equalTo(1)));
+    }
+
+    @Test
+    public void reconnectsSessionThatDoesNotAnswerProbe() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        Sync.last(pool.acquire(peripheral));
+        pool.release(peripheral);
+
+        doReturn(Observable.never())
+                .when(peripheral)
+                .ping();
+
+        final List<SensePeripheral> acquired = new ArrayList<>();
+        pool.acquire(peripheral).subscribe(new Action1<SensePeripheral>() {
+            @Override
+            public void call(SensePeripheral session) {
+                acquired.add(session);
+            }
+        });
+
+        scheduler.advanceTimeBy(SenseSessionPool.PROBE_TIMEOUT_MS - 1, TimeUnit.MILLISECONDS);
+        verify(peripheral, times(1)).connect();
+        assertThat(acquired.isEmpty(), is(true));
+
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        verify(peripheral).disconnect();
+        verify(peripheral, times(2)).connect();
+        assertThat(acquired, contains(peripheral));
+    }
+
+    @Test
+    public void unsubscribeDuringProbeReleasesSession() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        Sync.last(pool.acquire(peripheral));
+        pool.release(peripheral);
+
+        doReturn(Observable.never())
+                .when(peripheral)
+                .ping();
+        pool.acquire(peripheral).subscribe().unsubscribe();
+
+        scheduler.advanceTimeBy(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        verify(peripheral).disconnect();
+        verify(peripheral, times(1)).connect();
+        assertThat(pool.getSessionCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void idleTimeout() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        Sync.last(pool.acquire(peripheral));
+        pool.release(peripheral);
+
+        scheduler.advanceTimeBy(IDLE_TIMEOUT_MS - 1, TimeUnit.MILLISECONDS);
+        verify(peripheral, never()).disconnect();
+
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        verify(peripheral).disconnect();
+        assertThat(pool.getSessionCount(), is(equalTo(0)));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedIdleSession() throws Exception {
+        final SensePeripheral first = createConnectablePeripheral("00000001");
+        final SensePeripheral second = createConnectablePeripheral("00000002");
+        final SensePeripheral third = createConnectablePeripheral("00000003");
+
+        Sync.last(pool.acquire(first));
+        Sync.last(pool.acquire(second));
+        pool.release(second);
+        pool.release(first);
+
+        Sync.last(pool.acquire(third));
+
+        verify(second).disconnect();
+        verify(first, never()).disconnect();
+        assertThat(pool.getSessionCount(), is(equalTo(2)));
+    }
+
+    @Test
+    public void reconnectsAfterUnhealthySessionDisconnects() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        Sync.last(pool.acquire(peripheral));
+        pool.release(peripheral);
+
+        final PublishSubject<SensePeripheral> disconnect = PublishSubject.create();
+        doReturn(disconnect)
+                .when(peripheral)
+                .disconnect();
+        doReturn(GattPeripheral.BOND_NONE)
+                .when(peripheral)
+                .getBondStatus();
+
+        final List<SensePeripheral> acquired = new ArrayList<>();
+        pool.acquire(peripheral).subscribe(new Action1<SensePeripheral>() {
+            @Override
+            public void call(SensePeripheral session) {
+                acquired.add(session);
+            }
+        });
+        verify(peripheral, times(1)).connect();
+
+        disconnect.onNext(peripheral);
+        disconnect.onCompleted();
+        verify(peripheral, times(2)).connect();
+        assertThat(acquired, contains(peripheral));
+    }
+
+    @Test
+    public void coalescesConcurrentConnects() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+        final PublishSubject<ConnectProgress> connect = PublishSubject.create();
+        doReturn(connect)
+                .when(peripheral)
+                .connect();
+
+        final List<SensePeripheral> acquired = new ArrayList<>();
+        final Action1<SensePeripheral> onNext = new Action1<SensePeripheral>() {
+            @Override
+            public void call(SensePeripheral session) {
+                acquired.add(session);
+            }
+        };
+        pool.acquire(peripheral).subscribe(onNext);
+        pool.acquire(peripheral).subscribe(onNext);
+
+        connect.onNext(ConnectProgress.CONNECTED);
+        connect.onCompleted();
+
+        verify(peripheral, times(1)).connect();
+        verify(peripheral, never()).disconnect();
+        assertThat(acquired, contains(peripheral, peripheral));
+
+        // Both callers hold the session, it only idles out once both release it.
+        pool.release(peripheral);
+        scheduler.advanceTimeBy(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        verify(peripheral, never()).disconnect();
+
+        pool.release(peripheral);
+        scheduler.advanceTimeBy(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        verify(peripheral).disconnect();
+    }
+
+    @Test
+    public void extraReleaseIgnored() throws Exception {
+        final SensePeripheral peripheral = createConnectablePeripheral("CA154FFA");
+
+        Sync.last(pool.acquire(peripheral));
+        pool.release(peripheral);
+        pool.release(peripheral);
+
+        assertThat(Sync.last(pool.acquire(peripheral)), is(sameInstance(peripheral)));
+        pool.release(peripheral);
+
+        scheduler.advanceTimeBy(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        verify(peripheral).disconnect();
+        assertThat(pool.getSessionCount(), is(equalTo(0)));
+    }
+}
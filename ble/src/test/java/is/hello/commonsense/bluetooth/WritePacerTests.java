@@ -0,0 +1,89 @@
+package is.hello.commonsense.bluetooth;
+
+import org.junit.Test;
+
+import is.hello.commonsense.util.CommonSenseTestCase;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class WritePacerTests extends CommonSenseTestCase {
+    @Test
+    public void additiveIncrease() throws Exception {
+        final WritePacer pacer = new WritePacer(4);
+        assertThat(pacer.getWindowSize(), is(equalTo(1)));
+        assertThat(pacer.getGapMs(), is(equalTo(0L)));
+
+        pacer.onPacketWritten(10);
+        assertThat(pacer.getWindowSize(), is(equalTo(2)));
+
+        pacer.onPacketWritten(10);
+        assertThat(pacer.getWindowSize(), is(equalTo(2)));
+        pacer.onPacketWritten(10);
+        assertThat(pacer.getWindowSize(), is(equalTo(3)));
+
+        for (int i = 0; i < 20; i++) {
+            pacer.onPacketWritten(10);
+        }
+        assertThat(pacer.getWindowSize(), is(equalTo(4)));
+    }
+
+    @Test
+    public void multiplicativeDecreaseOnLatency() throws Exception {
+        final WritePacer pacer = new WritePacer(8);
+        for (int i = 0; i < 40; i++) {
+            pacer.onPacketWritten(10);
+        }
+        assertThat(pacer.getWindowSize(), is(equalTo(8)));
+
+        pacer.onPacketWritten(WritePacer.MINIMUM_CONGESTED_LATENCY_MS);
+        assertThat(pacer.getWindowSize(), is(equalTo(8)));
+
+        pacer.onPacketWritten(WritePacer.MINIMUM_CONGESTED_LATENCY_MS + 1);
+        assertThat(pacer.getWindowSize(), is(equalTo(4)));
+        assertThat(pacer.getGapMs(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void backOffOnFailure() throws Exception {
+        final WritePacer pacer = new WritePacer(8);
+        for (int i = 0; i < 6; i++) {
+            pacer.onPacketWritten(10);
+        }
+        assertThat(pacer.getWindowSize(), is(equalTo(4)));
+
+        pacer.onPacketFailed();
+        assertThat(pacer.getWindowSize(), is(equalTo(2)));
+        assertThat(pacer.getGapMs(), is(equalTo(WritePacer.MINIMUM_BACK_OFF_GAP_MS)));
+
+        pacer.onPacketFailed();
+        assertThat(pacer.getWindowSize(), is(equalTo(1)));
+        assertThat(pacer.getGapMs(), is(equalTo(WritePacer.MINIMUM_BACK_OFF_GAP_MS * 2)));
+
+        for (int i = 0; i < 10; i++) {
+            pacer.onPacketFailed();
+        }
+        assertThat(pacer.getWindowSize(), is(equalTo(1)));
+        assertThat(pacer.getGapMs(), is(equalTo(WritePacer.MAXIMUM_GAP_MS)));
+
+        // The gap closes before the window opens back up.
+        pacer.onPacketWritten(10);
+        assertThat(pacer.getWindowSize(), is(equalTo(1)));
+        assertThat(pacer.getGapMs(), is(equalTo(WritePacer.MAXIMUM_GAP_MS - WritePacer.GAP_DECREASE_MS)));
+    }
+
+    @Test
+    public void rememberedPerAddress() throws Exception {
+        WritePacer.forgetAll();
+
+        final WritePacer pacer = WritePacer.forAddress("ca:15:4f:fa:b7:0b");
+        assertThat(WritePacer.forAddress("ca:15:4f:fa:b7:0b"), is(sameInstance(pacer)));
+        assertThat(WritePacer.forAddress("c2:18:4e:fb:b3:0a"), is(not(sameInstance(pacer))));
+
+        WritePacer.forgetAll();
+        assertThat(WritePacer.forAddress("ca:15:4f:fa:b7:0b"), is(not(sameInstance(pacer))));
+    }
+}
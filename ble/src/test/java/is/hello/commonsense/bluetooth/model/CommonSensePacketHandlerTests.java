@@ -1,20 +1,28 @@
 package is.hello.commonsense.bluetooth.model;
 
+import com.google.protobuf.ByteString;
+
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import is.hello.buruberi.bluetooth.stacks.GattCharacteristic;
 import is.hello.buruberi.bluetooth.stacks.util.Bytes;
 import is.hello.commonsense.bluetooth.SenseIdentifiers;
+import is.hello.commonsense.bluetooth.errors.SenseProtobufError;
+import is.hello.commonsense.bluetooth.model.ProtobufPacketListener.HeaderFormat;
 import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos;
 import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.MorpheusCommand;
 import is.hello.commonsense.util.CommonSenseTestCase;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class CommonSensePacketHandlerTests extends CommonSenseTestCase {
@@ -54,6 +62,34 @@ public class CommonSensePacketHandlerTests extends CommonSenseTestCase {
         }
     }
 
+    @Test
+    public void outgoingCursorReusesPackets() throws Exception {
+        final List<byte[]> expectedPackets = packetHandler.createOutgoingPackets(LONG_SEQUENCE);
+        final OutgoingPacketCursor cursor = packetHandler.prepareOutgoingPackets(LONG_SEQUENCE,
+                                                                                 GattCharacteristic.PACKET_LENGTH,
+                                                                                 HeaderFormat.LEGACY);
+        assertEquals(expectedPackets.size(), cursor.getPacketCount());
+
+        byte[] firstPacket = null;
+        for (final byte[] expectedPacket : expectedPackets) {
+            assertTrue(cursor.hasNext());
+            final byte[] packet = cursor.next();
+            if (firstPacket == null) {
+                firstPacket = packet;
+            } else if (packet.length == GattCharacteristic.PACKET_LENGTH) {
+                assertSame(firstPacket, packet);
+            }
+            assertArrayEquals(expectedPacket, packet);
+        }
+        assertFalse(cursor.hasNext());
+
+        assertSame(cursor, packetHandler.prepareOutgoingPackets(new byte[]{0x1, 0x2},
+                                                                    GattCharacteristic.PACKET_LENGTH,
+                                                                    HeaderFormat.LEGACY));
+        assertEquals(1, cursor.getPacketCount());
+        assertArrayEquals(new byte[]{0, 1, 0x1, 0x2}, cursor.next());
+    }
+
     @Test
     public void shouldProcessCharacteristic() throws Exception {
         assertTrue(packetHandler.parser.canProcessPacket(SenseIdentifiers.CHARACTERISTIC_PROTOBUF_COMMAND_RESPONSE));
@@ -120,6 +156,460 @@ public class CommonSensePacketHandlerTests extends CommonSenseTestCase {
     }
 
 
+    @Test
+    public void processConsecutiveResponses() throws Exception {
+        final TestResponseListener responseListener = new TestResponseListener();
+        for (int i = 0; i < 3; i++) {
+            final String ssid = "Mostly Radiation " + LONG_SEQUENCE.length * i;
+            final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                    .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT)
+                    .setWifiSSID(ssid)
+                    .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE, 0, LONG_SEQUENCE.length / (3 - i)))
+                    .setVersion(0)
+                    .build();
+
+            responseListener.reset();
+            packetHandler.setResponseListener(responseListener);
+            for (final byte[] packet : packetHandler.createOutgoingPackets(morpheusCommand.toByteArray())) {
+                packetHandler.parser.processPacket(packet);
+            }
+
+            assertNull(responseListener.error);
+            assertNotNull(responseListener.data);
+            assertEquals(ssid, responseListener.data.getWifiSSID());
+        }
+    }
+
+    @Test
+    public void processInvalidProtobufThenValid() throws Exception {
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        // Field 1 with an invalid wire type, followed by bytes that would
+        // corrupt the next response if they were left in the decoder.
+        packetHandler.parser.processPacket(new byte[]{0, 1, 0x0F, 0x1A, 0x01, 0x41});
+
+        assertNull(responseListener.data);
+        assertNotNull(responseListener.error);
+
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_PAIR_PILL)
+                .setVersion(0)
+                .build();
+        responseListener.reset();
+        packetHandler.setResponseListener(responseListener);
+        for (final byte[] packet : packetHandler.createOutgoingPackets(morpheusCommand.toByteArray())) {
+            packetHandler.parser.processPacket(packet);
+        }
+
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals(MorpheusCommand.CommandType.MORPHEUS_COMMAND_PAIR_PILL, responseListener.data.getType());
+        assertFalse(responseListener.data.hasDeviceId());
+    }
+
+
+    @Test
+    public void processLargePackets() throws Exception {
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final byte[] payload = morpheusCommand.toByteArray();
+
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(payload, 64, HeaderFormat.LEGACY);
+        assertEquals(OutgoingPacketCursor.getPacketCount(payload.length, 64, HeaderFormat.LEGACY), packets.size());
+        assertTrue(packets.size() < packetHandler.createOutgoingPackets(payload).size());
+        for (final byte[] packet : packets) {
+            assertTrue(packet.length <= 64);
+        }
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+        for (final byte[] packet : packets) {
+            packetHandler.parser.processPacket(packet);
+        }
+
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals("Mostly Radiation", responseListener.data.getWifiSSID());
+        assertEquals(ByteString.copyFrom(LONG_SEQUENCE), responseListener.data.getWifiPasswordBytes());
+    }
+
+    @Test
+    public void processExtendedHeaderPackets() throws Exception {
+        final byte[] password = new byte[LONG_SEQUENCE.length * 50];
+        for (int i = 0; i < password.length; i++) {
+            password[i] = LONG_SEQUENCE[i % LONG_SEQUENCE.length];
+        }
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(password))
+                .setVersion(0)
+                .build();
+        final byte[] payload = morpheusCommand.toByteArray();
+
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(payload,
+                                                                         GattCharacteristic.PACKET_LENGTH,
+                                                                         HeaderFormat.EXTENDED);
+        assertTrue(packets.size() > ProtobufPacketListener.LEGACY_MAXIMUM_PACKET_COUNT);
+        assertEquals(OutgoingPacketCursor.getPacketCount(payload.length,
+                                                         GattCharacteristic.PACKET_LENGTH,
+                                                         HeaderFormat.EXTENDED),
+                     packets.size());
+        for (final byte[] packet : packets) {
+            assertEquals(ProtobufPacketListener.EXTENDED_HEADER_VERSION_1, packet[0]);
+            assertTrue(packet.length <= GattCharacteristic.PACKET_LENGTH);
+        }
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+        for (final byte[] packet : packets) {
+            packetHandler.parser.processPacket(packet);
+        }
+
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals("Mostly Radiation", responseListener.data.getWifiSSID());
+        assertEquals(ByteString.copyFrom(password), responseListener.data.getWifiPasswordBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void legacyHeaderPacketLimit() throws Exception {
+        final byte[] payload = new byte[GattCharacteristic.PACKET_LENGTH * ProtobufPacketListener.LEGACY_MAXIMUM_PACKET_COUNT];
+        packetHandler.prepareOutgoingPackets(payload, GattCharacteristic.PACKET_LENGTH, HeaderFormat.LEGACY);
+    }
+
+    @Test
+    public void processUnknownHeaderVersion() throws Exception {
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        packetHandler.parser.processPacket(new byte[]{(byte) 0x82, 0, 1, 0x08, 0x01});
+
+        assertNull(responseListener.data);
+        assertNotNull(responseListener.error);
+        assertEquals(SenseProtobufError.Reason.INVALID_PACKET_HEADER,
+                     ((SenseProtobufError) responseListener.error).reason);
+    }
+
+    @Test
+    public void processPacketsReorderedWithinWindow() throws Exception {
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(morpheusCommand.toByteArray());
+        assertTrue(packets.size() >= 5);
+
+        packetHandler.setReorderWindow(2);
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        packetHandler.parser.processPacket(packets.get(0));
+        packetHandler.parser.processPacket(packets.get(2));
+        packetHandler.parser.processPacket(packets.get(1));
+        packetHandler.parser.processPacket(packets.get(1));
+        packetHandler.parser.processPacket(packets.get(4));
+        packetHandler.parser.processPacket(packets.get(4));
+        packetHandler.parser.processPacket(packets.get(3));
+        for (int i = 5; i < packets.size(); i++) {
+            packetHandler.parser.processPacket(packets.get(i));
+        }
+
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals("Mostly Radiation", responseListener.data.getWifiSSID());
+        assertEquals(ByteString.copyFrom(LONG_SEQUENCE), responseListener.data.getWifiPasswordBytes());
+    }
+
+    @Test
+    public void processPacketsReorderedBeyondWindow() throws Exception {
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(morpheusCommand.toByteArray());
+
+        packetHandler.setReorderWindow(2);
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        packetHandler.parser.processPacket(packets.get(0));
+        packetHandler.parser.processPacket(packets.get(2));
+        packetHandler.parser.processPacket(packets.get(3));
+        assertNull(responseListener.error);
+
+        packetHandler.parser.processPacket(packets.get(4));
+
+        assertNull(responseListener.data);
+        assertNotNull(responseListener.error);
+        assertEquals(SenseProtobufError.Reason.DATA_LOST_OR_OUT_OF_ORDER,
+                     ((SenseProtobufError) responseListener.error).reason);
+    }
+    @Test
+    public void processPacketsBeforeHeaderWithinWindow() throws Exception {
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(morpheusCommand.toByteArray());
+
+        packetHandler.setReorderWindow(2);
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        packetHandler.parser.processPacket(packets.get(1));
+        packetHandler.parser.processPacket(packets.get(0));
+        for (int i = 2; i < packets.size(); i++) {
+            packetHandler.parser.processPacket(packets.get(i));
+        }
+
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals(ByteString.copyFrom(LONG_SEQUENCE), responseListener.data.getWifiPasswordBytes());
+    }
+
+    @Test
+    public void processPacketsBeforeHeaderBeyondWindow() throws Exception {
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(morpheusCommand.toByteArray());
+
+        packetHandler.setReorderWindow(2);
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        packetHandler.parser.processPacket(packets.get(1));
+        packetHandler.parser.processPacket(packets.get(2));
+        assertNull(responseListener.error);
+
+        packetHandler.parser.processPacket(packets.get(3));
+
+        assertNull(responseListener.data);
+        assertNotNull(responseListener.error);
+        assertEquals(SenseProtobufError.Reason.DATA_LOST_OR_OUT_OF_ORDER,
+                     ((SenseProtobufError) responseListener.error).reason);
+    }
+
+    @Test
+    public void dropDuplicateHeaderPacket() throws Exception {
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(morpheusCommand.toByteArray());
+
+        packetHandler.setReorderWindow(2);
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        packetHandler.parser.processPacket(packets.get(0));
+        packetHandler.parser.processPacket(packets.get(1));
+        packetHandler.parser.processPacket(packets.get(0));
+        packetHandler.parser.processPacket(packets.get(3));
+        packetHandler.parser.processPacket(packets.get(0));
+        for (int i = 2; i < packets.size(); i++) {
+            packetHandler.parser.processPacket(packets.get(i));
+        }
+
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals(ByteString.copyFrom(LONG_SEQUENCE), responseListener.data.getWifiPasswordBytes());
+    }
+
+    @Test
+    public void processNewResponseAfterLostTail() throws Exception {
+        final MorpheusCommand truncated = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> truncatedPackets = packetHandler.createOutgoingPackets(truncated.toByteArray());
+        final MorpheusCommand next = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Hello")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> nextPackets = packetHandler.createOutgoingPackets(next.toByteArray());
+
+        packetHandler.setReorderWindow(2);
+
+        final List<MorpheusCommand> unsolicited = new ArrayList<>();
+        packetHandler.setUnsolicitedListener(new ProtobufPacketListener.UnsolicitedListener() {
+            @Override
+            public void onUnsolicitedData(MorpheusCommand message) {
+                unsolicited.add(message);
+            }
+        });
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+
+        // The tail of the first response never arrives.
+        packetHandler.parser.processPacket(truncatedPackets.get(0));
+        packetHandler.parser.processPacket(truncatedPackets.get(1));
+        packetHandler.parser.processPacket(truncatedPackets.get(3));
+        for (final byte[] packet : nextPackets) {
+            packetHandler.parser.processPacket(packet);
+        }
+
+        assertNull(responseListener.data);
+        assertNotNull(responseListener.error);
+        assertEquals(SenseProtobufError.Reason.DATA_LOST_OR_OUT_OF_ORDER,
+                     ((SenseProtobufError) responseListener.error).reason);
+        assertEquals(1, unsolicited.size());
+        assertEquals("Hello", unsolicited.get(0).getWifiSSID());
+        assertEquals(ByteString.copyFrom(LONG_SEQUENCE), unsolicited.get(0).getWifiPasswordBytes());
+    }
+
+    @Test
+    public void dropLatePacketsBetweenResponses() throws Exception {
+        final MorpheusCommand morpheusCommand = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_SET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> packets = packetHandler.createOutgoingPackets(morpheusCommand.toByteArray());
+
+        packetHandler.setReorderWindow(2);
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+        for (final byte[] packet : packets) {
+            packetHandler.parser.processPacket(packet);
+        }
+        assertNotNull(responseListener.data);
+
+        // Late retransmission of a packet from the response that already finished.
+        responseListener.reset();
+        packetHandler.setResponseListener(responseListener);
+        packetHandler.parser.processPacket(packets.get(1));
+        assertNull(responseListener.error);
+
+        for (final byte[] packet : packets) {
+            packetHandler.parser.processPacket(packet);
+        }
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals(ByteString.copyFrom(LONG_SEQUENCE), responseListener.data.getWifiPasswordBytes());
+    }
+
+    @Test
+    public void dropUnsolicitedPackets() throws Exception {
+        final MorpheusCommand unsolicited = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_CONNECTION_STATE)
+                .setWifiSSID("Mostly Radiation")
+                .setWifiPasswordBytes(ByteString.copyFrom(LONG_SEQUENCE))
+                .setVersion(0)
+                .build();
+        final List<byte[]> unsolicitedPackets = packetHandler.createOutgoingPackets(unsolicited.toByteArray());
+        final MorpheusCommand response = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT)
+                .setWifiSSID("Mostly Radiation")
+                .setVersion(0)
+                .build();
+        final List<byte[]> responsePackets = packetHandler.createOutgoingPackets(response.toByteArray());
+
+        final TestResponseListener responseListener = new TestResponseListener();
+
+        // Unsolicited response cut short by the start of the solicited response.
+        packetHandler.parser.processPacket(unsolicitedPackets.get(0));
+        packetHandler.parser.processPacket(unsolicitedPackets.get(1));
+        packetHandler.setResponseListener(responseListener);
+        for (final byte[] packet : responsePackets) {
+            packetHandler.parser.processPacket(packet);
+        }
+
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT,
+                     responseListener.data.getType());
+
+        // Unsolicited response finishing after the listener is installed.
+        responseListener.reset();
+        packetHandler.setResponseListener(null);
+        packetHandler.parser.processPacket(unsolicitedPackets.get(0));
+        packetHandler.setResponseListener(responseListener);
+        for (int i = 1; i < unsolicitedPackets.size(); i++) {
+            packetHandler.parser.processPacket(unsolicitedPackets.get(i));
+        }
+        assertNull(responseListener.error);
+        assertNull(responseListener.data);
+
+        for (final byte[] packet : responsePackets) {
+            packetHandler.parser.processPacket(packet);
+        }
+        assertNull(responseListener.error);
+        assertNotNull(responseListener.data);
+        assertEquals(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT,
+                     responseListener.data.getType());
+    }
+
+    @Test
+    public void routesUnsolicitedMessages() throws Exception {
+        final List<MorpheusCommand> unsolicited = new ArrayList<>();
+        packetHandler.setUnsolicitedListener(new ProtobufPacketListener.UnsolicitedListener() {
+            @Override
+            public void onUnsolicitedData(MorpheusCommand message) {
+                unsolicited.add(message);
+            }
+        });
+
+        final MorpheusCommand heartbeat = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT)
+                .setVersion(0)
+                .build();
+        final MorpheusCommand response = MorpheusCommand.newBuilder()
+                .setType(MorpheusCommand.CommandType.MORPHEUS_COMMAND_GET_WIFI_ENDPOINT)
+                .setVersion(0)
+                .build();
+
+        for (final byte[] packet : packetHandler.createOutgoingPackets(response.toByteArray())) {
+            packetHandler.parser.processPacket(packet);
+        }
+        assertEquals(1, unsolicited.size());
+
+        final TestResponseListener responseListener = new TestResponseListener();
+        packetHandler.setResponseListener(responseListener);
+        for (final byte[] packet : packetHandler.createOutgoingPackets(heartbeat.toByteArray())) {
+            packetHandler.parser.processPacket(packet);
+        }
+        assertNull(responseListener.data);
+        assertEquals(2, unsolicited.size());
+        assertEquals(MorpheusCommand.CommandType.MORPHEUS_COMMAND_PILL_HEARTBEAT,
+                     unsolicited.get(1).getType());
+
+        for (final byte[] packet : packetHandler.createOutgoingPackets(response.toByteArray())) {
+            packetHandler.parser.processPacket(packet);
+        }
+        assertNotNull(responseListener.data);
+        assertEquals(2, unsolicited.size());
+    }
+
+
     static class TestResponseListener implements ProtobufPacketListener.ResponseListener {
         MorpheusCommand data;
         Throwable error;
@@ -0,0 +1,75 @@
+package is.hello.commonsense.bluetooth.model;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.pill_data;
+import is.hello.commonsense.util.CommonSenseTestCase;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PillTelemetryTests extends CommonSenseTestCase {
+    private static pill_data createRecord(String pillId, int batteryLevel, long timestamp, int rssi) {
+        return pill_data.newBuilder()
+                        .setDeviceId(pillId)
+                        .setBatteryLevel(batteryLevel)
+                        .setUptime(600)
+                        .setMotionDataEntrypted(ByteString.copyFrom(new byte[] {1, 2, 3}))
+                        .setFirmwareVersion(2)
+                        .setTimestamp(timestamp)
+                        .setRssi(rssi)
+                        .build();
+    }
+
+    @Test
+    public void append() throws Exception {
+        final PillTelemetry telemetry = new PillTelemetry.Builder()
+                .append(createRecord("PILL1", 90, 1000L, -60))
+                .append(createRecord("PILL1", 89, 2000L, -70))
+                .append(createRecord("PILL2", 50, 3000L, -80))
+                .build();
+        assertThat(telemetry.size, is(equalTo(3)));
+        assertThat(telemetry.batteryLevels, is(equalTo(new int[] {90, 89, 50})));
+        assertThat(telemetry.timestamps, is(equalTo(new long[] {1000L, 2000L, 3000L})));
+        assertThat(telemetry.rssis, is(equalTo(new short[] {-60, -70, -80})));
+        assertThat(telemetry.uptimes, is(equalTo(new int[] {600, 600, 600})));
+        assertThat(telemetry.firmwareVersions, is(equalTo(new int[] {2, 2, 2})));
+        assertThat(telemetry.pillIds, is(equalTo(new String[] {"PILL1", "PILL1", "PILL2"})));
+        assertThat(telemetry.pillIds[1], is(sameInstance(telemetry.pillIds[0])));
+    }
+
+    @Test
+    public void appendMissingFields() throws Exception {
+        final PillTelemetry telemetry = new PillTelemetry.Builder()
+                .append(pill_data.newBuilder()
+                                 .setDeviceId("PILL1")
+                                 .setTimestamp(1000L)
+                                 .build())
+                .build();
+        assertThat(telemetry.size, is(equalTo(1)));
+        assertThat(telemetry.batteryLevels[0], is(equalTo(0)));
+        assertThat(telemetry.rssis[0], is(equalTo((short) 0)));
+        assertThat(telemetry.timestamps[0], is(equalTo(1000L)));
+    }
+
+    @Test
+    public void builderGrowsAndClears() throws Exception {
+        final PillTelemetry.Builder builder = new PillTelemetry.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.append(createRecord("PILL1", i, i, -i));
+        }
+        final PillTelemetry telemetry = builder.build();
+        assertThat(telemetry.size, is(equalTo(100)));
+        assertThat(telemetry.batteryLevels.length, is(equalTo(100)));
+        assertThat(telemetry.batteryLevels[99], is(equalTo(99)));
+        assertThat(telemetry.rssis[99], is(equalTo((short) -99)));
+
+        builder.clear();
+        assertThat(builder.size(), is(equalTo(0)));
+        assertThat(builder.build().size, is(equalTo(0)));
+    }
+}
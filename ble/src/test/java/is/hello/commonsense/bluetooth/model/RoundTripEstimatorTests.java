@@ -0,0 +1,74 @@
+package is.hello.commonsense.bluetooth.model;
+
+import org.junit.Test;
+
+import is.hello.commonsense.util.CommonSenseTestCase;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RoundTripEstimatorTests extends CommonSenseTestCase {
+    @Test
+    public void empty() throws Exception {
+        final RoundTripEstimator estimator = new RoundTripEstimator();
+        assertThat(estimator.isSettled(), is(false));
+        assertThat(estimator.getRoundTripMs(), is(equalTo(-1L)));
+        assertThat(estimator.getOneWayLatencyMs(), is(equalTo(-1L)));
+        assertThat(estimator.getJitterMs(), is(closeTo(0.0, 0.001)));
+    }
+
+    @Test
+    public void quietLinkSettlesQuickly() throws Exception {
+        final RoundTripEstimator estimator = new RoundTripEstimator();
+        estimator.add(60);
+        estimator.add(62);
+        assertThat(estimator.isSettled(), is(false));
+
+        estimator.add(58);
+        assertThat(estimator.isSettled(), is(true));
+        assertThat(estimator.getSampleCount(), is(equalTo(RoundTripEstimator.MINIMUM_SAMPLES)));
+        assertThat(estimator.getRoundTripMs(), is(equalTo(58L)));
+        assertThat(estimator.getOneWayLatencyMs(), is(equalTo(29L)));
+        assertThat(estimator.getJitterMs(), is(closeTo(3.0, 0.001)));
+    }
+
+    @Test
+    public void noisyLinkWaitsForStableMinimum() throws Exception {
+        final RoundTripEstimator estimator = new RoundTripEstimator();
+        estimator.add(300);
+        estimator.add(90);
+        estimator.add(200);
+        assertThat(estimator.isSettled(), is(false));
+
+        estimator.add(60);
+        assertThat(estimator.isSettled(), is(false));
+
+        estimator.add(150);
+        estimator.add(110);
+        assertThat(estimator.isSettled(), is(false));
+
+        estimator.add(180);
+        assertThat(estimator.isSettled(), is(true));
+        assertThat(estimator.getRoundTripMs(), is(equalTo(60L)));
+    }
+
+    @Test
+    public void settlesAfterMaximumSamples() throws Exception {
+        final RoundTripEstimator estimator = new RoundTripEstimator();
+        for (int i = 0; i < RoundTripEstimator.MAXIMUM_SAMPLES - 1; i++) {
+            // Every sample improves on the last by more than the quiet jitter.
+            estimator.add(1000 - (i * 80));
+            assertThat(estimator.isSettled(), is(false));
+        }
+
+        estimator.add(1000 - ((RoundTripEstimator.MAXIMUM_SAMPLES - 1) * 80));
+        assertThat(estimator.isSettled(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSample() throws Exception {
+        new RoundTripEstimator().add(-1);
+    }
+}
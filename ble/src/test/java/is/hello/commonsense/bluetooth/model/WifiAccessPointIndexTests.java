@@ -0,0 +1,72 @@
+package is.hello.commonsense.bluetooth.model;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.commonsense.bluetooth.model.protobuf.SenseCommandProtos.wifi_endpoint;
+import is.hello.commonsense.util.CommonSenseTestCase;
+import rx.schedulers.TestScheduler;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WifiAccessPointIndexTests extends CommonSenseTestCase {
+    private static final long MAXIMUM_AGE_MS = 1000;
+
+    private final TestScheduler clock = new TestScheduler();
+    private final WifiAccessPointIndex index = new WifiAccessPointIndex(clock, MAXIMUM_AGE_MS);
+
+    private static wifi_endpoint createEndpoint(String ssid, int bssid, int rssi) {
+        return wifi_endpoint.newBuilder()
+                            .setSsid(ssid)
+                            .setBssid(ByteString.copyFrom(new byte[] {(byte) bssid}))
+                            .setRssi(rssi)
+                            .setSecurityType(wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_WPA)
+                            .build();
+    }
+
+    @Test
+    public void smoothsRssi() throws Exception {
+        index.add(createEndpoint("Hello", 1, -40));
+        index.add(createEndpoint("Hello", 1, -80));
+
+        final List<wifi_endpoint> networks = index.getTopNetworks(10);
+        assertThat(networks, hasSize(1));
+        assertThat(networks.get(0).getRssi(), is(equalTo(-50)));
+        assertThat(networks.get(0).getSecurityType(), is(equalTo(wifi_endpoint.sec_type.SL_SCAN_SEC_TYPE_WPA)));
+    }
+
+    @Test
+    public void rankedByNetwork() throws Exception {
+        index.add(createEndpoint("Weak", 1, -90));
+        index.add(createEndpoint("Strong", 2, -40));
+        index.add(createEndpoint("Strong", 3, -60));
+        index.add(createEndpoint("Middle", 4, -70));
+        index.add(createEndpoint("", 5, -10));
+        assertThat(index.size(), is(equalTo(4)));
+
+        final List<wifi_endpoint> networks = index.getTopNetworks(2);
+        assertThat(networks, hasSize(2));
+        assertThat(networks.get(0).getSsid(), is(equalTo("Strong")));
+        assertThat(networks.get(0).getRssi(), is(equalTo(-40)));
+        assertThat(networks.get(1).getSsid(), is(equalTo("Middle")));
+    }
+
+    @Test
+    public void evictsByAge() throws Exception {
+        index.add(createEndpoint("Old", 1, -40));
+        clock.advanceTimeBy(MAXIMUM_AGE_MS / 2, TimeUnit.MILLISECONDS);
+        index.add(createEndpoint("New", 2, -40));
+
+        clock.advanceTimeBy(MAXIMUM_AGE_MS / 2 + 1, TimeUnit.MILLISECONDS);
+        final List<wifi_endpoint> networks = index.getTopNetworks(10);
+        assertThat(networks, hasSize(1));
+        assertThat(networks.get(0).getSsid(), is(equalTo("New")));
+    }
+}